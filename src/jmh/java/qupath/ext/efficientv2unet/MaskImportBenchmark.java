@@ -0,0 +1,105 @@
+package qupath.ext.efficientv2unet;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import qupath.lib.analysis.images.SimpleImage;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the steps of OpInEx.load_maskFile() on synthetic masks:
+ * a grid of square objects (label 1) on background (label 0).
+ * Run with: gradlew jmh (results in build/results/jmh)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MaskImportBenchmark {
+
+    @Param({"1024", "4096"})
+    public int size;
+
+    @Param({"10", "1000"})
+    public int n_objects;
+
+    private static final Map<Integer, String> map_anno_class = Map.of(1, "Foreground");
+    private ImagePlus mask;
+    private SimpleImage image;
+    private RegionRequest request;
+    private PathObject traced;
+    private List<PathObject> split;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mask = new ImagePlus("mask", createMask(size, n_objects));
+        image = OpInEx.wrap_mask(mask);
+        request = RegionRequest.createInstance("mask", 1, 0, 0, size, size);
+        traced = OpInEx.trace_mask(image, request, map_anno_class).get("Foreground").get(0);
+        split = OpInEx.split_annotation(traced, "Foreground");
+    }
+
+    /**
+     * Create a binary mask with a grid of n square objects, each half the size of its grid cell
+     * @param size: int width and height of the mask
+     * @param n_objects: int number of objects (rounded up to a square grid)
+     * @return ByteProcessor
+     */
+    static ByteProcessor createMask(int size, int n_objects) {
+        ByteProcessor bp = new ByteProcessor(size, size);
+        int n_cells = (int) Math.ceil(Math.sqrt(n_objects));
+        int cell = size / n_cells;
+        int side = Math.max(1, cell / 2);
+        for (int i = 0; i < n_cells; i++) {
+            for (int j = 0; j < n_cells; j++) {
+                bp.setValue(1);
+                bp.setRoi(i * cell + cell / 4, j * cell + cell / 4, side, side);
+                bp.fill();
+            }
+        }
+        bp.resetRoi();
+        return bp;
+    }
+
+    @Benchmark
+    public SimpleImage wrapMask() {
+        return OpInEx.wrap_mask(mask);
+    }
+
+    @Benchmark
+    public Map<String, List<PathObject>> traceMask() {
+        return OpInEx.trace_mask(image, request, map_anno_class);
+    }
+
+    @Benchmark
+    public List<PathObject> splitAnnotation() {
+        return OpInEx.split_annotation(traced, "Foreground");
+    }
+
+    @Benchmark
+    public PathObjectHierarchy insertSingle() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        hierarchy.addObject(traced);
+        return hierarchy;
+    }
+
+    @Benchmark
+    public PathObjectHierarchy insertSplit() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        hierarchy.addObjects(split);
+        return hierarchy;
+    }
+}
@@ -0,0 +1,182 @@
+package qupath.ext.efficientv2unet;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import qupath.ext.biop.cmd.VirtualEnvironmentRunner;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * End-to-end benchmark of the Java side of a prediction and of the training export,
+ * on synthetic projects of different image sizes and counts.
+ * The efficient_v2_unet python module is replaced by a stub (src/jmh/resources/stub),
+ * which thresholds the images instead of loading a model, so TensorFlow is not needed
+ * (only numpy and tifffile). The prediction runs exactly like the predict dialog (PredictionRun).
+ * Run with: gradlew pipelineBenchmark [-Ppython=path/to/python]
+ */
+public class PipelineBenchmark {
+
+    private static final int[] SIZES = {512, 2048};
+    private static final int[] COUNTS = {4, 16};
+    private static final String FG_CLASS = "Foreground";
+
+    public static void main(String[] args) throws Exception {
+        String python = args.length > 0 ? args[0] : "python";
+        File root = Files.createTempDirectory("ev2unet-pipeline-benchmark").toFile();
+        File launcher = writeLauncher(root, extractStub(root), python);
+        File model = new File(root, "stub_model.h5");
+        Files.writeString(model.toPath(), "stub model");
+
+        File report = new File(root, "pipeline_benchmark.csv");
+        try (PrintWriter csv = new PrintWriter(report)) {
+            csv.println("size,images,stage,count,total_seconds,mean_seconds");
+            for (int size : SIZES) {
+                for (int n_images : COUNTS) {
+                    Project<BufferedImage> project = createProject(new File(root, "project_" + size + "_" + n_images), size, n_images);
+                    List<ProjectImageEntry<BufferedImage>> entries = project.getImageList();
+
+                    // Prediction, as in the predict dialog
+                    EfficientV2UNet ev2unet = EfficientV2UNet.builder()
+                            .setProject(project)
+                            .setPythonPath(launcher.getAbsolutePath())
+                            .setEnvType(VirtualEnvironmentRunner.EnvType.EXE)
+                            .doPredict(true)
+                            .setModelPath(model.getAbsolutePath())
+                            .setThreshold(0.5)
+                            .setResolution(1)
+                            .build();
+                    long start = System.nanoTime();
+                    PredictionRun.Result result = ev2unet.predict(entries);
+                    double predict_seconds = (System.nanoTime() - start) / 1e9;
+                    if (!result.isComplete())
+                        throw new IllegalStateException("Prediction failed (error " + result.getError() + "), is the python path correct? " + python);
+
+                    // Training export
+                    OpInEx ops = new OpInEx(project);
+                    StageTimings train_timings = new StageTimings("train-export");
+                    start = StageTimings.start();
+                    ops.exportImageMaskPair(entries, null, FG_CLASS);
+                    train_timings.stop(StageTimings.EXPORT, start);
+                    double export_seconds = (System.nanoTime() - start) / 1e9;
+
+                    System.out.printf(Locale.US, "%n=== %d images of %d x %d px ===%n", n_images, size, size);
+                    System.out.printf(Locale.US, "Prediction:      %.2f images/s (%.1f s)%n", n_images / predict_seconds, predict_seconds);
+                    System.out.printf(Locale.US, "Training export: %.2f images/s (%.1f s)%n", n_images / export_seconds, export_seconds);
+                    System.out.println(result.getTimings().getSummary());
+
+                    csv.printf(Locale.US, "%d,%d,%s,%d,%.3f,%.3f%n", size, n_images, "prediction_total", n_images, predict_seconds, predict_seconds / n_images);
+                    csv.printf(Locale.US, "%d,%d,%s,%d,%.3f,%.3f%n", size, n_images, "train_export_total", n_images, export_seconds, export_seconds / n_images);
+                    for (StageTimings.Stage s : result.getTimings().getStages()) {
+                        csv.printf(Locale.US, "%d,%d,%s,%d,%.3f,%.3f%n", size, n_images, s.getName(), s.getCount(), s.getTotalSeconds(), s.getMeanSeconds());
+                    }
+                }
+            }
+        }
+        System.out.println("\nReport: " + report.getAbsolutePath());
+    }
+
+    /**
+     * Create a project with synthetic brightfield images (dark squares on a bright background),
+     * each with a foreground annotation for the training export
+     * @param dir: File folder of the project
+     * @param size: int width and height of the images
+     * @param n_images: int number of images
+     * @return Project
+     * @throws IOException
+     */
+    static Project<BufferedImage> createProject(File dir, int size, int n_images) throws IOException {
+        File image_dir = new File(dir, "images");
+        image_dir.mkdirs();
+        Project<BufferedImage> project = Projects.createProject(dir, BufferedImage.class);
+        Random random = new Random(42);
+        for (int i = 0; i < n_images; i++) {
+            ColorProcessor cp = new ColorProcessor(size, size);
+            cp.setColor(new java.awt.Color(230, 225, 235));
+            cp.fill();
+            cp.setColor(new java.awt.Color(90, 40, 120));
+            for (int o = 0; o < 20; o++) {
+                int side = size / 20;
+                cp.setRoi(random.nextInt(size - side), random.nextInt(size - side), side, side);
+                cp.fill();
+            }
+            cp.resetRoi();
+            File file = new File(image_dir, "image_" + i + ".tif");
+            IJ.saveAsTiff(new ImagePlus(file.getName(), cp), file.getAbsolutePath());
+
+            ImageServer<BufferedImage> server = ImageServers.buildServer(file.getAbsolutePath());
+            ProjectImageEntry<BufferedImage> entry = project.addImage(server.getBuilder());
+            entry.setImageName(GeneralTools.stripExtension(file.getName()));
+            ImageData<BufferedImage> image_data = new ImageData<>(server);
+            image_data.getHierarchy().addObject(PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(size / 4.0, size / 4.0, size / 2.0, size / 2.0, ImagePlane.getDefaultPlane()),
+                    PathClass.getInstance(FG_CLASS)));
+            entry.saveImageData(image_data);
+            server.close();
+        }
+        project.syncChanges();
+        return project;
+    }
+
+    /**
+     * Copy the stub python module out of the classpath
+     * @param root: File folder to copy it to
+     * @return File folder to put on the PYTHONPATH
+     * @throws IOException
+     */
+    private static File extractStub(File root) throws IOException {
+        File stub_dir = new File(root, "stub");
+        File module_dir = new File(stub_dir, "efficient_v2_unet");
+        module_dir.mkdirs();
+        for (String name : List.of("__init__.py", "__main__.py")) {
+            try (InputStream in = PipelineBenchmark.class.getResourceAsStream("/stub/efficient_v2_unet/" + name)) {
+                if (in == null) throw new IOException("Stub module not found on the classpath: " + name);
+                Files.copy(in, new File(module_dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return stub_dir;
+    }
+
+    /**
+     * Write a launcher running python with the stub module first on its path
+     * (used as the EXE python path of the extension)
+     * @param root: File folder to write it to
+     * @param stub_dir: File folder containing the stub module
+     * @param python: String python executable
+     * @return File launcher
+     * @throws IOException
+     */
+    private static File writeLauncher(File root, File stub_dir, String python) throws IOException {
+        File launcher;
+        if (GeneralTools.isWindows()) {
+            launcher = new File(root, "python_stub.bat");
+            Files.writeString(launcher.toPath(), "@set PYTHONPATH=" + stub_dir.getAbsolutePath() + "\r\n@\"" + python + "\" %*\r\n");
+        }
+        else {
+            launcher = new File(root, "python_stub.sh");
+            Files.writeString(launcher.toPath(), "#!/bin/sh\nPYTHONPATH=\"" + stub_dir.getAbsolutePath() + "\" exec \"" + python + "\" \"$@\"\n");
+            launcher.setExecutable(true);
+        }
+        return launcher;
+    }
+}
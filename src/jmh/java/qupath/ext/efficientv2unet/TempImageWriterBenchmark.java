@@ -0,0 +1,120 @@
+package qupath.ext.efficientv2unet;
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode time of the exported images, for every TempImageWriter,
+ * on an 8-bit RGB brightfield and a 16-bit 4-channel fluorescence image.
+ * The size of the written file is printed at the end of each trial.
+ * Run with: gradlew jmh -PjmhIncludes=TempImageWriterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TempImageWriterBenchmark {
+
+    @Param({"UNCOMPRESSED_TIFF", "PACKBITS_TIFF", "DEFLATE_TIFF", "QUPATH_DEFAULT", "TILED_TIFF"})
+    public TempImageWriter writer;
+
+    @Param({"RGB_BRIGHTFIELD", "UINT16_FLUORESCENCE"})
+    public String image_type;
+
+    @Param({"2048"})
+    public int size;
+
+    private ImageServer<BufferedImage> server;
+    private File dir;
+    private File encoded;
+    private File decoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = image_type.equals("RGB_BRIGHTFIELD") ? createBrightfield(size) : createFluorescence(size, 4);
+        dir = Files.createTempDirectory("ev2unet-writer-benchmark").toFile();
+        encoded = new File(dir, "encoded.tif");
+        decoded = new File(dir, "decoded.tif");
+        writer.write(server, decoded);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.printf("%n%s, %s: %d bytes%n", writer.name(), image_type, decoded.length());
+        encoded.delete();
+        decoded.delete();
+        dir.delete();
+        server.close();
+    }
+
+    @Benchmark
+    public File encode() throws IOException {
+        writer.write(server, encoded);
+        return encoded;
+    }
+
+    @Benchmark
+    public ImagePlus decode() {
+        return IJ.openImage(decoded.getAbsolutePath());
+    }
+
+    /**
+     * Bright background with dark, noisy objects
+     */
+    static ImageServer<BufferedImage> createBrightfield(int size) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean object = ((x / 64) + (y / 64)) % 5 == 0;
+                int v = (object ? 90 : 225) + random.nextInt(20);
+                img.setRGB(x, y, (v << 16) | ((v - 40) << 8) | Math.min(255, v + 10));
+            }
+        }
+        return new WrappedBufferedImageServer("brightfield", img);
+    }
+
+    /**
+     * Dark background with bright, noisy objects in every channel
+     */
+    static ImageServer<BufferedImage> createFluorescence(int size, int n_channels) {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_USHORT, size, size, n_channels, null);
+        Random random = new Random(42);
+        for (int c = 0; c < n_channels; c++) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    boolean object = ((x / (32 + 16 * c)) + (y / 48)) % 4 == 0;
+                    raster.setSample(x, y, c, (object ? 12000 : 300) + random.nextInt(200));
+                }
+            }
+        }
+        List<ImageChannel> channels = ImageChannel.getDefaultChannelList(n_channels);
+        BufferedImage img = new BufferedImage(ColorModelFactory.createColorModel(PixelType.UINT16, channels), raster, false, null);
+        return new WrappedBufferedImageServer("fluorescence", img, channels);
+    }
+}
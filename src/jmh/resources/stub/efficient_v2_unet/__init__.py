@@ -0,0 +1 @@
+"""Stub of the efficient_v2_unet package for the pipeline benchmark (no TensorFlow needed)."""
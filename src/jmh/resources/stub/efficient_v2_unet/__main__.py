@@ -0,0 +1,60 @@
+"""
+Stub of the efficient_v2_unet command line interface, used by PipelineBenchmark.
+It does not load a model: it thresholds the mean intensity of every image in --dir
+and writes the binary mask to --savedir, reporting its progress like the real package.
+Only needs numpy and tifffile.
+"""
+import argparse
+import json
+import os
+import sys
+import time
+
+import numpy as np
+import tifffile
+
+PREFIX = "EV2UNET_PROGRESS "
+
+
+def emit(**message):
+    print(PREFIX + json.dumps(message), flush=True)
+
+
+def predict(args):
+    files = sorted(f for f in os.listdir(args.dir) if f.endswith(".tif"))
+    os.makedirs(args.savedir, exist_ok=True)
+    for i, name in enumerate(files, start=1):
+        start = time.time()
+        emit(event="image_started", image=name, image_index=i, n_images=len(files))
+        image = tifffile.imread(os.path.join(args.dir, name)).astype(np.float32)
+        # channels last (RGB) or first (multichannel) -> mean over the smallest axis
+        if image.ndim == 3:
+            image = image.mean(axis=int(np.argmin(image.shape)))
+        # dark objects on bright background (brightfield)
+        limit = image.min() + (1 - args.threshold) * (image.max() - image.min())
+        mask = (image < limit).astype(np.uint8)
+        tifffile.imwrite(os.path.join(args.savedir, name), mask)
+        emit(event="tile_done", image=name, image_index=i, n_images=len(files), tile=1, n_tiles=1,
+             seconds=time.time() - start)
+        emit(event="image_finished", image=name, image_index=i, n_images=len(files), seconds=time.time() - start)
+
+
+def main():
+    parser = argparse.ArgumentParser(prog="efficient_v2_unet (stub)")
+    parser.add_argument("--predict", action="store_true")
+    parser.add_argument("--train", action="store_true")
+    parser.add_argument("--dir")
+    parser.add_argument("--model")
+    parser.add_argument("--resolution", type=int, default=1)
+    parser.add_argument("--threshold", type=float, default=0.5)
+    parser.add_argument("--savedir")
+    parser.add_argument("--use_less_memory", action="store_true")
+    args, _ = parser.parse_known_args()
+    if not args.predict:
+        print("The stub only predicts", file=sys.stderr)
+        sys.exit(1)
+    predict(args)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,130 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Disk space the files of a prediction run may use at a time: the exported images, and their predicted masks.
+ * The export stops once the budget is used, the exported images are predicted and imported,
+ * and their files deleted (which releases their space), before the next images are exported.
+ * Every image reserves the size of its exported file, plus 1 byte per pixel for its mask,
+ * until it is finished (its mask imported, or failed) and its files deleted.
+ */
+public class DiskBudget {
+    private static final Logger logger = LoggerFactory.getLogger(DiskBudget.class);
+    private final long max_bytes;
+    private final Map<File, Long> reserved = new HashMap<>(); // by exported file
+    private long used = 0;
+
+    /**
+     * Constructor
+     * @param max_bytes: long max bytes of the files, 0 (or less) for no limit
+     */
+    public DiskBudget(long max_bytes) {
+        this.max_bytes = max_bytes;
+    }
+
+    /**
+     * Get the budget set in the preferences
+     * @return DiskBudget
+     */
+    public static DiskBudget fromPreferences() {
+        return new DiskBudget((long) (EV2UnetSetup.getInstance().getTempDiskBudgetGB() * (1L << 30)));
+    }
+
+    public boolean isLimited() {
+        return max_bytes > 0;
+    }
+
+    public long getMaxBytes() {
+        return max_bytes;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Check whether the budget is used up, i.e. no more images should be exported
+     * (an image larger than the budget is exported on its own)
+     * @return boolean
+     */
+    public synchronized boolean isExhausted() {
+        return max_bytes > 0 && used >= max_bytes;
+    }
+
+    /**
+     * Reserve the space of an exported image and of its mask
+     * @param file: File exported image
+     * @param n_pixels: long number of pixels of the mask
+     */
+    public synchronized void reserve(File file, long n_pixels) {
+        long bytes = file.length() + n_pixels;
+        Long previous = reserved.put(file, bytes);
+        used += bytes - (previous == null ? 0 : previous);
+    }
+
+    /**
+     * Reserve the space of an image exported before the run was resumed,
+     * reading the size of its mask from the header of the exported file
+     * @param file: File exported image
+     */
+    public void reserveExported(File file) {
+        reserve(file, readPixelCount(file));
+    }
+
+    /**
+     * Estimate how many more images fit into the budget, from the mean size of the reserved ones
+     * (e.g. to only read ahead the images that will be exported)
+     * @return int, Integer.MAX_VALUE if the budget is not limited or no image is reserved yet
+     */
+    public synchronized int estimateRemainingImages() {
+        if (max_bytes <= 0 || reserved.isEmpty()) return Integer.MAX_VALUE;
+        if (used >= max_bytes) return 0;
+        long mean = Math.max(1, used / reserved.size());
+        // an image is exported as long as the budget is not used up, also if it does not fit entirely
+        return (int) Math.min(Integer.MAX_VALUE, (max_bytes - used + mean - 1) / mean);
+    }
+
+    /**
+     * Read the number of pixels of an image file from its header
+     * @param file: File image
+     * @return long number of pixels, or the file size if it cannot be read (e.g. a BigTIFF)
+     */
+    static long readPixelCount(File file) {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, true);
+                    return (long) reader.getWidth(0) * reader.getHeight(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not read the size of " + file.getAbsolutePath() + ": " + e.getLocalizedMessage());
+        }
+        // an uncompressed image has at least 1 byte per pixel
+        return file.length();
+    }
+
+    /**
+     * Release the space of an exported image and of its mask, once both are deleted
+     * @param file: File exported image
+     */
+    public synchronized void release(File file) {
+        Long bytes = reserved.remove(file);
+        if (bytes != null) used -= bytes;
+    }
+}
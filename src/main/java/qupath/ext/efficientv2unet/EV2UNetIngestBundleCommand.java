@@ -0,0 +1,65 @@
+package qupath.ext.efficientv2unet;
+
+import javafx.concurrent.Task;
+import org.controlsfx.dialog.ProgressDialog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.fx.dialogs.Dialogs;
+import qupath.fx.dialogs.FileChoosers;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.tools.GuiTools;
+
+import java.io.File;
+
+/**
+ * Load the predicted masks of a job bundle (see JobBundle) into the current project
+ */
+public class EV2UNetIngestBundleCommand implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(EV2UNetIngestBundleCommand.class);
+    private final QuPathGUI qupath;
+    private final String title = "Ingest job bundle results";
+
+    /**
+     * Constructor
+     * @param qupath
+     */
+    public EV2UNetIngestBundleCommand(final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run() {
+        if (qupath.getProject() == null) {
+            GuiTools.showNoProjectError("Please open a project first");
+            return;
+        }
+        File bundle_dir = FileChoosers.promptForDirectory(title, null);
+        if (bundle_dir == null) return;
+        if (!new File(bundle_dir, "manifest.json").exists()) {
+            Dialogs.showErrorMessage(title, "The selected folder is not a job bundle (no manifest.json found):\n" + bundle_dir.getAbsolutePath());
+            return;
+        }
+
+        OpInEx ops = new OpInEx(qupath);
+        Task<Integer> worker = new Task<>() {
+            @Override
+            protected Integer call() {
+                updateMessage("Loading predictions...");
+                return JobBundle.ingest(ops, bundle_dir);
+            }
+        };
+        ProgressDialog progress = new ProgressDialog(worker);
+        progress.initOwner(qupath.getStage());
+        progress.setTitle("Loading...");
+        progress.getDialogPane().setHeaderText("Loading job bundle results...");
+        progress.getDialogPane().setGraphic(null);
+        EV2UNetJobScheduler.getInstance().submit(title, EV2UNetJobScheduler.Priority.NORMAL, worker);
+        progress.showAndWait();
+
+        if (worker.getException() != null) {
+            logger.error("Could not ingest the job bundle", worker.getException());
+            Dialogs.showErrorMessage(title, "Could not load the job bundle results:\n" + worker.getException().getLocalizedMessage());
+        }
+        else logger.info("Loaded the predictions of " + worker.getValue() + " images from: " + bundle_dir.getAbsolutePath());
+    }
+}
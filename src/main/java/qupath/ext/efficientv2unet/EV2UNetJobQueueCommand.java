@@ -0,0 +1,79 @@
+package qupath.ext.efficientv2unet;
+
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.ProgressBarTableCell;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+import qupath.lib.gui.QuPathGUI;
+
+/**
+ * Shows the jobs of the EV2UNetJobScheduler, with their progress, and allows cancelling them
+ */
+public class EV2UNetJobQueueCommand implements Runnable {
+    private final QuPathGUI qupath;
+    private static Stage stage;
+
+    /**
+     * Constructor
+     * @param qupath
+     */
+    public EV2UNetJobQueueCommand(final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run() {
+        if (stage == null) stage = createStage();
+        stage.show();
+        stage.toFront();
+    }
+
+    private Stage createStage() {
+        EV2UNetJobScheduler scheduler = EV2UNetJobScheduler.getInstance();
+
+        TableView<EV2UNetJobScheduler.Job> table = new TableView<>(scheduler.getJobs());
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY_FLEX_LAST_COLUMN);
+        table.setPlaceholder(new Label("No jobs"));
+
+        TableColumn<EV2UNetJobScheduler.Job, String> colName = new TableColumn<>("Job");
+        colName.setCellValueFactory(c -> new ReadOnlyStringWrapper(c.getValue().getName()));
+        TableColumn<EV2UNetJobScheduler.Job, EV2UNetJobScheduler.Priority> colPriority = new TableColumn<>("Priority");
+        colPriority.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>(c.getValue().getPriority()));
+        TableColumn<EV2UNetJobScheduler.Job, EV2UNetJobScheduler.State> colState = new TableColumn<>("State");
+        colState.setCellValueFactory(c -> c.getValue().stateProperty());
+        TableColumn<EV2UNetJobScheduler.Job, Double> colProgress = new TableColumn<>("Progress");
+        colProgress.setCellValueFactory(c -> c.getValue().getTask().progressProperty().asObject());
+        colProgress.setCellFactory(ProgressBarTableCell.forTableColumn());
+        TableColumn<EV2UNetJobScheduler.Job, String> colMessage = new TableColumn<>("Message");
+        colMessage.setCellValueFactory(c -> c.getValue().getTask().messageProperty());
+        table.getColumns().addAll(colName, colPriority, colState, colProgress, colMessage);
+
+        Button btnCancel = new Button("Cancel job");
+        btnCancel.disableProperty().bind(table.getSelectionModel().selectedItemProperty().isNull());
+        btnCancel.setOnAction(e -> {
+            EV2UNetJobScheduler.Job job = table.getSelectionModel().getSelectedItem();
+            if (job != null && !job.isFinished()) scheduler.cancel(job);
+        });
+        Button btnClear = new Button("Clear finished");
+        btnClear.setOnAction(e -> scheduler.clearFinished());
+
+        HBox buttons = new HBox(5, btnCancel, btnClear);
+        buttons.setPadding(new Insets(5));
+        BorderPane pane = new BorderPane(table);
+        pane.setBottom(buttons);
+
+        Stage s = new Stage();
+        s.initOwner(qupath.getStage());
+        s.setTitle("Efficient V2 UNet jobs");
+        s.setScene(new Scene(pane, 700, 300));
+        return s;
+    }
+}
@@ -0,0 +1,264 @@
+package qupath.ext.efficientv2unet;
+
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.fx.utils.FXUtils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extension-wide scheduler for the prediction and training jobs.
+ * Interactive jobs (e.g. predicting the currently viewed image) run in their own lane,
+ * so they never wait behind a running batch job. All other jobs run one after the other
+ * in the background lane, the queued ones ordered by priority (then by submission).
+ * While an interactive job is queued or running, the background job pauses at its next boundary
+ * (see yieldToInteractive(), e.g. between the parts of a prediction, before its python process is started),
+ * so the two do not load a model on the GPU at the same time. A python process already running is not paused.
+ * The jobs are listed in the job queue view (see EV2UNetJobQueueCommand), where they can be cancelled.
+ */
+public class EV2UNetJobScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(EV2UNetJobScheduler.class);
+    private static final EV2UNetJobScheduler instance = new EV2UNetJobScheduler();
+
+    /**
+     * Priority class of a job, in order
+     */
+    public enum Priority {
+        INTERACTIVE,    // runs immediately in the interactive lane
+        NORMAL,         // e.g. a prediction of a single image
+        BATCH           // e.g. a prediction of many images, or a training
+    }
+
+    /**
+     * State of a job
+     */
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * A task submitted to the scheduler
+     */
+    public static class Job implements Comparable<Job> {
+        private static final AtomicLong counter = new AtomicLong();
+        private final String name;
+        private final Priority priority;
+        private final Task<?> task;
+        private final long seq = counter.getAndIncrement();
+        private final ObjectProperty<State> state = new SimpleObjectProperty<>(State.QUEUED);
+
+        private Job(String name, Priority priority, Task<?> task) {
+            this.name = name;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public Task<?> getTask() {
+            return task;
+        }
+
+        public ReadOnlyObjectProperty<State> stateProperty() {
+            return state;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        /**
+         * Whether the job has finished (successfully or not)
+         * @return boolean
+         */
+        public boolean isFinished() {
+            State s = getState();
+            return s == State.DONE || s == State.FAILED || s == State.CANCELLED;
+        }
+
+        private void setState(State s) {
+            FXUtils.runOnApplicationThread(() -> state.set(s));
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    private final ObservableList<Job> jobs = FXCollections.observableArrayList();
+    private final ExecutorService interactive_lane = Executors.newSingleThreadExecutor(r -> createThread(r, "interactive"));
+    private final ExecutorService background_lane = Executors.newSingleThreadExecutor(r -> createThread(r, "background"));
+    private final AtomicInteger running = new AtomicInteger();
+    private final Object interactive_lock = new Object();
+    private int interactive_jobs = 0; // queued or running in the interactive lane, guarded by interactive_lock
+    private static final ThreadLocal<Boolean> in_background_lane = ThreadLocal.withInitial(() -> false);
+
+    private EV2UNetJobScheduler() {}
+
+    /**
+     * Get the scheduler of the extension
+     * @return EV2UNetJobScheduler
+     */
+    public static EV2UNetJobScheduler getInstance() {
+        return instance;
+    }
+
+    private static final AtomicInteger thread_count = new AtomicInteger();
+
+    private static Thread createThread(Runnable r, String lane) {
+        Thread t = new Thread(r, "ev2unet-" + lane + "-" + thread_count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Get the jobs of this session (to be used on the JavaFX thread)
+     * @return ObservableList of Job
+     */
+    public ObservableList<Job> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Get the number of jobs waiting in the background lane
+     * @return int
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of jobs running (in both lanes)
+     * @return int
+     */
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    /**
+     * Submit a task
+     * @param name: String name shown in the job queue
+     * @param priority: Priority of the job
+     * @param task: Task to run
+     * @return Job
+     */
+    public Job submit(String name, Priority priority, Task<?> task) {
+        Job job = new Job(name, priority, task);
+        FXUtils.runOnApplicationThread(() -> jobs.add(job));
+        if (priority == Priority.INTERACTIVE) {
+            synchronized (interactive_lock) {
+                interactive_jobs++;
+            }
+            interactive_lane.execute(() -> {
+                try {
+                    runJob(job);
+                } finally {
+                    synchronized (interactive_lock) {
+                        interactive_jobs--;
+                        interactive_lock.notifyAll();
+                    }
+                }
+            });
+        }
+        else {
+            queue.add(job);
+            // every submission adds one pull, which runs the most important queued job
+            background_lane.execute(() -> {
+                Job next = queue.poll();
+                if (next == null) return;
+                in_background_lane.set(true);
+                try {
+                    runJob(next);
+                } finally {
+                    in_background_lane.set(false);
+                }
+            });
+        }
+        logger.info("Submitted job <" + name + "> with priority " + priority);
+        return job;
+    }
+
+    /**
+     * Wait until no interactive job is queued or running, if called from a job of the background lane
+     * (returns immediately on any other thread, e.g. in scripts).
+     * Background jobs call it at their boundaries, before they start heavy work.
+     * Returns early if the thread is interrupted (e.g. the job is cancelled), keeping its interrupt status.
+     */
+    public void yieldToInteractive() {
+        if (!in_background_lane.get()) return;
+        synchronized (interactive_lock) {
+            if (interactive_jobs == 0) return;
+            logger.info("Pausing the background job until the interactive jobs are done");
+            try {
+                while (interactive_jobs > 0) interactive_lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            logger.info("Resuming the background job");
+        }
+    }
+
+    /**
+     * Cancel a job: removes it from the queue, or cancels its task if it is running
+     * @param job: Job
+     */
+    public void cancel(Job job) {
+        if (queue.remove(job)) job.setState(State.CANCELLED);
+        job.task.cancel(true);
+        logger.info("Cancelled job <" + job.name + ">");
+    }
+
+    /**
+     * Remove the finished jobs from the job list
+     */
+    public void clearFinished() {
+        FXUtils.runOnApplicationThread(() -> jobs.removeIf(Job::isFinished));
+    }
+
+    private void runJob(Job job) {
+        if (job.task.isCancelled()) {
+            job.setState(State.CANCELLED);
+            return;
+        }
+        job.setState(State.RUNNING);
+        running.incrementAndGet();
+        try {
+            job.task.run();
+        } finally {
+            running.decrementAndGet();
+        }
+        if (job.task.isCancelled()) {
+            job.setState(State.CANCELLED);
+            return;
+        }
+        try {
+            job.task.get();
+            job.setState(State.DONE);
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Job <" + job.name + "> failed: " + e.getLocalizedMessage());
+            EV2UNetMetrics.getInstance().recordFailedJob();
+            job.setState(State.FAILED);
+        }
+    }
+}
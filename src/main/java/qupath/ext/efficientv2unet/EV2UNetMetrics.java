@@ -0,0 +1,294 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Extension-wide operational metrics, fed by the prediction and training runs and by OpInEx.
+ * Registered on the platform MBean server on first use, so they can be followed with JConsole
+ * or scraped with a Prometheus JMX exporter during long runs.
+ * The rates (per minute / per second) are computed over the last RATE_WINDOW_MILLIS.
+ */
+public class EV2UNetMetrics implements EV2UNetMetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(EV2UNetMetrics.class);
+    public static final String OBJECT_NAME = "qupath.ext.efficientv2unet:type=Metrics";
+    public static final long RATE_WINDOW_MILLIS = 60_000;
+    private static final EV2UNetMetrics instance = register(new EV2UNetMetrics());
+
+    /**
+     * Sum of amounts within the last RATE_WINDOW_MILLIS
+     */
+    private static class RateWindow {
+        private final Deque<long[]> samples = new ArrayDeque<>(); // {time millis, amount}
+        private long sum = 0;
+
+        synchronized void add(long amount) {
+            samples.addLast(new long[]{System.currentTimeMillis(), amount});
+            sum += amount;
+            prune();
+        }
+
+        synchronized double perSecond() {
+            prune();
+            return sum * 1000.0 / RATE_WINDOW_MILLIS;
+        }
+
+        synchronized void clear() {
+            samples.clear();
+            sum = 0;
+        }
+
+        private void prune() {
+            long oldest = System.currentTimeMillis() - RATE_WINDOW_MILLIS;
+            while (!samples.isEmpty() && samples.peekFirst()[0] < oldest) sum -= samples.pollFirst()[1];
+        }
+    }
+
+    private final AtomicLong images_predicted = new AtomicLong();
+    private final AtomicLong pixels_predicted = new AtomicLong();
+    private final AtomicLong images_exported = new AtomicLong();
+    private final AtomicLong python_workers_started = new AtomicLong();
+    private final AtomicLong cache_hits = new AtomicLong();
+    private final AtomicLong cache_misses = new AtomicLong();
+    private final AtomicLong failed_images = new AtomicLong();
+    private final AtomicLong failed_processes = new AtomicLong();
+    private final AtomicLong failed_jobs = new AtomicLong();
+    private final RateWindow image_rate = new RateWindow();
+    private final RateWindow pixel_rate = new RateWindow();
+    private final RateWindow export_pixel_rate = new RateWindow();
+    private final Map<String, Long> python_workers = new ConcurrentHashMap<>(); // name -> start time millis
+    private final Set<File> temp_dirs = ConcurrentHashMap.newKeySet();
+
+    private EV2UNetMetrics() {}
+
+    /**
+     * Get the metrics of the extension
+     * @return EV2UNetMetrics
+     */
+    public static EV2UNetMetrics getInstance() {
+        return instance;
+    }
+
+    private static EV2UNetMetrics register(EV2UNetMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // e.g. when the extension is loaded again by another class loader
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Could not register the metrics MBean: " + e.getLocalizedMessage());
+        }
+        return metrics;
+    }
+
+    // Feeding the metrics  ---------------------------------------------------
+
+    /**
+     * An image has been exported for prediction
+     * @param pixels: long number of pixels (width x height)
+     */
+    public void recordExport(long pixels) {
+        images_exported.incrementAndGet();
+        export_pixel_rate.add(pixels);
+    }
+
+    /**
+     * A predicted image has been loaded into the project
+     * @param pixels: long number of pixels (width x height)
+     */
+    public void recordPredicted(long pixels) {
+        images_predicted.incrementAndGet();
+        pixels_predicted.addAndGet(pixels);
+        image_rate.add(1);
+        pixel_rate.add(pixels);
+    }
+
+    /**
+     * A python process has been started
+     * @param name: String unique name of the process, e.g. "predict-runId"
+     */
+    public void workerStarted(String name) {
+        python_workers.put(name, System.currentTimeMillis());
+        python_workers_started.incrementAndGet();
+    }
+
+    /**
+     * A python process has ended
+     * @param name: String name given to workerStarted()
+     * @param exit_code: int exit code of the process (not counted as failure if it was terminated)
+     * @param terminated: boolean, whether the process was terminated (e.g. cancelled)
+     */
+    public void workerEnded(String name, int exit_code, boolean terminated) {
+        // only counted once, e.g. when a terminated process is also waited for
+        if (python_workers.remove(name) != null && exit_code != 0 && !terminated) failed_processes.incrementAndGet();
+    }
+
+    /**
+     * Count the temp folder of a run towards the temp-disk usage (until removed)
+     * @param dir: File folder
+     */
+    public void addTempDir(File dir) {
+        temp_dirs.add(dir);
+    }
+
+    public void removeTempDir(File dir) {
+        temp_dirs.remove(dir);
+    }
+
+    public void recordCacheHit(long n) {
+        cache_hits.addAndGet(n);
+    }
+
+    public void recordCacheMiss(long n) {
+        cache_misses.addAndGet(n);
+    }
+
+    public void recordFailedImage() {
+        failed_images.incrementAndGet();
+    }
+
+    public void recordFailedJob() {
+        failed_jobs.incrementAndGet();
+    }
+
+    // MBean  -----------------------------------------------------------------
+
+    @Override
+    public long getImagesPredicted() {
+        return images_predicted.get();
+    }
+
+    @Override
+    public double getImagesPerMinute() {
+        return image_rate.perSecond() * 60;
+    }
+
+    @Override
+    public long getPixelsPredicted() {
+        return pixels_predicted.get();
+    }
+
+    @Override
+    public double getPixelsPerSecond() {
+        return pixel_rate.perSecond();
+    }
+
+    @Override
+    public long getImagesExported() {
+        return images_exported.get();
+    }
+
+    @Override
+    public double getExportPixelsPerSecond() {
+        return export_pixel_rate.perSecond();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return EV2UNetJobScheduler.getInstance().getQueueDepth();
+    }
+
+    @Override
+    public int getRunningJobs() {
+        return EV2UNetJobScheduler.getInstance().getRunningCount();
+    }
+
+    @Override
+    public int getActivePythonWorkers() {
+        return python_workers.size();
+    }
+
+    @Override
+    public String[] getActivePythonWorkerNames() {
+        return python_workers.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getOldestPythonWorkerUptimeSeconds() {
+        long now = System.currentTimeMillis();
+        return python_workers.values().stream().mapToLong(t -> (now - t) / 1000).max().orElse(0);
+    }
+
+    @Override
+    public long getPythonWorkersStarted() {
+        return python_workers_started.get();
+    }
+
+    @Override
+    public long getTempDiskBytes() {
+        long bytes = 0;
+        for (File dir : temp_dirs) {
+            if (!dir.isDirectory()) continue;
+            try (Stream<Path> files = Files.walk(dir.toPath())) {
+                bytes += files.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Could not measure " + dir.getAbsolutePath() + ": " + e.getLocalizedMessage());
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache_hits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache_misses.get();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long total = cache_hits.get() + cache_misses.get();
+        return total == 0 ? 0 : (double) cache_hits.get() / total;
+    }
+
+    @Override
+    public long getFailedImages() {
+        return failed_images.get();
+    }
+
+    @Override
+    public long getFailedProcesses() {
+        return failed_processes.get();
+    }
+
+    @Override
+    public long getFailedJobs() {
+        return failed_jobs.get();
+    }
+
+    @Override
+    public void resetCounters() {
+        images_predicted.set(0);
+        pixels_predicted.set(0);
+        images_exported.set(0);
+        python_workers_started.set(0);
+        cache_hits.set(0);
+        cache_misses.set(0);
+        failed_images.set(0);
+        failed_processes.set(0);
+        failed_jobs.set(0);
+        image_rate.clear();
+        pixel_rate.clear();
+        export_pixel_rate.clear();
+    }
+}
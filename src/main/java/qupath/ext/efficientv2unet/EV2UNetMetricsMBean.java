@@ -0,0 +1,44 @@
+package qupath.ext.efficientv2unet;
+
+/**
+ * Live metrics of the extension, registered as JMX MBean "qupath.ext.efficientv2unet:type=Metrics"
+ * (e.g. for JConsole or a Prometheus JMX exporter). See EV2UNetMetrics.
+ */
+public interface EV2UNetMetricsMBean {
+
+    // Throughput
+    long getImagesPredicted();
+    double getImagesPerMinute();
+    long getPixelsPredicted();
+    double getPixelsPerSecond();
+    long getImagesExported();
+    double getExportPixelsPerSecond();
+
+    // Jobs
+    int getQueueDepth();
+    int getRunningJobs();
+
+    // Python workers
+    int getActivePythonWorkers();
+    String[] getActivePythonWorkerNames();
+    long getOldestPythonWorkerUptimeSeconds();
+    long getPythonWorkersStarted();
+
+    // Disk
+    long getTempDiskBytes();
+
+    // Cache
+    long getCacheHits();
+    long getCacheMisses();
+    double getCacheHitRate();
+
+    // Failures
+    long getFailedImages();
+    long getFailedProcesses();
+    long getFailedJobs();
+
+    /**
+     * Reset the counters (not the gauges, e.g. the active workers)
+     */
+    void resetCounters();
+}
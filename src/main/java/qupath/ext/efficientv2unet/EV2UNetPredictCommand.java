@@ -1,12 +1,10 @@
 package qupath.ext.efficientv2unet;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import com.google.gson.stream.JsonReader;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.ListChangeListener;
 import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
 import javafx.event.ActionEvent;
 import javafx.scene.control.*;
 import javafx.scene.layout.BorderPane;
@@ -15,7 +13,6 @@ import org.controlsfx.control.ListSelectionView;
 import org.controlsfx.dialog.ProgressDialog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import qupath.ext.biop.cmd.VirtualEnvironmentRunner;
 import qupath.fx.dialogs.Dialogs;
 import qupath.fx.dialogs.FileChoosers;
 import qupath.fx.utils.FXUtils;
@@ -23,6 +20,8 @@ import qupath.fx.utils.GridPaneUtils;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.ProjectDialogs;
 import qupath.lib.gui.tools.GuiTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 
@@ -36,6 +35,7 @@ import java.util.stream.Collectors;
 
 public class EV2UNetPredictCommand implements Runnable{
     private QuPathGUI qupath;
+    private final boolean exportBundle;
     private String title = "Predict an image with Efficient V2 UNet";
     private static final Logger logger = LoggerFactory.getLogger(EV2UNetPredictCommand.class);
     private ObjectProperty<Future<?>> runningTask = new SimpleObjectProperty<>();
@@ -52,6 +52,7 @@ public class EV2UNetPredictCommand implements Runnable{
     private Label infoModelName = new Label();
     private Label infoModel = new Label();
     private Label infoModelBest = new Label();
+    private ModelRegistry registry;
 
     // Prediction variables
     private String modelPath;
@@ -60,6 +61,7 @@ public class EV2UNetPredictCommand implements Runnable{
     private static String anno_name;
     private static Boolean doSplit = false;
     private static Boolean doRemove = false;
+    private static Boolean onlyNewOrChanged = false;
     private List<ProjectImageEntry<BufferedImage>> selectedImages = new ArrayList<>();
 
     /**
@@ -67,16 +69,75 @@ public class EV2UNetPredictCommand implements Runnable{
      * @param qupath
      */
     public EV2UNetPredictCommand(final QuPathGUI qupath) {
+        this(qupath, false);
+    }
+
+    /**
+     * Constructor
+     * @param qupath
+     * @param exportBundle: boolean, whether to export a prediction job bundle instead of predicting
+     */
+    public EV2UNetPredictCommand(final QuPathGUI qupath, boolean exportBundle) {
         this.qupath = qupath;
+        this.exportBundle = exportBundle;
+        if (exportBundle) {
+            title = "Export a prediction job bundle";
+            btnPredict = new ButtonType("Export bundle", ButtonBar.ButtonData.OK_DONE);
+        }
     }
 
     @Override
     public void run() {
         if (!createAndShowDialog()) return;
+        if (exportBundle) {
+            exportBundle(); // shows a progress dialog
+            return;
+        }
         // Start image prediction (one by one)
         predictImages(); // shows a progress dialog
     }
 
+    /**
+     * Export the selected images, the model and the parameters as a job bundle,
+     * that can be predicted on another machine (see JobBundle).
+     */
+    private void exportBundle() {
+        File bundle_dir = FileChoosers.promptForDirectory(title, null);
+        if (bundle_dir == null) return;
+        String[] existing = bundle_dir.list();
+        if (existing != null && existing.length > 0 &&
+                !Dialogs.showYesNoDialog(title, "The selected folder is not empty.\nExisting files may be overwritten.\nDo you want to continue?")) {
+            return;
+        }
+        OpInEx ops = new OpInEx(qupath);
+        Task<Void> worker = new Task<>() {
+            @Override
+            protected Void call() {
+                updateMessage("Exporting " + selectedImages.size() + " images...");
+                JobBundle.export(ops, bundle_dir, selectedImages, modelPath, threshold, resolution, anno_name, doSplit, doRemove);
+                return null;
+            }
+        };
+        ProgressDialog progress = new ProgressDialog(worker);
+        progress.initOwner(qupath.getStage());
+        progress.setTitle("Exporting...");
+        progress.getDialogPane().setHeaderText("Exporting job bundle...");
+        progress.getDialogPane().setGraphic(null);
+        EV2UNetJobScheduler.getInstance().submit(title, EV2UNetJobScheduler.Priority.NORMAL, worker);
+        runningTask.set(worker);
+        progress.showAndWait();
+
+        if (worker.getException() != null) {
+            logger.error("Could not export the job bundle", worker.getException());
+            Dialogs.showErrorMessage(title, "Could not export the job bundle:\n" + worker.getException().getLocalizedMessage());
+        }
+        else {
+            Dialogs.showConfirmDialog("Job bundle exported", "The job bundle has been exported to\n" + bundle_dir.getAbsolutePath() +
+                    "\nRun 'run_prediction.sh' (or 'run_prediction.bat') with the EfficientV2UNet python,\n" +
+                    "then load the results with 'Ingest job bundle results'.");
+        }
+    }
+
     /**
      * Create and show a dialog for predicting images from a selection.
      * @return boolean: true if the dialog was not cancelled
@@ -150,6 +211,31 @@ public class EV2UNetPredictCommand implements Runnable{
         modelFilePathField.setMaxWidth(Double.MAX_VALUE);
         btnChooseFile.setMaxWidth(Double.MAX_VALUE);
 
+        // Drop-down of the models indexed in the project (and in the model folders of the preferences)
+        Label modelComboLabel = new Label("Indexed models");
+        ComboBox<ModelRegistry.Model> modelCombo = new ComboBox<>();
+        modelCombo.getItems().setAll(getRegistry().getModels());
+        modelCombo.setPromptText(modelCombo.getItems().isEmpty() ? "None, press 'Refresh'" : "Select a model");
+        Button btnRefreshModels = new Button("Refresh");
+        btnRefreshModels.setOnAction(e -> {
+            getRegistry().refresh();
+            modelCombo.getItems().setAll(getRegistry().getModels());
+            modelCombo.setPromptText(modelCombo.getItems().isEmpty() ? "No models found" : "Select a model");
+        });
+        modelCombo.setOnAction(e -> {
+            ModelRegistry.Model model = modelCombo.getSelectionModel().getSelectedItem();
+            if (model == null || !model.getFile().exists()) return;
+            modelFilePath = model.getFile();
+            modelFilePathField.setText(modelFilePath.getAbsolutePath());
+            readModelMetadata();
+            dialog.getDialogPane().lookupButton(btnPredict).setDisable(listSelectionView.getTargetItems().isEmpty());
+        });
+        modelComboLabel.setLabelFor(modelCombo);
+        GridPaneUtils.addGridRow(optionsPane, row++, 0, "Models found in 'Efficient_V2_UNet/models' and 'models' of the project, and in the model folders of the preferences",
+                modelComboLabel, modelCombo, btnRefreshModels);
+        modelCombo.setMaxWidth(Double.MAX_VALUE);
+        btnRefreshModels.setMaxWidth(Double.MAX_VALUE);
+
         // Chooser for path class
         Label pathClassLabel = new Label("Assign to class");
         pathClassCombo = new ComboBox<>();
@@ -173,6 +259,13 @@ public class EV2UNetPredictCommand implements Runnable{
         GridPaneUtils.addGridRow(optionsPane, row++, 0, "Remove ALL existing objects before adding the predicted objects",
                 cbRemoveAnnos, cbRemoveAnnos, cbRemoveAnnos);
 
+        // Chooser for predicting only new or changed images
+        CheckBox cbOnlyNew = new CheckBox("Only new or changed images");
+        cbOnlyNew.setTooltip(new Tooltip("Skip images already predicted with the same model and parameters (and unchanged since)"));
+        cbOnlyNew.setSelected(onlyNewOrChanged);
+        GridPaneUtils.addGridRow(optionsPane, row++, 0, "Skip images already predicted with the same model and parameters (and unchanged since)",
+                cbOnlyNew, cbOnlyNew, cbOnlyNew);
+
         // Slider for threshold
         Label thresholdLabel = new Label("Threshold");
         Slider thresholdSlider = new Slider(0.0, 1.0, threshold);
@@ -243,6 +336,7 @@ public class EV2UNetPredictCommand implements Runnable{
         anno_name = pathClassCombo.getSelectionModel().getSelectedItem();
         doSplit = cbSplitROIs.isSelected();
         doRemove = cbRemoveAnnos.isSelected();
+        onlyNewOrChanged = cbOnlyNew.isSelected();
         threshold = thresholdSlider.getValue();
         // resolution already taken care of with 'onAction'
         //resolution = Integer.parseInt(resolutionCombo.getSelectionModel().getSelectedItem());
@@ -264,12 +358,13 @@ public class EV2UNetPredictCommand implements Runnable{
      * calls the corresponding public method, with the variables defined in the dialog
      */
     private void predictImages() {
-        predictImages(modelPath, threshold, resolution, selectedImages, anno_name, doSplit, doRemove);
+        predictImages(modelPath, threshold, resolution, selectedImages, anno_name, doSplit, doRemove, onlyNewOrChanged);
     }
 
     /**
-     * Saves the images to be predicted as tif files into the temp folder.
-     * Calls the predict CLI, which saves the predictions into the predictions folder.
+     * Saves the images to be predicted as tif files into the temp folder of a new run workspace.
+     * Calls the predict CLI, which saves the predictions into the prediction folder of the workspace.
+     * If the run does not finish, the workspace is kept and the run can be resumed with resume().
      * @param model_path: String path to the model h5 file
      * @param thresh: Double threshold for prediction
      * @param res: Integer resolution to perform the prediction on, e.g. 1, 2, 3...
@@ -285,20 +380,144 @@ public class EV2UNetPredictCommand implements Runnable{
             String annotationClassName,
             boolean splitObject,
             boolean removeExistingAnnotations) {
+        predictImages(model_path, thresh, res, images, annotationClassName, splitObject, removeExistingAnnotations, false);
+    }
+
+    /**
+     * Same as above, optionally skipping the images that have already been predicted
+     * with the same model and parameters (see PredictionProvenance).
+     * @param onlyNewOrChanged: boolean, whether to predict only new or changed images
+     */
+    public void predictImages(
+            String model_path,
+            Double thresh,
+            Integer res,
+            List<ProjectImageEntry<BufferedImage>> images,
+            String annotationClassName,
+            boolean splitObject,
+            boolean removeExistingAnnotations,
+            boolean onlyNewOrChanged) {
 
         // create OPs object
         OpInEx opInEx = new OpInEx(qupath);
+        PredictionWorkspace workspace = PredictionWorkspace.createRun(opInEx.getRuns_dir());
+        PredictionManifest manifest = new PredictionManifest(model_path, thresh, res, annotationClassName, splitObject, removeExistingAnnotations);
 
         // Create a task
-        PredictTask worker = new PredictTask(images, opInEx.getTemp_dir(),  model_path, opInEx.getPrediction_dir(), res, thresh, annotationClassName, splitObject, removeExistingAnnotations, opInEx);
+        PredictTask worker = new PredictTask(images, manifest, workspace, opInEx);
+        worker.setOnlyNewOrChanged(onlyNewOrChanged);
+        runPredictTask(worker, "Predict " + images.size() + " images",
+                images.size() > 1 ? EV2UNetJobScheduler.Priority.BATCH : EV2UNetJobScheduler.Priority.NORMAL);
+    }
 
+    /**
+     * Predict the image currently opened in the viewer, with the model and parameters
+     * last used in the predict dialog. Runs as interactive job, so it does not wait
+     * for batch predictions running in the background.
+     * The predicted objects are added to the opened image (which is not saved).
+     */
+    public void predictCurrentImage() {
+        project = qupath.getProject();
+        if (project == null) {
+            GuiTools.showNoProjectError("Please open a project first");
+            return;
+        }
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        if (imageData == null) {
+            GuiTools.showNoImageError("Please open an image first");
+            return;
+        }
+        if (modelFilePath == null || !modelFilePath.exists()) {
+            modelFilePath = FileChoosers.promptForFile(title, FileChoosers.createExtensionFilter("File types", ".h5"));
+            if (modelFilePath == null) return;
+        }
+        EfficientV2UNet ev2unet = EfficientV2UNet.builder()
+                .doPredict(true)
+                .setProject(project)
+                .setModelPath(modelFilePath.getAbsolutePath())
+                .setThreshold(threshold)
+                .setResolution(resolution)
+                .setAnnotationClassName(anno_name == null ? "Region" : anno_name)
+                .doSplitObject(doSplit)
+                .doRemoveExistingAnnotations(doRemove)
+                .build();
+        String image_name = imageData.getServer().getMetadata().getName();
+        // the objects are predicted on the worker, and added to the opened image on the JavaFX thread
+        Task<List<PathObject>> worker = new Task<>() {
+            @Override
+            protected List<PathObject> call() {
+                updateMessage("Predicting " + image_name + "...");
+                return ev2unet.predictObjects(imageData);
+            }
+        };
+        worker.setOnSucceeded(e -> {
+            ev2unet.addPredictedObjects(imageData, worker.getValue());
+            Dialogs.showInfoNotification("Prediction", "Predicted " + image_name);
+        });
+        worker.setOnFailed(e -> {
+            logger.error("Could not predict " + image_name, worker.getException());
+            Dialogs.showErrorNotification("Prediction", "Could not predict " + image_name + ":\n" + worker.getException().getLocalizedMessage());
+        });
+        EV2UNetJobScheduler.getInstance().submit("Predict " + image_name, EV2UNetJobScheduler.Priority.INTERACTIVE, worker);
+    }
+
+    /**
+     * Resume a prediction run that did not finish (e.g. because QuPath or python crashed, or it was cancelled),
+     * or discard it (deleting its workspace).
+     * Images that have already been predicted and saved are skipped.
+     */
+    public void resume() {
+        project = qupath.getProject();
+        if (project == null) {
+            GuiTools.showNoProjectError("Please open a project first");
+            return;
+        }
+        OpInEx opInEx = new OpInEx(qupath);
+        List<PredictionWorkspace> runs = opInEx.getUnfinishedRuns();
+        if (runs.isEmpty()) {
+            Dialogs.showInfoNotification("Resume prediction", "There is no interrupted prediction to resume.");
+            return;
+        }
+        // Let the user choose the run, showing how far it got
+        Map<String, PredictionWorkspace> choices = new LinkedHashMap<>();
+        runs.forEach(w -> {
+            List<String> ids = w.readManifest().getEntries().stream().map(PredictionManifest.Entry::getId).toList();
+            choices.put(w.getRunId() + " (" + w.getJournal().countSaved(ids) + "/" + ids.size() + " images done)", w);
+        });
+        String choice = Dialogs.showChoiceDialog("Resume prediction", "Choose the prediction to resume",
+                choices.keySet(), choices.keySet().iterator().next());
+        if (choice == null) return;
+
+        PredictionWorkspace workspace = choices.get(choice);
+        String action = Dialogs.showChoiceDialog("Resume prediction", "Resume or discard " + workspace.getRunId() + "?\n" +
+                "Discarding deletes the images of the run that are not saved yet.", List.of("Resume", "Discard"), "Resume");
+        if (action == null) return;
+        if (action.equals("Discard")) {
+            if (workspace.delete()) logger.info("Discarded prediction run: " + workspace.getRoot().getAbsolutePath());
+            else Dialogs.showErrorNotification("Resume prediction", "Could not delete all files of " + workspace.getRoot().getAbsolutePath());
+            return;
+        }
+        List<ProjectImageEntry<BufferedImage>> images = new ArrayList<>(opInEx.map_manifest_entries(workspace).keySet());
+        runPredictTask(new PredictTask(images, workspace.readManifest(), workspace, opInEx),
+                "Resume " + workspace.getRunId(), EV2UNetJobScheduler.Priority.BATCH);
+    }
+
+    /**
+     * Run a PredictTask with the job scheduler, showing a progress dialog.
+     * The dialog can be closed with 'Run in background', the job can then be followed in the job queue.
+     * @param worker: PredictTask
+     * @param name: String name of the job
+     * @param priority: EV2UNetJobScheduler.Priority of the job
+     */
+    private void runPredictTask(PredictTask worker, String name, EV2UNetJobScheduler.Priority priority) {
         // Create a progress dialog
         ProgressDialog progress = new ProgressDialog(worker);
         progress.initOwner(qupath.getStage());
         progress.setTitle("Predicting...");
         progress.getDialogPane().setHeaderText("Predicting...");
         progress.getDialogPane().setGraphic(null);
-        progress.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+        ButtonType btnBackground = new ButtonType("Run in background", ButtonBar.ButtonData.OTHER);
+        progress.getDialogPane().getButtonTypes().addAll(btnBackground, ButtonType.CANCEL);
         progress.setWidth(700); // this does not work...
         progress.setHeight(300);
         progress.setResizable(true);
@@ -310,25 +529,59 @@ public class EV2UNetPredictCommand implements Runnable{
                 progress.getDialogPane().lookupButton(ButtonType.CANCEL).setDisable(true);
                 worker.cancel(true);
             }
-            else if (Dialogs.showYesNoDialog("Cancel prediction?", "Are you sure you want to cancel the prediction?\nSome steps may still run in the background...")) {
+            else if (Dialogs.showYesNoDialog("Cancel prediction?", "Are you sure you want to cancel the prediction?\nThe exported images are deleted, images that are not saved yet\ncan be exported and predicted again later\nwith 'Resume interrupted prediction' (or discarded there).")) {
                 progress.setHeaderText("Cancelling...");
                 progress.getDialogPane().lookupButton(ButtonType.CANCEL).setDisable(true);
                 worker.cancel(true);
             }
             e.consume();
         });
+        // Hide the dialog, the task keeps running
+        progress.getDialogPane().lookupButton(btnBackground).addEventFilter(ActionEvent.ACTION, e -> {
+            progress.hide();
+            e.consume();
+        });
 
         // Create & run task
-        runningTask.set(qupath.getThreadPoolManager().getSingleThreadExecutor(this).submit(worker));
+        EV2UNetJobScheduler.getInstance().submit(name, priority, worker);
+        runningTask.set(worker);
 
         progress.showAndWait();
-        // Throw errors
+        if (worker.isDone()) finishPredictTask(worker);
+        else {
+            Dialogs.showInfoNotification("Prediction", "The prediction continues in the background.\n" +
+                    "See 'Show job queue' for its progress.");
+            worker.stateProperty().addListener((v, o, n) -> {
+                if (n == Worker.State.SUCCEEDED || n == Worker.State.FAILED || n == Worker.State.CANCELLED)
+                    finishPredictTask(worker);
+            });
+        }
+    }
+
+    /**
+     * Notify the results of a finished PredictTask
+     * @param worker: PredictTask
+     */
+    private void finishPredictTask(PredictTask worker) {
+        if (worker.skipped > 0) {
+            Dialogs.showInfoNotification("Prediction", worker.skipped + " images were skipped,\n" +
+                    "as they were already predicted with the same model and parameters.");
+        }
+        if (worker.remaining > 0 && worker.error != 0) {
+            Dialogs.showWarningNotification("Prediction not finished", worker.remaining + " images have not been predicted.\n" +
+                    "Use 'Resume interrupted prediction' to continue.");
+        }
+        // Show errors
         if (worker.error != 1) {
             if (worker.error == 2) {
-                throw new RuntimeException("Could not build virtual environment");
+                Dialogs.showErrorMessage("Prediction", "Could not build virtual environment");
             }
             else if (worker.error == 3) {
-                throw new RuntimeException("Exception while running the virtual environment CLI command");
+                Dialogs.showErrorMessage("Prediction", "Exception while running the virtual environment CLI command");
+            }
+            else if (worker.error == 5) {
+                Dialogs.showErrorMessage("Prediction", "The prediction failed" +
+                        (worker.error_message.isEmpty() ? "" : ":\n" + worker.error_message));
             }
         }
         else logger.info("Finished predicting!");
@@ -336,7 +589,16 @@ public class EV2UNetPredictCommand implements Runnable{
 
 
     /**
-     * This function reads the model metadata,
+     * Get the model registry of the project (created on first use)
+     * @return ModelRegistry
+     */
+    private ModelRegistry getRegistry() {
+        if (registry == null) registry = ModelRegistry.forProject(new OpInEx(qupath));
+        return registry;
+    }
+
+    /**
+     * This function reads the model metadata (from the model registry),
      * and displays information in the UI if found.
      */
     private void readModelMetadata() {
@@ -345,259 +607,88 @@ public class EV2UNetPredictCommand implements Runnable{
         String strInfoModel = "-> Model parameters:\t\t\t\t";
         String strInfoModelBest = "-> Best checkpoint model parameters:\t";
 
-        // file if name happens to be the same as selected model
-        File file_json = new File(modelFilePath.getParent(), modelFilePath.getName().replace(".h5", ".json"));
-        // search for json files in folder
-        File dir = new File(modelFilePath.getParent());
-        Optional<File> file_found = Arrays.stream(dir.listFiles()).filter(f -> f.getName().endsWith(".json")).findFirst();
-
-        // Check if same name file as json is present
-        String[] metadata;
-        if (file_json.exists()) {
-            metadata = read_json(file_json);
-            strInfoModel += "Threshold = " + metadata[0] + "; Resolution = " + metadata[1];
-            strInfoModelBest += "Threshold = " + metadata[2] + "; Resolution = " + metadata[3];
-        } else if (file_found.isPresent()) {
-            // otherwise try to find any json
-            metadata = read_json(file_found.get());
-            strInfoModel += "Threshold = " + metadata[0] + "; Resolution = " + metadata[1];
-            strInfoModelBest += "Threshold = " + metadata[2] + "; Resolution = " + metadata[3];
-        } else {
-            // else no json-file found
+        ModelRegistry.Model model = getRegistry().get(modelFilePath);
+        if (!model.hasMetadataJson()) {
+            // no json-file found
             strInfoModel += "No metadata json-file found";
             strInfoModelBest += "No metadata json-file found";
         }
+        else {
+            strInfoModel += model.getThreshold() == null ? "No metadata found" :
+                    "Threshold = " + model.getThreshold() + "; Resolution = " + model.getResolution();
+            strInfoModelBest += model.getBestThreshold() == null ? "No metadata found" :
+                    "Threshold = " + model.getBestThreshold() + "; Resolution = " + model.getBestResolution();
+        }
         infoModel.setText(strInfoModel);
         infoModelBest.setText(strInfoModelBest);
     }
 
     /**
-     * Reads a json file, to find the best metrics metadata
-     * @param json_file
-     * @return String[] with 4 values [normal_thresh, normal_res, best_thresh, best_res]
-     *      also if the (wrong) json file does not contain the needed info,
-     *      the function returns an array with "No metadata found"-values
+     * Runs a PredictionRun as a JavaFX task, forwarding its progress to the progress dialog
      */
-    private String[] read_json(File json_file) {
-        // String array for read metrics [normal_thresh, normal_res, best_thresh, best_res]
-        String[] resultArray = {"No metadata found", "", "No metadata found", ""};
-        try {
-            // Read file
-            Gson gson = new Gson();
-            JsonReader reader = new JsonReader(new FileReader(json_file));
-            // convert the json file into a map
-            Map<String, Object> stringObjectMap = gson.fromJson(reader, new TypeToken<Map<String, Object>>() {}.getType());
-
-            // check if map contains the key 'test_metrics'
-            if (!stringObjectMap.containsKey("test_metrics")) {
-                logger.info("No test_metrics found in json file: " + json_file.getAbsolutePath());
-            }
-            else {
-                // find the values - get the test_metrics dictionary
-                Map<String, Map<String, Map<String, Object>>> test_metrics = (Map<String, Map<String, Map<String, Object>>>) stringObjectMap.get("test_metrics");
-                test_metrics.keySet().forEach(k -> {
-                    // for 'normal' and 'best-ckp' model
-                    if (k.endsWith("best-ckp.h5")) {
-                        // best-ckp model
-                        String res = test_metrics.get(k).get("best_binary_iou_parameters").get("best_resolution").toString();
-                        res = res.substring(res.length() - 1);
-                        resultArray[3] = res;
-                        resultArray[2] = test_metrics.get(k).get("best_binary_iou_parameters").get("best_threshold").toString();
-                    } else if (k.endsWith(".h5")) {
-                        // 'normal' model
-                        String res = test_metrics.get(k).get("best_binary_iou_parameters").get("best_resolution").toString();
-                        res = res.substring(res.length() - 1);
-                        resultArray[1] = res;
-                        resultArray[0] = test_metrics.get(k).get("best_binary_iou_parameters").get("best_threshold").toString();
-                    }
-                    else logger.trace("found key for model name without .h5-ending: " + k);
-                });
-            }
-
-        } catch (FileNotFoundException e) {
-            logger.error("Could not find JSON file: " + e.getLocalizedMessage());
-        } catch (Exception e) {
-            logger.error("Error during reading of the JSON file: " + e.getLocalizedMessage());
-        }
-        return resultArray;
-    }
-
     class PredictTask extends Task<Void> {
-        private List<ProjectImageEntry<BufferedImage>> imagesToPredict;
-        private String annotationClassName;
-        private boolean splitAnnotations;
-        private boolean removeExistingAnnotations;
-        private OpInEx ops;
-        private String dir;
-        private String model_path;
-        private String out_dir;
-        private Integer resolution;
-        private Double threshold;
-        private Integer error = 1;  // 0 = cancelled, 1 = all fine
-                                    // 2 = CLI exe error, 3 = Venv error,
-        private Integer cur_image_count = 1;
-        private Integer count = 0;
-
-
-
+        private final PredictionRun run;
+        // written on the worker, read on the JavaFX thread
+        private volatile Integer error = 1;  // 0 = cancelled, 1 = all fine
+                                             // 2 = CLI exe error, 3 = Venv error, 5 = interrupted or failed
+        private volatile String error_message = ""; // details of the error
+        private volatile int remaining = 0; // images not saved at the end of the run
+        private volatile int skipped = 0; // images skipped, as they are up to date
 
+        /**
+         * Constructor
+         * @param imagesToPredict: List of ProjectImageEntry of the run
+         * @param manifest: PredictionManifest with the prediction parameters
+         * @param workspace: PredictionWorkspace of the run (a new or an unfinished one)
+         * @param ops: OpInEx of the project
+         */
         public PredictTask(
                 List<ProjectImageEntry<BufferedImage>> imagesToPredict,
-                String dir,
-                String model_path,
-                String out_dir,
-                Integer resolution,
-                Double threshold,
-                String annotationClassName,
-                boolean splitAnnotations,
-                boolean removeExistingAnnotations,
+                PredictionManifest manifest,
+                PredictionWorkspace workspace,
                 OpInEx ops) {
-            this.imagesToPredict = imagesToPredict;
-            this.dir = dir;
-            this.model_path = model_path;
-            this.out_dir = out_dir;
-            this.resolution = resolution;
-            this.threshold = threshold;
-            this.annotationClassName = annotationClassName;
-            this.splitAnnotations = splitAnnotations;
-            this.removeExistingAnnotations = removeExistingAnnotations;
-            this.ops = ops;
+            EV2UnetSetup setup = EV2UnetSetup.getInstance();
+            this.run = new PredictionRun(imagesToPredict, manifest, workspace, ops,
+                    setup.getEv2unetPythonPath(), setup.getEnvtype());
+            this.run.setListener(new PredictionRun.Listener() {
+                @Override
+                public void updateMessage(String message) {
+                    PredictTask.this.updateMessage(message);
+                }
+
+                @Override
+                public void updateProgress(long done, long total) {
+                    PredictTask.this.updateProgress(done, total);
+                }
+            });
+        }
+
+        /**
+         * Specify whether to skip the images that are up to date (see PredictionProvenance)
+         * @param onlyNewOrChanged: boolean
+         */
+        public void setOnlyNewOrChanged(boolean onlyNewOrChanged) {
+            run.setOnlyNewOrChanged(onlyNewOrChanged);
         }
 
         @Override
         public boolean cancel(boolean b) {
             this.error = 0;
+            run.cancel();
             return super.cancel(b);
         }
 
         @Override
         protected Void call() {
-            long startTime = System.currentTimeMillis();
-            int final_count = 4 + imagesToPredict.size();
-            // Export the images that need to be predicted  -------------------
-            updateProgress(count, final_count);
-            count++;
-            updateMessage("Exporting images...");
-            //ArrayList<File> tempFiles = ops.exportTempImages(imagesToPredict); Fixme
-            HashMap<ProjectImageEntry<BufferedImage>, File> tempFiles = ops.exportImagesToPredict(imagesToPredict);
-            logger.info("Exported temp images.");
-
-            // Start the prediction
-            updateProgress(count, final_count);
-            count++;
-            updateMessage("Predicting images...");
-            logger.info("Predicting images...");
-
-            // Build the environment runner                 -------------------
-            VirtualEnvironmentRunner venv = buildPredictVenvRunner();
-            if (venv == null) {
-                this.error = 2;
-                updateMessage("Failed to build VENV");
-                return null;
+            PredictionRun.Result result = run.run();
+            remaining = result.getRemaining();
+            skipped = result.getSkipped();
+            if (error != 0) {
+                error = result.getError();
+                error_message = result.getErrorMessage();
             }
-            // Run the CLI
-            try {
-                venv.runCommand(false);
-            } catch (IOException e) {
-                logger.error("Error occurred when running the VENV: " + e.getLocalizedMessage());
-                this.error = 3;
-                return null;
-            }
-            // Get process to show the progress in the process-dialog
-            Process process = venv.getProcess();
-            List<String> logResults = new ArrayList<>();
-
-            updateProgress(count, final_count);
-            count++;
-
-            Thread t = new Thread(Thread.currentThread().getName() + "-" + process.hashCode()) {
-                @Override
-                public void run() {
-                    BufferedReader stdIn = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                    try {
-                        for (String line = stdIn.readLine(); line != null; ) {
-                            logResults.add(line);
-                            if (line.startsWith("Tiling") && cur_image_count != imagesToPredict.size()) {
-                                cur_image_count++;
-                                updateProgress(count, final_count);
-                                count++;
-                            }
-                            updateMessage("Predicting....\nPredicting image " + cur_image_count + "/" + imagesToPredict.size()+ "\n" + line);
-                            line = stdIn.readLine();
-                        }
-                    } catch (IOException e) {
-                        error = 3;
-                        logger.warn(e.getMessage());
-                    }
-                }
-            };
-            t.setDaemon(true);
-            t.start();
-
-            // wait for the process to finish
-            try {
-                process.waitFor();
-            } catch (InterruptedException e) {
-                logger.error("CLI execution/interruption error: " + e);
-                this.error = 5;
-                return null;
-            }
-            logger.info("Prediction finished");
-
-            // Load the masks
-            updateProgress(count, final_count);
-            count++;
-            updateMessage("Loading predictions...");
-            Map<Integer, String> label_name_map = Map.ofEntries(Map.entry(1, annotationClassName)); // map of label id to annotation class name
-            //ops.batch_load_maskFiles(ops.getPredictionFiles(), imagesToPredict, splitAnnotations, removeExistingAnnotations, label_name_map); FIXME
-            ops.batch_load_maskFiles(tempFiles, splitAnnotations, removeExistingAnnotations, label_name_map);
-            logger.info("Predictions loaded.");
-
-            // Delete the temp files
-            updateProgress(count, final_count);
-            count++;
-            updateMessage("Deleting temporary files...");
-            ops.deleteTempFiles();
-            ops.deletePredictionFiles(ops.getPredictionFiles());
-            logger.info("Deleted temporary files.");
-
-            long endTime = System.currentTimeMillis();
-            logger.info("Prediction took " + (endTime - startTime) / 1000 + " seconds.");
-
             return null;
         }
-
-        /**
-         * Function to create the VENV for predicting
-         * @return VirtualEnvironmentRunner with commands set for prediction
-         */
-        private VirtualEnvironmentRunner buildPredictVenvRunner() {
-            EV2UnetSetup setup = EV2UnetSetup.getInstance();
-            if (setup.getEv2unetPythonPath().isEmpty()) {
-                return null;
-            }
-            VirtualEnvironmentRunner venv = new VirtualEnvironmentRunner(
-                    // FIXME adjust for oli's "conda-returns" branch - probably not necessary
-                    //setup.getEv2unetPythonPath(), setup.getEnvtype(), setup.getCondaPath(), this.getClass().getSimpleName()
-                    setup.getEv2unetPythonPath(), setup.getEnvtype(), this.getClass().getSimpleName()
-            );
-            // Build the cli arguments
-            List<String> args = new ArrayList<>(Arrays.asList("-W", "ignore","-m", "efficient_v2_unet", "--predict"));
-            args.add("--dir");
-            args.add(dir);
-            args.add("--model");
-            args.add(model_path);
-            args.add("--resolution");
-            args.add(resolution.toString());
-            args.add("--threshold");
-            args.add(threshold.toString());
-            args.add("--savedir");
-            args.add(out_dir);
-            args.add("--use_less_memory");
-
-            venv.setArguments(args);
-            return venv;
-        }
     }
 
 } // end (main) class
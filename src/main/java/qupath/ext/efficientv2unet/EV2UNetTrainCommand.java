@@ -28,13 +28,13 @@ import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 
@@ -92,6 +92,7 @@ public class EV2UNetTrainCommand implements Runnable {
         // Only export if selected
         if (export_only) {
             OpInEx ops = new OpInEx(qupath);
+            ops.create_output_folders();
             ops.exportImageMaskPair(selectedImages, cropSelection, fgSelection);
             Dialogs.showConfirmDialog("Image/Mask paris exported", "The image/mask paris have been exported to\n " +
                     ops.getImages_dir() + "\n" + ops.getMasks_dir() + "\nrespectively.");
@@ -360,8 +361,7 @@ public class EV2UNetTrainCommand implements Runnable {
                 progress.getDialogPane().lookupButton(ButtonType.CANCEL).setDisable(true);
                 worker.cancel(true);
             }
-            // Fixme: if cancel, then some tasks might still run in the background.
-            else if (Dialogs.showYesNoDialog("Cancel training?", "Are you sure you want to cancel the training?\nSome tasks might still run in the background...")) {
+            else if (Dialogs.showYesNoDialog("Cancel training?", "Are you sure you want to cancel the training?\nThe training will be stopped.")) {
                 progress.setHeaderText("Cancelling...");
                 progress.getDialogPane().lookupButton(ButtonType.CANCEL).setDisable(true);
                 worker.cancel(true);
@@ -370,7 +370,8 @@ public class EV2UNetTrainCommand implements Runnable {
         });
 
         // Create & run task
-        runningTask.set(qupath.getThreadPoolManager().getSingleThreadExecutor(this).submit(worker));
+        EV2UNetJobScheduler.getInstance().submit("Train " + base_model + " (" + epochs + " epochs)", EV2UNetJobScheduler.Priority.BATCH, worker);
+        runningTask.set(worker);
         progress.showAndWait();
         // Throw errors
         if (worker.error != 1) {
@@ -388,7 +389,8 @@ public class EV2UNetTrainCommand implements Runnable {
                 throw new IllegalStateException("The EfficientV2UNet python path is empty. Please set it in Edit > Preferences.");
             }
             else if (worker.error == 5) {
-                throw new RuntimeException("CLI execution/interruption error...");
+                throw new RuntimeException("CLI execution/interruption error..." +
+                        (worker.getErrorMessage().isEmpty() ? "" : System.lineSeparator() + worker.getErrorMessage()));
             }
         }
         else {
@@ -397,7 +399,8 @@ public class EV2UNetTrainCommand implements Runnable {
             String path = "EfficientV2UNet_" + base_model + "_epochs" + epochs;
             path = ops.getTraining_root() + "/models/" + path;
             Dialogs.showConfirmDialog("Finished training!", "Your EfficientV2UNet models were saved to:\n" +
-                    path + "\nImages were stored to:\n" + ops.getImages_dir() + " \nand\n" + ops.getMasks_dir());
+                    path + "\nImages were stored to:\n" + ops.getImages_dir() + " \nand\n" + ops.getMasks_dir() +
+                    (worker.getMetrics().isEmpty() ? "" : "\n\nTest metrics:\n" + worker.getMetrics()));
             logger.trace("The EfficientV2UNet models were saved to:\n"  + path + "\nImages were stored to:\n" + ops.getImages_dir() + " \nand\n" + ops.getMasks_dir());
         }
     }
@@ -409,10 +412,15 @@ public class EV2UNetTrainCommand implements Runnable {
         private Integer epochs;
         private List<ProjectImageEntry<BufferedImage>> selected_images;
         private OpInEx ops;
+        private volatile ProcessSupervisor supervisor;
+        private final ProgressBus bus = new ProgressBus();
+        private volatile String epoch_line = "";
+        private volatile String metrics = ""; // metrics of the trained models (see ModelRegistry)
         private boolean quietCancel = false;
         private EV2UnetSetup setup = EV2UnetSetup.getInstance();
-        private int error = 1; // 0 = cancelled, 1 = all fine, 2 = not enough training images,
+        private volatile int error = 1; // 0 = cancelled, 1 = all fine, 2 = not enough training images,
                                // 3 = crop sub-folder present, 4 = invalid setup, 5 = other error
+        private volatile String error_message = ""; // details of an error 5, e.g. the last output of a failed process
 
         /**
          * Constructor
@@ -434,6 +442,7 @@ public class EV2UNetTrainCommand implements Runnable {
             this.epochs = epochs;
             this.selected_images = selected_images;
             this.ops = new OpInEx(qupath);
+            ops.create_output_folders();
         }
 
         /**
@@ -444,40 +453,63 @@ public class EV2UNetTrainCommand implements Runnable {
             return ops;
         }
 
+        /**
+         * Get the progress events of the training
+         * @return ProgressBus
+         */
+        public ProgressBus getProgressBus() {
+            return bus;
+        }
+
+        /**
+         * Get the metrics of the trained models
+         * @return String, empty if the training did not finish
+         */
+        public String getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Get the details of a failed training
+         * @return String, empty if there are none
+         */
+        public String getErrorMessage() {
+            return error_message;
+        }
+
         @Override
         public boolean cancel(boolean b) {
             this.error = 0;
+            // stop the python process (and its children), call() cleans up once it has ended
+            ProcessSupervisor s = supervisor;
+            if (s != null) s.terminateAsync();
             return super.cancel(b);
         }
 
         public boolean dataAlreadySplit(String path) {
             if (new File(path, "train").exists()) return true;
-            else if (new File(path, "train").exists()) return true;
-            else if (new File(path, "train").exists()) return true;
+            else if (new File(path, "val").exists()) return true;
+            else if (new File(path, "test").exists()) return true;
             else return false;
         }
 
-        private void read_metrics(File json_file) {
-            // TODO implement, but it is not super necessary
+        /**
+         * Index the trained models in the model registry of the project, and describe their metrics
+         * @param model_dir: File folder the models were saved to
+         * @return String metrics of the models in the folder
+         */
+        private String read_metrics(File model_dir) {
+            ModelRegistry registry = ModelRegistry.forProject(ops);
+            registry.refresh(List.of(model_dir));
+            return registry.getModels().stream()
+                    .filter(m -> model_dir.toPath().toAbsolutePath().equals(m.getFile().toPath().getParent()))
+                    .map(ModelRegistry.Model::describe)
+                    .collect(Collectors.joining("\n"));
         }
 
         @Override
         protected Void call() {
 
-            // FIXME TEMP for testing the read_metrics() -> to show them at the end of the training.
-            /*
-            // try to show metrics
-            File json_file = new File(ops.getTraining_root(), "models/EfficientV2UNet_"+base_model+"_epochs"+epochs+"/EfficientV2UNet_"+base_model+"_epochs"+epochs+".json");
-            System.out.println("should be folder: " + json_file.getAbsolutePath());
-            // temp overwriting with existing file
-            json_file = new File(qupath.getProject().getPath().getParent().toFile(), "models/b3_Ntrain66_Nval14_Ntest14_epochs200/b3_Ntrain66_Nval14_Ntest14_epochs200.json");
-            System.out.println("poject folder exists: " + json_file.exists() + ": " + json_file.getAbsolutePath());
-            read_metrics(json_file);
-
-            if (2==2) return null;
-            */
-            //FIXME TEMP
-
             // Check that the environment was set up properly
             if (setup.getEv2unetPythonPath().isEmpty()) {
                 this.error = 4;
@@ -490,10 +522,8 @@ public class EV2UNetTrainCommand implements Runnable {
                 return null;
             }
             long startTime = System.currentTimeMillis();
-            int count = 0;
             // Export images to be trained
-            updateProgress(count, 2);
-            count++;
+            updateProgress(0, 2 + epochs);
             updateMessage("Exporting images");
 
             // Check if data has already been split
@@ -515,7 +545,10 @@ public class EV2UNetTrainCommand implements Runnable {
                 return null;
             }
 
+            StageTimings timings = new StageTimings("train-" + base_model + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+            long start = StageTimings.start();
             ops.exportImageMaskPair(selected_images, crop_selection, fg_selection);
+            timings.stop(StageTimings.EXPORT, start);
             // Check if there is enough tiffs and abort if not?
             List<File> availableTifFiles = ops.getTifFilesInFolder(ops.getImages_dir());
             if (availableTifFiles.size() < 3) {
@@ -529,76 +562,109 @@ public class EV2UNetTrainCommand implements Runnable {
                 return null;
             }
 
-            // start the training
-            updateProgress(count, 2);
-            count++;
-            updateMessage("Training...");
-            // Create Venv runner
-            VirtualEnvironmentRunner venv = new VirtualEnvironmentRunner(
-                    setup.getEv2unetPythonPath(), setup.getEnvtype(), this.getClass().getSimpleName()
-            );
-            // Create cli command
-            List<String> args = new ArrayList<>(Arrays.asList("-W", "ignore", "-m", "efficient_v2_unet", "--train"));
-            args.add("--images");
-            args.add(ops.getImages_dir());
-            args.add("--masks");
-            args.add(ops.getMasks_dir());
-            args.add("--basedir");
-            args.add(ops.getTraining_root());
-            args.add("--name");
-            args.add("EfficientV2UNet_" + base_model + "_epochs" + epochs);
-            args.add("--basemodel");
-            args.add(base_model);
-            args.add("--epochs");
-            args.add(epochs.toString());
-            venv.setArguments(args);
-
-            // run the command
+            // start the training (the progress of the python process is coalesced by the bus)
+            String stage = "Training... \n";
+            if (Platform.getCurrent() == Platform.OSX) stage = "Training... May not work on MacOS" + "\n";
+            bus.setTotal(2 + epochs);
+            bus.setExpectedEpochs(epochs);
+            bus.addSnapshotListener(snapshot -> {
+                updateProgress(snapshot.getDone(), snapshot.getTotal());
+                String eta = snapshot.getEpochsFinished() > 0 ? "Remaining: " + ProgressBus.formatDuration(snapshot.getEtaMillis()) + "\n" : "";
+                updateMessage(snapshot.getStage() + epoch_line + eta + snapshot.getLastOutput());
+            });
+            bus.post(ProgressBus.EventType.STAGE_STARTED, stage);
+            bus.start();
+            // close the bus and undo the split of the training data however the training ends
+            boolean trained = false;
             try {
-                venv.runCommand(false);
-            } catch (IOException e) {
-                this.error = 5;
-                logger.error("Exception while running the CLI command:" + e.getMessage());
-            }
+                // Create Venv runner
+                VirtualEnvironmentRunner venv = new VirtualEnvironmentRunner(
+                        setup.getEv2unetPythonPath(), setup.getEnvtype(), this.getClass().getSimpleName()
+                );
+                // Create cli command
+                List<String> args = new ArrayList<>(Arrays.asList("-W", "ignore", "-m", "efficient_v2_unet", "--train"));
+                args.add("--images");
+                args.add(ops.getImages_dir());
+                args.add("--masks");
+                args.add(ops.getMasks_dir());
+                args.add("--basedir");
+                args.add(ops.getTraining_root());
+                args.add("--name");
+                args.add("EfficientV2UNet_" + base_model + "_epochs" + epochs);
+                args.add("--basemodel");
+                args.add(base_model);
+                args.add("--epochs");
+                args.add(epochs.toString());
+                venv.setArguments(args);
+
+                // let an interactive prediction go first, training and predicting both use the GPU
+                EV2UNetJobScheduler.getInstance().yieldToInteractive();
+                if (isCancelled()) return null;
+                // run the command
+                long process_start = StageTimings.start();
+                try {
+                    venv.runCommand(false);
+                } catch (IOException e) {
+                    this.error = 5;
+                    this.error_message = "Could not run the training command: " + e.getLocalizedMessage();
+                    logger.error("Exception while running the CLI command:" + e.getMessage());
+                    return null;
+                }
 
-            // Get the cli log...
-            Process process = venv.getProcess();
+                // Get the cli log...
+                Process process = venv.getProcess();
+                supervisor = new ProcessSupervisor(process, "train-" + base_model);
+                if (error == 0) supervisor.terminateAsync(); // cancelled while starting
+
+                ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus);
+                AtomicLong first_output = new AtomicLong();
+                supervisor.startPumps(line -> {
+                    first_output.compareAndSet(0, System.nanoTime());
+                    if (line.startsWith("Epoch")) epoch_line = line + "\n";
+                    parser.accept(line);
+                });
 
-            List<String> logResults = new ArrayList<>();
-            Thread t = new Thread(Thread.currentThread().getName() + "-" + process.hashCode()) {
-                @Override
-                public void run() {
-                    BufferedReader stdIn = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                    String message = "Training... \n";
-                    if (Platform.getCurrent() == Platform.OSX) message = "Training... May not work on MacOS" + "\n";
-                    try {
-                        for (String line = stdIn.readLine(); line != null; ) {
-                            logResults.add(line);
-                            if (line.startsWith("Epoch")) message = "Training... " + line + "\n";
-                            updateMessage(message + line);
-                            line = stdIn.readLine();
-                        }
-                    } catch (IOException e) {
-                        logger.warn(e.getMessage());
+                // wait for the process to finish
+                try {
+                    int exit_code = supervisor.waitFor();
+                    // a crash (e.g. out of memory) or an invalid argument, unless the training was cancelled
+                    if (exit_code != 0 && error != 0) {
+                        error_message = supervisor.describeFailure(exit_code);
+                        logger.error(error_message);
+                        error = 5;
+                        EV2UNetMetrics.getInstance().recordFailedJob();
                     }
+                } catch (InterruptedException e) {
+                    if (error != 0) {
+                        logger.error("CLI execution/interruption error: " + e);
+                        error = 5;
+                        EV2UNetMetrics.getInstance().recordFailedJob();
+                    }
+                    // make sure the process does not keep running once the task is cancelled
+                    supervisor.terminate(ProcessSupervisor.DEFAULT_GRACE_MILLIS);
+                }
+                if (first_output.get() > 0) {
+                    timings.add(StageTimings.INTERPRETER_START, first_output.get() - process_start, 1);
+                    timings.add(StageTimings.TRAINING, System.nanoTime() - first_output.get(), Math.max(1, bus.getSnapshot().getEpochsFinished()));
+                }
+                timings.writeReport(ops.getReports_dir());
+                if (error == 0 || error == 5) {
+                    logger.info("Training was stopped.");
+                    return null;
                 }
-            };
-            t.setDaemon(true);
-            t.start();
 
-            // wait for the process to finish
-            try {
-                process.waitFor();
-            } catch (InterruptedException e) {
-                logger.error("CLI execution/interruption error: " + e);
-                error = 5;
-                return null;
+                parser.finish();
+                epoch_line = "";
+                metrics = read_metrics(new File(ops.getTraining_root(), "models/EfficientV2UNet_" + base_model + "_epochs" + epochs));
+                if (!metrics.isEmpty()) logger.info("Metrics of the trained models:\n" + metrics);
+                bus.complete("Done!\n\n" + timings.getSummary());
+                trained = true;
+            } finally {
+                bus.close();
+                // the split training data would block the next training
+                if (!trained) ops.undo_data_split();
             }
 
-            updateProgress(count, 2);
-            count++;
-            updateMessage("Done!");
-
             long endTime = System.currentTimeMillis();
             logger.info("Training took " + (endTime - startTime) / 1000 + " seconds.");
 
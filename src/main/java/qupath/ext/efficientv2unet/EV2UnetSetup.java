@@ -10,6 +10,14 @@ public class EV2UnetSetup {
     private String ev2UnetPythonPath = null;
     private VirtualEnvironmentRunner.EnvType envtype;
     private String condaPath = null;
+    private TempImageWriter tempImageWriter = TempImageWriter.getDefault();
+    private ExportTransform exportTransform = new ExportTransform();
+    private int prefetchDepth = ImagePrefetcher.DEFAULT_DEPTH;
+    private String modelCacheDir = null;
+    private double modelCacheMaxGB = 0;
+    private String modelRoots = null;
+    private double tempDiskBudgetGB = 0;
+    private String scratchDir = null;
 
     public static EV2UnetSetup getInstance() {
         return instance;
@@ -39,4 +47,68 @@ public class EV2UnetSetup {
 
     public String getCondaPath() { return condaPath; }
 
+    public void setTempImageWriter(TempImageWriter writer) {
+        this.tempImageWriter = writer == null ? TempImageWriter.getDefault() : writer;
+    }
+
+    public TempImageWriter getTempImageWriter() {
+        return tempImageWriter;
+    }
+
+    public void setExportTransform(ExportTransform transform) {
+        this.exportTransform = transform == null ? new ExportTransform() : transform;
+    }
+
+    public ExportTransform getExportTransform() {
+        return exportTransform;
+    }
+
+    public void setPrefetchDepth(int depth) {
+        this.prefetchDepth = Math.max(0, depth);
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void setModelCacheDir(String dir) {
+        this.modelCacheDir = dir;
+    }
+
+    public String getModelCacheDir() {
+        return modelCacheDir;
+    }
+
+    public void setModelCacheMaxGB(double maxGB) {
+        this.modelCacheMaxGB = maxGB;
+    }
+
+    public double getModelCacheMaxGB() {
+        return modelCacheMaxGB;
+    }
+
+    public void setModelRoots(String roots) {
+        this.modelRoots = roots;
+    }
+
+    public String getModelRoots() {
+        return modelRoots;
+    }
+
+    public void setTempDiskBudgetGB(double budgetGB) {
+        this.tempDiskBudgetGB = budgetGB;
+    }
+
+    public double getTempDiskBudgetGB() {
+        return tempDiskBudgetGB;
+    }
+
+    public void setScratchDir(String dir) {
+        this.scratchDir = dir;
+    }
+
+    public String getScratchDir() {
+        return scratchDir;
+    }
+
 }
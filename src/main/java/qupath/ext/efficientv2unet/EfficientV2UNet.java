@@ -10,23 +10,24 @@ import qupath.lib.analysis.images.ContourTracing;
 import qupath.lib.analysis.images.SimpleImage;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.scripting.DefaultScriptEditor;
 import qupath.lib.gui.tools.GuiTools;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.writers.ImageWriterTools;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.scripting.QP;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -48,6 +49,8 @@ public class EfficientV2UNet {
 
         // General settings
         private final transient EV2UnetSetup setup;
+        private String python_path;
+        private VirtualEnvironmentRunner.EnvType env_type;
         private boolean train = false;
         private boolean predict = false;
         // Train settings
@@ -64,6 +67,8 @@ public class EfficientV2UNet {
         private Integer resolution;
         private Double threshold;
         private boolean use_less_memory = true;
+        private boolean only_new_or_changed = false;
+        private ExportTransform export_transform;
         // Post-prediction settings
         private String annotation_class_name = "Region";
         private boolean split_annotations = false;
@@ -91,6 +96,43 @@ public class EfficientV2UNet {
         }
 
 
+        /**
+         * Specify the project to work on.
+         * If not set, the project of the running script or of the QuPath GUI is used.
+         * Allows running without the QuPath GUI (e.g. 'qupath script' on a cluster node).
+         *
+         * @param project: Project
+         * @return this builder
+         */
+        public Builder setProject(Project<BufferedImage> project) {
+            this.project = project;
+            return this;
+        }
+
+        /**
+         * Specify the EfficientV2UNet python executable.
+         * Defaults to the one set in the QuPath preferences.
+         *
+         * @param python_path: String path to the python executable
+         * @return this builder
+         */
+        public Builder setPythonPath(String python_path) {
+            this.python_path = python_path;
+            return this;
+        }
+
+        /**
+         * Specify the EfficientV2UNet environment type.
+         * Defaults to the one set in the QuPath preferences, or EXE if there is none.
+         *
+         * @param env_type: VirtualEnvironmentRunner.EnvType
+         * @return this builder
+         */
+        public Builder setEnvType(VirtualEnvironmentRunner.EnvType env_type) {
+            this.env_type = env_type;
+            return this;
+        }
+
         /**
          * Specify whether to train a model
          *
@@ -191,6 +233,7 @@ public class EfficientV2UNet {
 
         /**
          * Specify the directory to predict images from
+         * (by default, the runs folder of the project, or of the scratch folder, see OpInEx.getRuns_dir())
          *
          * @param predict_dir: String path to folder
          * @return this builder
@@ -246,6 +289,32 @@ public class EfficientV2UNet {
             return this;
         }
 
+        /**
+         * Specify whether to predict only images that are new or have changed,
+         * i.e. that have not been predicted with the same model, parameters and image before
+         * (used by predictShard and predictAsync).
+         *
+         * @param only_new_or_changed: boolean
+         * @return this builder
+         */
+        public Builder setOnlyNewOrChanged(boolean only_new_or_changed) {
+            this.only_new_or_changed = only_new_or_changed;
+            return this;
+        }
+
+        /**
+         * Specify the channels and bit depth of the exported images (to predict).
+         * If not set, the ones of the preferences are used. Must be the same as for training the model.
+         * e.g. new ExportTransform().setChannels("DAPI").setRescale(ExportTransform.Rescale.PERCENTILE, 1, 99.8)
+         *
+         * @param export_transform: ExportTransform
+         * @return this builder
+         */
+        public Builder setExportTransform(ExportTransform export_transform) {
+            this.export_transform = export_transform;
+            return this;
+        }
+
         /**
          * Specify the class name for the annotations
          * @param name: String
@@ -282,21 +351,22 @@ public class EfficientV2UNet {
          * @return
          */
         public EfficientV2UNet build() {
-            // Check for a project (sanity checks)
-            project = QuPathGUI.getInstance().getProject();
-            if (project == null) {
-                GuiTools.showNoProjectError("You need a project to run this plugin.");
-                throw new IllegalStateException("You need a project to run this plugin.");
-            }
-            if (project.getPath() == null) throw new RuntimeException("Could not identify the path to the project. Make sure that the project is on a local file system.");
+            // Check for a project (the GUI is only used if there is no script project)
+            if (project == null) project = QP.getProject();
+            if (project == null && QuPathGUI.getInstance() != null) project = QuPathGUI.getInstance().getProject();
+            if (project != null && project.getPath() == null) throw new RuntimeException("Could not identify the path to the project. Make sure that the project is on a local file system.");
 
 
             EfficientV2UNet ev2unet = new EfficientV2UNet();
 
             // check that the setup is fine
-            if (setup.getEv2unetPythonPath().isEmpty()) {
-                throw new IllegalStateException("The EfficientV2UNet python path is empty. Please set it in Edit > Preferences.");
+            if (python_path == null) python_path = setup.getEv2unetPythonPath();
+            if (python_path == null || python_path.isEmpty()) {
+                throw new IllegalStateException("The EfficientV2UNet python path is empty. Please set it in Edit > Preferences, or with setPythonPath().");
             }
+            if (env_type == null) env_type = setup.getEnvtype();
+            if (env_type == null) env_type = VirtualEnvironmentRunner.EnvType.EXE;
+            if (export_transform == null) export_transform = setup.getExportTransform();
 
             // check if training or predicting
             if (train == predict) {
@@ -314,6 +384,7 @@ public class EfficientV2UNet {
                 }
                 // Check the base_dir
                 if (base_dir == null) {
+                    requireProject();
                     base_dir = new File(project.getPath().getParent().toString(), "models").getAbsolutePath();
                     logger.info("Set the base directory to default: " + base_dir);
                 }
@@ -351,25 +422,27 @@ public class EfficientV2UNet {
                     throw new IllegalArgumentException("Model path does not exist: " + model_path);
                 }
 
-                // Set the default temp directory (QuPathProject/temp) if not specified (and create it if it doesn't exist)
+                // Without a temp directory, the images are predicted in the runs folder of the project,
+                // or of the scratch folder if it has enough free space (see OpInEx.getRuns_dir())
                 if (predict_dir == null) {
-                    predict_dir = new File(project.getPath().getParent().toString(), "temp").getAbsolutePath();
-                    logger.info("Set the temporary directory to default: " + predict_dir);
-                }
-                if (!new File(predict_dir).exists()) {
-                    new File(predict_dir).mkdirs();
-                    logger.info("Created temporary directory: " + predict_dir);
-                }
-
-                // Set the default output directory (for predictions) if not specified (and create it if it doesn't exist)
-                if (predict_out_dir == null) {
-                    predict_out_dir = new File(predict_dir, "predictions").getAbsolutePath();
-                    logger.info("Set the prediction output directory to default: " + predict_out_dir);
+                    requireProject();
                 }
-
-                if (!new File(predict_out_dir).exists()) {
-                    new File(predict_out_dir).mkdirs();
-                    logger.info("Created output directory: " + predict_out_dir);
+                else {
+                    if (!new File(predict_dir).exists()) {
+                        new File(predict_dir).mkdirs();
+                        logger.info("Created temporary directory: " + predict_dir);
+                    }
+
+                    // Set the default output directory (for predictions) if not specified (and create it if it doesn't exist)
+                    if (predict_out_dir == null) {
+                        predict_out_dir = new File(predict_dir, "predictions").getAbsolutePath();
+                        logger.info("Set the prediction output directory to default: " + predict_out_dir);
+                    }
+
+                    if (!new File(predict_out_dir).exists()) {
+                        new File(predict_out_dir).mkdirs();
+                        logger.info("Created output directory: " + predict_out_dir);
+                    }
                 }
 
                 // Set the default resolution if not specified
@@ -386,7 +459,8 @@ public class EfficientV2UNet {
             }
             // set the other variables
             ev2unet.project = project;
-            ev2unet.setup = setup;
+            ev2unet.python_path = python_path;
+            ev2unet.env_type = env_type;
             ev2unet.model_path = model_path;
             ev2unet.train = train;
             ev2unet.predict = predict;
@@ -401,12 +475,23 @@ public class EfficientV2UNet {
             ev2unet.resolution = resolution;
             ev2unet.threshold = threshold;
             ev2unet.use_less_memory = use_less_memory;
+            ev2unet.only_new_or_changed = only_new_or_changed;
+            ev2unet.export_transform = export_transform;
             ev2unet.annotation_class_name = annotation_class_name;
             ev2unet.split_annotations = split_annotations;
             ev2unet.remove_annotations = remove_annotations;
             return ev2unet;
         }
 
+        /**
+         * Check that there is a project to derive the default folders from.
+         */
+        private void requireProject() {
+            if (project != null) return;
+            if (QuPathGUI.getInstance() != null) GuiTools.showNoProjectError("You need a project to run this plugin.");
+            throw new IllegalStateException("You need a project to run this plugin, or specify the directories explicitly.");
+        }
+
 
     } // end of Builder class
 
@@ -415,7 +500,8 @@ public class EfficientV2UNet {
     // Set defaults
 
     // General settings
-    private EV2UnetSetup setup;
+    private String python_path;
+    private VirtualEnvironmentRunner.EnvType env_type;
     private String model_path;
     private boolean train;
     private boolean predict;
@@ -432,6 +518,8 @@ public class EfficientV2UNet {
     private Integer resolution;
     private Double threshold;
     private boolean use_less_memory;
+    private boolean only_new_or_changed;
+    private ExportTransform export_transform;
     // Post-prediction settings
     private String annotation_class_name = "Region";
     private boolean split_annotations = false;
@@ -449,6 +537,7 @@ public class EfficientV2UNet {
 
     /**
      * This function is to be used when running via script
+     * Predicts the image of the running script (or the one opened in the QuPath GUI).
      */
     public void process() {
         if (this.predict == this.train) {
@@ -465,66 +554,190 @@ public class EfficientV2UNet {
         // Predict the current image
         else {
             // Get the currently opened image
-            ImageData<BufferedImage> image_data = QuPathGUI.getInstance().getImageData();
-            String image_name = QuPathGUI.getInstance().getDisplayedImageName(image_data);
+            ImageData<BufferedImage> image_data = QP.getCurrentImageData();
+            if (image_data == null && QuPathGUI.getInstance() != null) image_data = QuPathGUI.getInstance().getImageData();
             if (image_data == null) {
                 logger.trace("Error: Please open an image first");
                 throw new RuntimeException("--> Please open an image first <--");
             }
-            image_name = "temp_image.tif";
-            System.out.println("Image name is now: " + image_name);
-            File temp_file = new File(this.predict_dir, image_name);
-            try {
-                ImageWriterTools.writeImage(image_data.getServer(), temp_file.getAbsolutePath());
-            } catch (IOException e) {
-                throw new RuntimeException("Could not write image!  >" + e);
-            }
-            logger.info("Saved current image to: " + temp_file.getAbsolutePath());
-
-            // predict the image
-            doPredict();
-            logger.info("Predicted image");
-
-            // Load the mask
-            File prediction_file = new File(this.predict_out_dir, image_name);
-            ImagePlus mask = IJ.openImage(prediction_file.getAbsolutePath());
-            if (mask == null) throw new RuntimeException("Could not open predicted file: " + prediction_file.getAbsolutePath());
-            SimpleImage mask_image = new PixelImageIJ(mask.getProcessor());
-            List<PathObject> annotation = ContourTracing.createAnnotations(mask_image, RegionRequest.createAllRequests(image_data.getServer(), 1).get(0), 1, 1);
-            logger.info("Loaded predicted image");
-
-            // Remove existing annotations
-            if (this.remove_annotations) {
-                image_data.getHierarchy().clearAll();
-                logger.info("Removed all existing annotations from current image");
-            }
+            process(image_data);
+        }
 
-            if (this.split_annotations) {
-                List<ROI> split_ROIs = RoiTools.splitROI(annotation.get(0).getROI());
-                List<PathObject> split_annotation = new ArrayList<>();
-                split_ROIs.forEach(r -> split_annotation.add(
-                        PathObjects.createAnnotationObject(r, PathClass.getInstance(this.annotation_class_name))
-                ));
-                image_data.getHierarchy().addObjects(split_annotation);
-            } else {
-                image_data.getHierarchy().addObject(
-                        PathObjects.createAnnotationObject(annotation.get(0).getROI(), PathClass.getInstance(this.annotation_class_name))
-                );
-            }
-            // Fire global update event
-            image_data.getHierarchy().fireHierarchyChangedEvent(image_data.getHierarchy());
-            logger.info("Added the predicted objects to the current image");
+    }
 
-            // Delete the temp file
-            if (temp_file.delete()) logger.trace("Deleted temporary file: " + temp_file.getAbsolutePath());
-            else logger.info("Could not delete temporary file: " + temp_file.getAbsolutePath());
+    /**
+     * Predict a project image entry and save the predicted objects to it.
+     * Does not need the QuPath GUI.
+     * @param entry: ProjectImageEntry to predict
+     */
+    public void process(ProjectImageEntry<BufferedImage> entry) {
+        ImageData<BufferedImage> image_data;
+        try {
+            image_data = entry.readImageData();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read image data for " + entry.getImageName() + " -> " + e);
+        }
+        process(image_data, entry.getID() + ".tif");
+        try {
+            entry.saveImageData(image_data);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not save image data for " + entry.getImageName() + " -> " + e);
+        }
+    }
 
-            // Delete temp prediction
-            if (prediction_file.delete()) logger.trace("Deleted temporary prediction file: " + prediction_file.getAbsolutePath());
-            else logger.info("Could not delete temporary prediction file: " + prediction_file.getAbsolutePath());
+    /**
+     * Predict an image and add the predicted objects to its hierarchy.
+     * Does not need the QuPath GUI, the image data is not saved.
+     * @param image_data: ImageData to predict
+     */
+    public void process(ImageData<BufferedImage> image_data) {
+        process(image_data, "image.tif");
+    }
 
+    /**
+     * Predict an image in its own run workspace (inside the temp directory, or else the runs folder), so that
+     * several scripts can predict at the same time without overwriting each other's files.
+     * @param image_data: ImageData to predict
+     * @param image_name: String file name of the exported image
+     */
+    private void process(ImageData<BufferedImage> image_data, String image_name) {
+        addPredictedObjects(image_data, predictObjects(image_data, image_name));
+    }
+
+    /**
+     * Predict an image, without changing its hierarchy (e.g. to predict on a background thread
+     * the image opened in the viewer, and add the objects on the JavaFX thread with addPredictedObjects())
+     * @param image_data: ImageData to predict
+     * @return List of PathObject, the predicted annotations
+     */
+    public List<PathObject> predictObjects(ImageData<BufferedImage> image_data) {
+        return predictObjects(image_data, "image.tif");
+    }
+
+    private List<PathObject> predictObjects(ImageData<BufferedImage> image_data, String image_name) {
+        if (!this.predict) {
+            throw new IllegalArgumentException("Specify predict to process an image");
+        }
+        if (image_data == null) throw new IllegalArgumentException("Image data cannot be null");
+
+        File runs_root = predict_dir != null ? new File(predict_dir) : new OpInEx(project).getRuns_dir();
+        PredictionWorkspace workspace = PredictionWorkspace.createRun(runs_root);
+        File temp_file = new File(workspace.getTempDir(), image_name);
+        try {
+            EV2UnetSetup.getInstance().getTempImageWriter().write(export_transform.apply(image_data.getServer()), temp_file);
+        } catch (IOException e) {
+            workspace.delete();
+            throw new RuntimeException("Could not write image!  >" + e);
         }
+        logger.info("Saved current image to: " + temp_file.getAbsolutePath());
 
+        // predict the image
+        try {
+            doPredict(workspace.getTempDir().getAbsolutePath(), workspace.getPredictionDir().getAbsolutePath());
+        } catch (RuntimeException e) {
+            workspace.delete();
+            throw e;
+        }
+        logger.info("Predicted image");
+
+        // Load the mask
+        File prediction_file = new File(workspace.getPredictionDir(), image_name);
+        ImagePlus mask = IJ.openImage(prediction_file.getAbsolutePath());
+        if (mask == null) {
+            workspace.delete();
+            throw new RuntimeException("Could not open predicted file: " + prediction_file.getAbsolutePath());
+        }
+        SimpleImage mask_image = new PixelImageIJ(mask.getProcessor());
+        List<PathObject> annotation = ContourTracing.createAnnotations(mask_image, RegionRequest.createAllRequests(image_data.getServer(), 1).get(0), 1, 1);
+        logger.info("Loaded predicted image");
+
+        // Delete the temp file and the prediction (i.e. the whole run workspace)
+        if (workspace.delete()) logger.trace("Deleted temporary workspace: " + workspace.getRoot().getAbsolutePath());
+        else logger.info("Could not delete temporary workspace: " + workspace.getRoot().getAbsolutePath());
+
+        List<PathObject> objects = new ArrayList<>();
+        if (annotation.isEmpty()) return objects;
+        if (this.split_annotations) {
+            List<ROI> split_ROIs = RoiTools.splitROI(annotation.get(0).getROI());
+            split_ROIs.forEach(r -> objects.add(
+                    PathObjects.createAnnotationObject(r, PathClass.getInstance(this.annotation_class_name))
+            ));
+        } else {
+            objects.add(PathObjects.createAnnotationObject(annotation.get(0).getROI(), PathClass.getInstance(this.annotation_class_name)));
+        }
+        return objects;
+    }
+
+    /**
+     * Add the predicted objects to an image (removing the existing ones first, if set)
+     * @param image_data: ImageData the objects were predicted for
+     * @param objects: List of PathObject (see predictObjects())
+     */
+    public void addPredictedObjects(ImageData<BufferedImage> image_data, List<PathObject> objects) {
+        // Remove existing annotations
+        if (this.remove_annotations) {
+            image_data.getHierarchy().clearAll();
+            logger.info("Removed all existing annotations from current image");
+        }
+        image_data.getHierarchy().addObjects(objects);
+        // Fire global update event
+        image_data.getHierarchy().fireHierarchyChangedEvent(image_data.getHierarchy());
+        logger.info("Added the predicted objects to the current image");
+    }
+
+    /**
+     * Predict a list of project image entries in the background, in a single python session,
+     * and save the predicted objects to them.
+     * Does not need the QuPath GUI. The run has its own workspace, so it can be resumed if interrupted.
+     * e.g. in a script:
+     *   def run = efficientV2Unet.predictAsync(getProject().getImageList())
+     *   def result = run.getFuture().join()
+     * @param entries: List of ProjectImageEntry to predict
+     * @return PredictionRun, with the per-entry progress and the future of its Result
+     */
+    public PredictionRun predictAsync(List<ProjectImageEntry<BufferedImage>> entries) {
+        return predictAsync(entries, null);
+    }
+
+    /**
+     * Same as above, with a listener for the progress of the run
+     * @param entries: List of ProjectImageEntry to predict
+     * @param listener: PredictionRun.Listener, or null
+     * @return PredictionRun, with the per-entry progress and the future of its Result
+     */
+    public PredictionRun predictAsync(List<ProjectImageEntry<BufferedImage>> entries, PredictionRun.Listener listener) {
+        PredictionRun run = createRun(entries);
+        if (listener != null) run.setListener(listener);
+        run.runAsync();
+        return run;
+    }
+
+    /**
+     * Predict a list of project image entries in a single python session and save the predicted objects to them,
+     * which blocks until done.
+     * @param entries: List of ProjectImageEntry to predict
+     * @return PredictionRun.Result with the state of every entry
+     */
+    public PredictionRun.Result predict(List<ProjectImageEntry<BufferedImage>> entries) {
+        return createRun(entries).run();
+    }
+
+    /**
+     * Create a prediction run (in a new workspace) for a list of project image entries
+     * @param entries: List of ProjectImageEntry to predict
+     * @return PredictionRun, not started
+     */
+    private PredictionRun createRun(List<ProjectImageEntry<BufferedImage>> entries) {
+        if (!this.predict) throw new IllegalArgumentException("Specify predict to predict images");
+        if (project == null) throw new IllegalStateException("You need a project to predict project images.");
+        OpInEx ops = new OpInEx(project);
+        ops.setExportTransform(export_transform);
+        PredictionWorkspace workspace = PredictionWorkspace.createRun(ops.getRuns_dir());
+        PredictionManifest manifest = new PredictionManifest(model_path, threshold, resolution,
+                annotation_class_name, split_annotations, remove_annotations);
+        return new PredictionRun(new ArrayList<>(entries), manifest, workspace, ops, python_path, env_type)
+                .setUseLessMemory(use_less_memory)
+                .setOnlyNewOrChanged(only_new_or_changed);
     }
 
 
@@ -538,38 +751,72 @@ public class EfficientV2UNet {
      * currently public, as I directly access it in the PredictCommand
      */
     public void doPredict(){
+        if (predict_dir == null) throw new IllegalStateException("Specify the folder of the images to predict with setTempDir()");
+        doPredict(predict_dir, predict_out_dir);
+    }
+
+    /**
+     * Predict the images of one shard of the project (see ProjectShards).
+     * Exports the shard images to the shard workspace, writes its manifest and predicts them.
+     * The predictions are not loaded into the project; use ProjectShards.ingest() once all shards are done.
+     * @param shard_index: int index of the shard (0 to shard_count - 1), e.g. SLURM_ARRAY_TASK_ID - SLURM_ARRAY_TASK_MIN
+     * @param shard_count: int number of shards
+     * @return PredictionWorkspace of the shard
+     */
+    public PredictionWorkspace predictShard(int shard_index, int shard_count) {
+        if (!this.predict) throw new IllegalArgumentException("Specify predict to predict a shard");
+        if (project == null) throw new IllegalStateException("You need a project to predict a shard.");
+
+        List<ProjectImageEntry<BufferedImage>> shard = ProjectShards.getShard(project.getImageList(), shard_index, shard_count);
+        PredictionWorkspace workspace = ProjectShards.getShardWorkspace(project, shard_index, shard_count);
+        PredictionManifest manifest = new PredictionManifest(model_path, threshold, resolution,
+                annotation_class_name, split_annotations, remove_annotations);
+        manifest.setModelHash(ModelCache.hashModel(new File(model_path)));
+        manifest.setExportTransform(export_transform.toString());
+        if (only_new_or_changed) shard = PredictionProvenance.filterNewOrChanged(shard, manifest);
+        logger.info("Shard " + shard_index + "/" + shard_count + " has " + shard.size() + " images, workspace: " + workspace.getRoot());
+
+        // Export the images and remember which file belongs to which entry
+        OpInEx ops = new OpInEx(project);
+        ops.setExportTransform(export_transform);
+        ops.useWorkspace(workspace);
+        HashMap<ProjectImageEntry<BufferedImage>, File> temp_files = ops.exportImagesToPredict(shard);
+        temp_files.forEach(manifest::addEntry);
+        workspace.writeManifest(manifest);
+
+        // Predict the shard and delete the exported images
+        doPredict(workspace.getTempDir().getAbsolutePath(), workspace.getPredictionDir().getAbsolutePath());
+        ops.deleteTempFiles();
+        return workspace;
+    }
+
+    /**
+     * Runs the prediction on all images of a folder, which blocks until done
+     * @param in_dir: String folder with the images to predict
+     * @param out_dir: String folder to save the predictions to
+     */
+    private void doPredict(String in_dir, String out_dir) {
         VirtualEnvironmentRunner venv = new VirtualEnvironmentRunner(
-                setup.getEv2unetPythonPath(), setup.getEnvtype(), this.getClass().getSimpleName()
+                python_path, env_type, this.getClass().getSimpleName()
         );
         // build the cli arguments
         List<String> args = new ArrayList<>(Arrays.asList("-W", "ignore", "-m", "efficient_v2_unet", "--predict"));
         args.add("--dir");
-        args.add(predict_dir);
+        args.add(in_dir);
         args.add("--model");
-        args.add(model_path);
+        args.add(ModelCache.getLocalModelPath(model_path));
         args.add("--resolution");
         args.add(resolution.toString());
         args.add("--threshold");
         args.add(threshold.toString());
         args.add("--savedir");
-        args.add(predict_out_dir);
+        args.add(out_dir);
         if (use_less_memory) args.add("--use_less_memory");
 
         // run the command
         venv.setArguments(args);
-        try {
-            venv.runCommand(false);
-        } catch (IOException e) {
-            logger.error("Exception while running the CLI command: " + e.getLocalizedMessage());
-        }
-        // wait for the command to finish
-        try {
-            venv.getProcess().waitFor();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("CLI execution/interruption error: " + e);
-        }
-        List<String> log = venv.getProcessLog();
-        System.out.println("Prediction finished!");
+        runCommand(venv, "predict");
+        logger.info("Prediction finished!");
     }
 
     /**
@@ -578,7 +825,7 @@ public class EfficientV2UNet {
      */
     public void doTrain() {
         VirtualEnvironmentRunner venv = new VirtualEnvironmentRunner(
-                setup.getEv2unetPythonPath(), setup.getEnvtype(), this.getClass().getSimpleName()
+                python_path, env_type, this.getClass().getSimpleName()
         );
         // build the cli arguments
         List<String> args = new ArrayList<>(Arrays.asList("-W", "ignore", "-m", "efficient_v2_unet", "--train"));
@@ -597,21 +844,36 @@ public class EfficientV2UNet {
 
         // run the command
         venv.setArguments(args);
+        // FIXME would be nice to have the progress dialog here...? probably not possible...
+        runCommand(venv, "train");
+        logger.info("Training finished!");
+
+    }
+
+    /**
+     * Run the CLI command of a VirtualEnvironmentRunner and wait for it to finish, draining its output
+     * @param venv: VirtualEnvironmentRunner with its arguments set
+     * @param name: String name of the process (for logging)
+     * @throws RuntimeException if the process could not be started, was interrupted or failed (with its last output)
+     */
+    private void runCommand(VirtualEnvironmentRunner venv, String name) {
         try {
             venv.runCommand(false);
         } catch (IOException e) {
             logger.error("Exception while running the CLI command: " + e.getLocalizedMessage());
+            throw new RuntimeException("Could not run the " + name + " command: " + e.getLocalizedMessage(), e);
         }
-        // FIXME would be nice to have the progress dialog here...? probably not possible...
-        // wait for the command to finish
+        Process process = venv.getProcess();
+        if (process == null) throw new RuntimeException("The " + name + " command did not start a process");
+        ProcessSupervisor supervisor = new ProcessSupervisor(process, name).startPumps(null);
+        int exit_code;
         try {
-            venv.getProcess().waitFor();
+            exit_code = supervisor.waitFor();
         } catch (InterruptedException e) {
+            supervisor.terminate(ProcessSupervisor.DEFAULT_GRACE_MILLIS);
             throw new RuntimeException("CLI execution/interruption error: " + e);
         }
-        List<String> log = venv.getProcessLog();
-        System.out.println("Prediction finished!");
-
+        if (exit_code != 0) throw new RuntimeException(supervisor.describeFailure(exit_code));
     }
 
 
@@ -1,5 +1,7 @@
 package qupath.ext.efficientv2unet;
 
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.StringProperty;
 import org.controlsfx.control.PropertySheet;
@@ -19,6 +21,7 @@ import org.controlsfx.control.action.Action;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
@@ -37,6 +40,7 @@ public class EfficientV2UNetExtension implements QuPathExtension, GitHubProject
     private static final LinkedHashMap<String, String> SCRIPTS = new LinkedHashMap<>() {{
         put("EV2UNet predict script template", "scripts/EfficientV2UNet_predict_template.groovy");
         put("EV2UNet training script template", "scripts/EfficientV2UNet_train_template.groovy");
+        put("EV2UNet shard prediction script template", "scripts/EfficientV2UNet_shard_predict_template.groovy");
     }};
 
 
@@ -64,7 +68,12 @@ public class EfficientV2UNetExtension implements QuPathExtension, GitHubProject
         // Add Menu entries
         MenuTools.addMenuItems(
                 qupath.getMenu("Extensions>Efficient V2 UNet", true),
-                new Action("Predict images", e -> new EV2UNetPredictCommand(qupath).run())
+                new Action("Predict images", e -> new EV2UNetPredictCommand(qupath).run()),
+                new Action("Predict current image", e -> new EV2UNetPredictCommand(qupath).predictCurrentImage()),
+                new Action("Resume interrupted prediction", e -> new EV2UNetPredictCommand(qupath).resume()),
+                new Action("Export prediction job bundle", e -> new EV2UNetPredictCommand(qupath, true).run()),
+                new Action("Ingest job bundle results", e -> new EV2UNetIngestBundleCommand(qupath).run()),
+                new Action("Show job queue", e -> new EV2UNetJobQueueCommand(qupath).run())
         );
 
         MenuTools.addMenuItems(
@@ -84,12 +93,42 @@ public class EfficientV2UNetExtension implements QuPathExtension, GitHubProject
         // Create the option properties
         StringProperty ev2unetPythonPath = PathPrefs.createPersistentPreference("Path to EfficientV2UNet Python", "");
         ObjectProperty<VirtualEnvironmentRunner.EnvType> envType = PathPrefs.createPersistentPreference("Env type", VirtualEnvironmentRunner.EnvType.EXE, VirtualEnvironmentRunner.EnvType.class);
+        ObjectProperty<TempImageWriter> tempImageWriter = PathPrefs.createPersistentPreference("EV2UNet temp image format", TempImageWriter.getDefault(), TempImageWriter.class);
+        StringProperty exportChannels = PathPrefs.createPersistentPreference("EV2UNet export channels", "");
+        ObjectProperty<ExportTransform.Rescale> exportRescale = PathPrefs.createPersistentPreference("EV2UNet export rescale", ExportTransform.Rescale.NONE, ExportTransform.Rescale.class);
+        DoubleProperty exportRescaleLow = PathPrefs.createPersistentPreference("EV2UNet export rescale low", 1.0);
+        DoubleProperty exportRescaleHigh = PathPrefs.createPersistentPreference("EV2UNet export rescale high", 99.8);
+        IntegerProperty prefetchDepth = PathPrefs.createPersistentPreference("EV2UNet prefetch depth", ImagePrefetcher.DEFAULT_DEPTH);
+        StringProperty modelCacheDir = PathPrefs.createPersistentPreference("EV2UNet model cache folder",
+                new File(System.getProperty("user.home"), ".ev2unet" + File.separator + "model_cache").getAbsolutePath());
+        DoubleProperty modelCacheMaxGB = PathPrefs.createPersistentPreference("EV2UNet model cache size", 0.0);
+        StringProperty modelRoots = PathPrefs.createPersistentPreference("EV2UNet model folders", "");
+        DoubleProperty tempDiskBudgetGB = PathPrefs.createPersistentPreference("EV2UNet temp disk budget", 0.0);
+        StringProperty scratchDir = PathPrefs.createPersistentPreference("EV2UNet scratch folder", "");
         // TODO for cellpose-extension: conda-return branch
         //StringProperty condaPath = PathPrefs.createPersistentPreference("condaPath", "");
 
         // Set the class options to the current QuPath values
         options.setEv2unetPythonPath(ev2unetPythonPath.get());
         options.setEnvtype(envType.get());
+        options.setTempImageWriter(tempImageWriter.get());
+        Runnable updateExportTransform = () -> {
+            try {
+                options.setExportTransform(new ExportTransform()
+                        .setChannels(exportChannels.get())
+                        .setRescale(exportRescale.get(), exportRescaleLow.get(), exportRescaleHigh.get()));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Invalid export rescale settings, exporting all channels as they are: " + e.getLocalizedMessage());
+                options.setExportTransform(null);
+            }
+        };
+        updateExportTransform.run();
+        options.setPrefetchDepth(prefetchDepth.get());
+        options.setModelCacheDir(modelCacheDir.get());
+        options.setModelCacheMaxGB(modelCacheMaxGB.get());
+        options.setModelRoots(modelRoots.get());
+        options.setTempDiskBudgetGB(tempDiskBudgetGB.get());
+        options.setScratchDir(scratchDir.get());
         // TODO for cellpose-extension: conda-return branch
         //options.setCondaPath(condaPath.get());
 
@@ -123,6 +162,96 @@ public class EfficientV2UNetExtension implements QuPathExtension, GitHubProject
                 .choices(Arrays.asList(VirtualEnvironmentRunner.EnvType.values()))
                 .build();
 
+        PropertySheet.Item tempImageWriterItem = new PropertyItemBuilder<>(tempImageWriter, TempImageWriter.class)
+                .propertyType(PropertyItemBuilder.PropertyType.CHOICE)
+                .name("Exported image format")
+                .category("EfficientV2UNet")
+                .description("The format of the images exported for predicting and training.\n" +
+                        "Uncompressed is the fastest, compressed formats need less disk space.")
+                .choices(Arrays.asList(TempImageWriter.values()))
+                .build();
+
+        PropertySheet.Item exportChannelsItem = new PropertyItemBuilder<>(exportChannels, String.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Exported channels")
+                .category("EfficientV2UNet")
+                .description("The channels exported for predicting and training, as names or numbers (starting at 1),\n" +
+                        "separated by commas, e.g. 'DAPI, 3'. Leave empty to export all channels.")
+                .build();
+
+        PropertySheet.Item exportRescaleItem = new PropertyItemBuilder<>(exportRescale, ExportTransform.Rescale.class)
+                .propertyType(PropertyItemBuilder.PropertyType.CHOICE)
+                .name("Exported bit depth")
+                .category("EfficientV2UNet")
+                .description("Rescale the exported channels to 8-bit, with a fixed range or with percentiles of each image.\n" +
+                        "Use the same settings for training and predicting.")
+                .choices(Arrays.asList(ExportTransform.Rescale.values()))
+                .build();
+
+        PropertySheet.Item exportRescaleLowItem = new PropertyItemBuilder<>(exportRescaleLow, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("8-bit rescale low")
+                .category("EfficientV2UNet")
+                .description("The value (fixed range) or percentile mapped to 0")
+                .build();
+
+        PropertySheet.Item exportRescaleHighItem = new PropertyItemBuilder<>(exportRescaleHigh, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("8-bit rescale high")
+                .category("EfficientV2UNet")
+                .description("The value (fixed range) or percentile mapped to 255")
+                .build();
+
+        PropertySheet.Item prefetchDepthItem = new PropertyItemBuilder<>(prefetchDepth, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Images read ahead")
+                .category("EfficientV2UNet")
+                .description("The number of images read ahead while exporting, e.g. for images on a network share.\n" +
+                        "Set to 0 to read every image only when it is exported.")
+                .build();
+
+        PropertySheet.Item modelCacheDirItem = new PropertyItemBuilder<>(modelCacheDir, String.class)
+                .propertyType(PropertyItemBuilder.PropertyType.DIRECTORY)
+                .name("Model cache folder")
+                .category("EfficientV2UNet")
+                .description("A local folder the models are copied to before predicting, e.g. if the models are on a network share.")
+                .build();
+
+        PropertySheet.Item modelCacheMaxGBItem = new PropertyItemBuilder<>(modelCacheMaxGB, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Model cache size (GB)")
+                .category("EfficientV2UNet")
+                .description("Set a size to copy the models to the model cache folder before predicting.\n" +
+                        "The least recently used models are deleted from the cache when it is larger.\n" +
+                        "0 (the default) loads the models from where they are.")
+                .build();
+
+        PropertySheet.Item modelRootsItem = new PropertyItemBuilder<>(modelRoots, String.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Model folders")
+                .category("EfficientV2UNet")
+                .description("Folders with trained models listed in the predict dialog (besides the ones of the project),\n" +
+                        "separated by '" + File.pathSeparator + "'.")
+                .build();
+
+        PropertySheet.Item tempDiskBudgetGBItem = new PropertyItemBuilder<>(tempDiskBudgetGB, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Temporary disk budget (GB)")
+                .category("EfficientV2UNet")
+                .description("The max disk space of the exported images and predicted masks of a prediction.\n" +
+                        "Larger batches are predicted in parts (the model is loaded for every part).\n" +
+                        "Set to 0 for no limit.")
+                .build();
+
+        PropertySheet.Item scratchDirItem = new PropertyItemBuilder<>(scratchDir, String.class)
+                .propertyType(PropertyItemBuilder.PropertyType.DIRECTORY)
+                .name("Scratch folder")
+                .category("EfficientV2UNet")
+                .description("A fast local folder (e.g. a RAM disk or local SSD) for the exported images and predicted masks,\n" +
+                        "instead of the project folder. The project folder is used if the scratch folder is full.\n" +
+                        "Leave empty to use the project folder.")
+                .build();
+
         // TODO for cellpose-extension: conda-return branch
         /*
         PropertySheet.Item condaPathItem = new PropertyItemBuilder<>(condaPath, String.class)
@@ -135,6 +264,17 @@ public class EfficientV2UNetExtension implements QuPathExtension, GitHubProject
 
         // Listen for changes in QuPath settings
         ev2unetPythonPath.addListener((v, o, n) -> options.setEv2unetPythonPath(n));
+        tempImageWriter.addListener((v, o, n) -> options.setTempImageWriter(n));
+        exportChannels.addListener((v, o, n) -> updateExportTransform.run());
+        exportRescale.addListener((v, o, n) -> updateExportTransform.run());
+        exportRescaleLow.addListener((v, o, n) -> updateExportTransform.run());
+        exportRescaleHigh.addListener((v, o, n) -> updateExportTransform.run());
+        prefetchDepth.addListener((v, o, n) -> options.setPrefetchDepth(n.intValue()));
+        modelCacheDir.addListener((v, o, n) -> options.setModelCacheDir(n));
+        modelCacheMaxGB.addListener((v, o, n) -> options.setModelCacheMaxGB(n.doubleValue()));
+        modelRoots.addListener((v, o, n) -> options.setModelRoots(n));
+        tempDiskBudgetGB.addListener((v, o, n) -> options.setTempDiskBudgetGB(n.doubleValue()));
+        scratchDir.addListener((v, o, n) -> options.setScratchDir(n));
         envType.addListener((v, o, n) -> {
             // As 'activate conda' does not work on OSX, we use Python Executable instead, which works just fine also with CONDA envs
             // TODO check if Oli's fix allows this to work on Mac
@@ -153,6 +293,17 @@ public class EfficientV2UNetExtension implements QuPathExtension, GitHubProject
         // Add and populate the permanent Preference
         QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(ev2unetPathItem);
         QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(envTypeItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(tempImageWriterItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(exportChannelsItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(exportRescaleItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(exportRescaleLowItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(exportRescaleHighItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(prefetchDepthItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(modelCacheDirItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(modelCacheMaxGBItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(modelRootsItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(tempDiskBudgetGBItem);
+        QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(scratchDirItem);
         // TODO for cellpose-extension: conda-return branch
         //QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(condaPathItem);
 
@@ -0,0 +1,283 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TransformedServerBuilder;
+import qupath.lib.images.servers.TransformingImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reduces the images before they are exported for the python process (predicting and training):
+ * keeps only some channels, and/or rescales them to 8-bit, with a fixed range or with percentiles
+ * of a thumbnail of the image.
+ * E.g. a 16-bit image with 8 channels, of which the model only uses 1, is written 16 times smaller.
+ * Training and prediction must use the same transform, so it is a preference (see EV2UnetSetup).
+ */
+public class ExportTransform {
+    private static final Logger logger = LoggerFactory.getLogger(ExportTransform.class);
+    private static final int THUMBNAIL_SIZE = 1024; // max width or height of the thumbnail for the percentiles
+
+    /**
+     * How the channels are converted to 8-bit
+     */
+    public enum Rescale {
+        NONE("No rescaling"),
+        FIXED("Fixed range to 8-bit"),
+        PERCENTILE("Percentiles to 8-bit");
+
+        private final String description;
+
+        Rescale(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private List<String> channels = new ArrayList<>(); // names or 1-based numbers, empty for all
+    private Rescale rescale = Rescale.NONE;
+    private double low = 1.0; // min value (FIXED) or percentile (PERCENTILE)
+    private double high = 99.8; // max value (FIXED) or percentile (PERCENTILE)
+
+    /**
+     * Keep all channels, without rescaling
+     */
+    public ExportTransform() {
+    }
+
+    /**
+     * Select the channels to export
+     * @param channels: List of String, channel names or numbers (starting at 1), empty for all channels
+     * @return this
+     */
+    public ExportTransform setChannels(List<String> channels) {
+        this.channels = channels == null ? new ArrayList<>() : new ArrayList<>(channels);
+        return this;
+    }
+
+    /**
+     * Select the channels to export from a comma separated String, e.g. "DAPI, 3"
+     * @param channels: String channel names or numbers (starting at 1), empty for all channels
+     * @return this
+     */
+    public ExportTransform setChannels(String channels) {
+        List<String> list = new ArrayList<>();
+        if (channels != null) {
+            for (String c : channels.split(",")) {
+                if (!c.isBlank()) list.add(c.strip());
+            }
+        }
+        return setChannels(list);
+    }
+
+    /**
+     * Rescale the exported channels to 8-bit
+     * @param rescale: Rescale mode
+     * @param low: double value (FIXED) or percentile (PERCENTILE) mapped to 0
+     * @param high: double value (FIXED) or percentile (PERCENTILE) mapped to 255
+     * @return this
+     */
+    public ExportTransform setRescale(Rescale rescale, double low, double high) {
+        if (rescale != null && rescale != Rescale.NONE && high <= low)
+            throw new IllegalArgumentException("The rescale high value must be larger than the low value: " + low + " - " + high);
+        if (rescale == Rescale.PERCENTILE && (low < 0 || high > 100))
+            throw new IllegalArgumentException("Percentiles must be between 0 and 100: " + low + " - " + high);
+        this.rescale = rescale == null ? Rescale.NONE : rescale;
+        this.low = low;
+        this.high = high;
+        return this;
+    }
+
+    public List<String> getChannels() {
+        return channels;
+    }
+
+    public Rescale getRescale() {
+        return rescale;
+    }
+
+    /**
+     * Check whether the images are exported as they are
+     * @return boolean
+     */
+    public boolean isIdentity() {
+        return channels.isEmpty() && rescale == Rescale.NONE;
+    }
+
+    /**
+     * Get the server of the image to export
+     * @param server: ImageServer of the image
+     * @return ImageServer with the selected channels (rescaled), or the same server if there is nothing to do
+     * @throws IOException if a channel does not exist, or the thumbnail could not be read
+     */
+    public ImageServer<BufferedImage> apply(ImageServer<BufferedImage> server) throws IOException {
+        if (isIdentity()) return server;
+        ImageServer<BufferedImage> out = server;
+        if (!channels.isEmpty()) out = new TransformedServerBuilder(server).extractChannels(resolveChannels(server)).build();
+        if (rescale != Rescale.NONE) {
+            double[] min = new double[out.nChannels()];
+            double[] max = new double[out.nChannels()];
+            if (rescale == Rescale.FIXED) {
+                Arrays.fill(min, low);
+                Arrays.fill(max, high);
+            }
+            else computePercentiles(out, low, high, min, max);
+            logger.debug("Rescaling " + server.getMetadata().getName() + " to 8-bit: " + Arrays.toString(min) + " - " + Arrays.toString(max));
+            out = new Rescale8BitServer(out, min, max);
+        }
+        return out;
+    }
+
+    /**
+     * Get the indices of the selected channels in a server
+     * @param server: ImageServer
+     * @return int[] channel indices (starting at 0)
+     * @throws IOException if a channel does not exist
+     */
+    private int[] resolveChannels(ImageServer<BufferedImage> server) throws IOException {
+        List<ImageChannel> server_channels = server.getMetadata().getChannels();
+        int[] indices = new int[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            String c = channels.get(i);
+            int index = -1;
+            for (int s = 0; s < server_channels.size(); s++) {
+                if (server_channels.get(s).getName().equals(c)) {
+                    index = s;
+                    break;
+                }
+            }
+            if (index < 0) {
+                try {
+                    index = Integer.parseInt(c) - 1;
+                } catch (NumberFormatException ex) {
+                    // not a number either
+                }
+            }
+            if (index < 0 || index >= server_channels.size())
+                throw new IOException("Channel '" + c + "' not found in " + server.getMetadata().getName());
+            indices[i] = index;
+        }
+        return indices;
+    }
+
+    /**
+     * Compute the low and high percentiles of every channel, on a thumbnail of the full image
+     * @param server: ImageServer
+     * @param low: double low percentile
+     * @param high: double high percentile
+     * @param min: double[] to fill with the low percentile of every channel
+     * @param max: double[] to fill with the high percentile of every channel
+     * @throws IOException
+     */
+    static void computePercentiles(ImageServer<BufferedImage> server, double low, double high, double[] min, double[] max) throws IOException {
+        double downsample = Math.max(1, Math.max(server.getWidth(), server.getHeight()) / (double) THUMBNAIL_SIZE);
+        BufferedImage thumbnail = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample,
+                0, 0, server.getWidth(), server.getHeight()));
+        Raster raster = thumbnail.getRaster();
+        float[] samples = null;
+        for (int c = 0; c < min.length; c++) {
+            samples = raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), c, samples);
+            float[] sorted = samples.clone();
+            Arrays.sort(sorted);
+            min[c] = sorted[(int) Math.round(low / 100 * (sorted.length - 1))];
+            max[c] = sorted[(int) Math.round(high / 100 * (sorted.length - 1))];
+            // an empty channel would otherwise divide by 0
+            if (max[c] <= min[c]) max[c] = min[c] + 1;
+        }
+    }
+
+    /**
+     * Describe the transform, e.g. for the prediction parameters (empty if the images are exported as they are)
+     * @return String
+     */
+    @Override
+    public String toString() {
+        if (isIdentity()) return "";
+        String s = "channels=" + (channels.isEmpty() ? "all" : String.join("|", channels));
+        if (rescale != Rescale.NONE) s += String.format(Locale.US, ",rescale=%s[%s-%s]", rescale.name(), low, high);
+        return s;
+    }
+
+    /**
+     * Server rescaling every channel of another server to 8-bit: min is mapped to 0 and max to 255 (clipped)
+     */
+    static class Rescale8BitServer extends TransformingImageServer<BufferedImage> {
+        private final double[] min;
+        private final double[] max;
+        private final ImageServerMetadata metadata;
+        private final ColorModel color_model;
+
+        Rescale8BitServer(ImageServer<BufferedImage> server, double[] min, double[] max) {
+            super(server);
+            this.min = min;
+            this.max = max;
+            this.metadata = new ImageServerMetadata.Builder(server.getMetadata())
+                    .pixelType(PixelType.UINT8)
+                    .rgb(false)
+                    .build();
+            this.color_model = ColorModelFactory.createColorModel(PixelType.UINT8, metadata.getChannels());
+        }
+
+        @Override
+        public ImageServerMetadata getOriginalMetadata() {
+            return metadata;
+        }
+
+        @Override
+        protected String createID() {
+            return getClass().getName() + ": " + getWrappedServer().getPath() + " " + Arrays.toString(min) + " - " + Arrays.toString(max);
+        }
+
+        @Override
+        public String getServerType() {
+            return "8-bit rescaled image server";
+        }
+
+        @Override
+        protected ServerBuilder<BufferedImage> createServerBuilder() {
+            // only used for exporting, never saved in a project
+            return null;
+        }
+
+        @Override
+        public BufferedImage readRegion(RegionRequest request) throws IOException {
+            BufferedImage img = getWrappedServer().readRegion(request.updatePath(getWrappedServer().getPath()));
+            if (img == null) return null;
+            Raster raster = img.getRaster();
+            int w = raster.getWidth();
+            int h = raster.getHeight();
+            WritableRaster out = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, w, h, min.length, null);
+            float[] samples = null;
+            int[] values = new int[w * h];
+            for (int c = 0; c < min.length; c++) {
+                samples = raster.getSamples(0, 0, w, h, c, samples);
+                double scale = 255.0 / (max[c] - min[c]);
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (int) Math.max(0, Math.min(255, Math.round((samples[i] - min[c]) * scale)));
+                }
+                out.setSamples(0, 0, w, h, c, values);
+            }
+            return new BufferedImage(color_model, out, false, null);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Reads ahead the next images of a list while the current one is exported, e.g. for images on a network share.
+ * For each of the next images, the image files are read once (so that they are in the page cache of the OS
+ * when the image is exported), and the image data is read (which opens the image server).
+ * At most 'depth' images are prefetched at a time, and at most 'max_warm_bytes' of each image file are read ahead.
+ * Usage: get the image data of the entries in the order of the list.
+ */
+public class ImagePrefetcher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ImagePrefetcher.class);
+    public static final int DEFAULT_DEPTH = 2;
+    public static final long DEFAULT_MAX_WARM_BYTES = 1L << 30; // 1 GB per image
+    private static final AtomicInteger thread_count = new AtomicInteger();
+
+    private final List<ProjectImageEntry<BufferedImage>> entries;
+    private final int depth;
+    private final long max_warm_bytes;
+    private final ExecutorService pool;
+    private final Map<ProjectImageEntry<BufferedImage>, Future<ImageData<BufferedImage>>> prefetched = new HashMap<>();
+    private int next = 0; // index of the next entry to prefetch
+    private int current = 0; // index of the entry asked for last
+    private IntSupplier max_ahead = () -> Integer.MAX_VALUE; // images that will still be read, from the current one
+    private int hits = 0;
+
+    /**
+     * Constructor, with 1 GB read ahead per image
+     * @param entries: List of ProjectImageEntry, in the order they are read
+     * @param depth: int number of images read ahead (0 to read every image when it is needed)
+     */
+    public ImagePrefetcher(List<ProjectImageEntry<BufferedImage>> entries, int depth) {
+        this(entries, depth, DEFAULT_MAX_WARM_BYTES);
+    }
+
+    /**
+     * Constructor
+     * @param entries: List of ProjectImageEntry, in the order they are read
+     * @param depth: int number of images read ahead (0 to read every image when it is needed)
+     * @param max_warm_bytes: long max bytes read ahead of every image file
+     */
+    public ImagePrefetcher(List<ProjectImageEntry<BufferedImage>> entries, int depth, long max_warm_bytes) {
+        this.entries = entries;
+        this.depth = Math.max(0, depth);
+        this.max_warm_bytes = max_warm_bytes;
+        this.pool = this.depth == 0 ? null : Executors.newFixedThreadPool(this.depth, r -> {
+            Thread t = new Thread(r, "ev2unet-prefetch-" + thread_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Only prefetch the images that will be read, e.g. the ones that fit into a disk budget
+     * @param max_ahead: IntSupplier number of images (including the current one) that will still be read
+     * @return this prefetcher
+     */
+    public synchronized ImagePrefetcher setMaxAhead(IntSupplier max_ahead) {
+        this.max_ahead = max_ahead;
+        return this;
+    }
+
+    /**
+     * Get the image data of an entry (prefetched if possible), and start prefetching the next ones
+     * @param entry: ProjectImageEntry of the list
+     * @return ImageData
+     * @throws IOException if the image data could not be read
+     */
+    public synchronized ImageData<BufferedImage> get(ProjectImageEntry<BufferedImage> entry) throws IOException {
+        int index = entries.indexOf(entry);
+        if (index >= 0) current = index;
+        if (index >= next) next = index + 1; // entries before it are not needed anymore
+        Future<ImageData<BufferedImage>> future = prefetched.remove(entry);
+        prefetchNext();
+        if (future == null) return entry.readImageData();
+        hits++;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + entry.getImageName(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException("Could not read " + entry.getImageName() + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Get the number of images that were prefetched when asked for
+     * @return int
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Submit the next entries until 'depth' images are prefetched
+     */
+    private void prefetchNext() {
+        if (pool == null) return;
+        int ahead = max_ahead.getAsInt();
+        while (prefetched.size() < depth && next < entries.size() && next - current < ahead) {
+            ProjectImageEntry<BufferedImage> entry = entries.get(next++);
+            prefetched.put(entry, pool.submit(() -> {
+                warmFiles(entry);
+                return entry.readImageData();
+            }));
+        }
+    }
+
+    /**
+     * Read the local image files of an entry once, up to max_warm_bytes each, without keeping them
+     * @param entry: ProjectImageEntry
+     */
+    private void warmFiles(ProjectImageEntry<BufferedImage> entry) {
+        long start = System.nanoTime();
+        long n_bytes = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            for (URI uri : entry.getURIs()) {
+                if (!"file".equals(uri.getScheme())) continue;
+                File file = new File(uri);
+                if (!file.isFile()) continue;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long file_bytes = 0;
+                    int n;
+                    while (file_bytes < max_warm_bytes && (n = channel.read(buffer)) > 0) {
+                        if (Thread.currentThread().isInterrupted()) return;
+                        file_bytes += n;
+                        buffer.clear();
+                    }
+                    n_bytes += file_bytes;
+                }
+            }
+        } catch (IOException e) {
+            // only a hint, the image is read again when exported
+            logger.debug("Could not read ahead " + entry.getImageName() + ": " + e.getLocalizedMessage());
+        }
+        logger.trace("Read ahead {} MB of {} in {} ms", n_bytes >> 20, entry.getImageName(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Stop prefetching, images that were not asked for are dropped
+     */
+    @Override
+    public synchronized void close() {
+        prefetched.values().forEach(f -> f.cancel(true));
+        prefetched.clear();
+        if (pool != null) pool.shutdownNow();
+        if (hits > 0) logger.debug("Prefetched " + hits + "/" + entries.size() + " images");
+    }
+}
@@ -0,0 +1,93 @@
+package qupath.ext.efficientv2unet;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the hot paths of a prediction, tied to the image entry,
+ * so that a recording of a slow batch shows which images and stages dominate the cost.
+ * The events are only committed while a recording with the events enabled is running,
+ * otherwise begin() and commit() are (almost) free.
+ */
+public class JfrEvents {
+
+    private JfrEvents() {}
+
+    /**
+     * Common fields: the image entry, its pixel count and the number of objects
+     */
+    @Category({"QuPath", "Efficient V2 UNet"})
+    @StackTrace(false)
+    abstract static class ImageEvent extends Event {
+        @Label("Image entry")
+        String entry;
+
+        @Label("Pixels")
+        @Description("Width x height of the image")
+        long pixels;
+
+        @Label("Objects")
+        @Description("Number of objects created or handled")
+        int objects;
+
+        /**
+         * Set the fields and commit the event (if it is enabled and above its threshold)
+         * @param entry: String name of the image entry
+         * @param pixels: long number of pixels
+         * @param objects: int number of objects
+         */
+        public void commit(String entry, long pixels, int objects) {
+            end();
+            if (!shouldCommit()) return;
+            this.entry = entry;
+            this.pixels = pixels;
+            this.objects = objects;
+            commit();
+        }
+    }
+
+    @Name("qupath.ext.efficientv2unet.Export")
+    @Label("Export image to predict")
+    public static class ExportEvent extends ImageEvent {
+        @Label("File size")
+        @DataAmount
+        long file_bytes;
+    }
+
+    @Name("qupath.ext.efficientv2unet.LoadMask")
+    @Label("Load predicted mask")
+    @Description("Whole load of a mask: decode, contour tracing, split, hierarchy insert and save")
+    public static class LoadMaskEvent extends ImageEvent {}
+
+    @Name("qupath.ext.efficientv2unet.ContourTracing")
+    @Label("Contour tracing")
+    public static class ContourTracingEvent extends ImageEvent {}
+
+    @Name("qupath.ext.efficientv2unet.SplitROI")
+    @Label("Split ROI")
+    public static class SplitEvent extends ImageEvent {}
+
+    @Name("qupath.ext.efficientv2unet.SaveImageData")
+    @Label("Save image data")
+    public static class SaveEvent extends ImageEvent {}
+
+    @Name("qupath.ext.efficientv2unet.ProcessWait")
+    @Label("Wait for python process")
+    @Category({"QuPath", "Efficient V2 UNet"})
+    @StackTrace(false)
+    public static class ProcessWaitEvent extends Event {
+        @Label("Process")
+        String process;
+
+        @Label("Exit code")
+        int exit_code;
+
+        @Label("Output lines")
+        long output_lines;
+    }
+}
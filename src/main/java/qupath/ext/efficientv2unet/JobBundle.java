@@ -0,0 +1,150 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A self-contained prediction job, that can be run on another machine with only
+ * the efficient_v2_unet python package installed (no QuPath needed):
+ * bundle / temp                    -> exported images
+ * bundle / model                   -> copy of the model (and its metadata json)
+ * bundle / manifest.json           -> entry IDs mapped to the image files, model and parameters
+ * bundle / run_prediction.sh|.bat  -> runs the prediction, saving the masks to bundle / prediction
+ * Once the prediction has run, the masks are loaded back into the project with ingest().
+ */
+public class JobBundle {
+    private static final Logger logger = LoggerFactory.getLogger(JobBundle.class);
+
+    /**
+     * Export a job bundle.
+     * @param ops: OpInEx of the project
+     * @param bundle_dir: File folder to write the bundle to
+     * @param images: List of ProjectImageEntry to be predicted
+     * @param model_path: String path to the h5 model file
+     * @param threshold: Double threshold for the prediction
+     * @param resolution: Integer resolution of the prediction
+     * @param annotationClassName: String class name for the predicted objects
+     * @param splitObject: boolean, whether to split the predicted objects
+     * @param removeExistingAnnotations: boolean, whether to remove existing objects when ingesting
+     * @return PredictionWorkspace of the bundle
+     */
+    public static PredictionWorkspace export(OpInEx ops, File bundle_dir, List<ProjectImageEntry<BufferedImage>> images,
+                                             String model_path, Double threshold, Integer resolution,
+                                             String annotationClassName, boolean splitObject, boolean removeExistingAnnotations) {
+        PredictionWorkspace workspace = new PredictionWorkspace(bundle_dir);
+
+        // Copy the model (and its metadata) into the bundle
+        File model_file = new File(model_path);
+        File model_dir = new File(bundle_dir, "model");
+        model_dir.mkdirs();
+        try {
+            Files.copy(model_file.toPath(), new File(model_dir, model_file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            File model_json = new File(model_file.getParent(), model_file.getName().replace(".h5", ".json"));
+            if (model_json.exists()) {
+                Files.copy(model_json.toPath(), new File(model_dir, model_json.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not copy the model to the bundle: " + e);
+        }
+        // the model path is relative to the bundle folder
+        String bundle_model_path = "model/" + model_file.getName();
+
+        // Export the images
+        ops.useWorkspace(workspace);
+        HashMap<ProjectImageEntry<BufferedImage>, File> temp_files = ops.exportImagesToPredict(images);
+        PredictionManifest manifest = new PredictionManifest(bundle_model_path, threshold, resolution,
+                annotationClassName, splitObject, removeExistingAnnotations);
+        manifest.setModelHash(ModelCache.hashModel(model_file));
+        manifest.setExportTransform(ops.getExportTransform().toString());
+        temp_files.forEach(manifest::addEntry);
+        workspace.writeManifest(manifest);
+
+        writeRunScripts(workspace, manifest);
+        logger.info("Exported job bundle with " + temp_files.size() + " images to: " + bundle_dir.getAbsolutePath());
+        return workspace;
+    }
+
+    /**
+     * Load the predicted masks of a bundle into the project
+     * @param ops: OpInEx of the project
+     * @param bundle_dir: File folder of the bundle
+     * @return int number of images of the bundle that are saved
+     */
+    public static int ingest(OpInEx ops, File bundle_dir) {
+        PredictionWorkspace workspace = PredictionWorkspace.open(bundle_dir);
+        if (!workspace.hasManifest()) {
+            throw new IllegalArgumentException("Not a job bundle (no manifest.json): " + bundle_dir.getAbsolutePath());
+        }
+        if (ops.getTifFilesInFolder(workspace.getPredictionDir().getAbsolutePath()).isEmpty()) {
+            throw new IllegalStateException("The job bundle has not been predicted yet: " + bundle_dir.getAbsolutePath());
+        }
+        OpInEx.WorkspaceLoad load = ops.batch_load_workspace(workspace);
+        if (!load.isComplete())
+            logger.warn(load.getFailed() + " images of the job bundle could not be loaded: " + bundle_dir.getAbsolutePath());
+        return load.getSaved();
+    }
+
+    /**
+     * Write shell and batch scripts that run the prediction from within the bundle folder
+     * @param workspace: PredictionWorkspace of the bundle
+     * @param manifest: PredictionManifest of the bundle
+     */
+    private static void writeRunScripts(PredictionWorkspace workspace, PredictionManifest manifest) {
+        String sh = "#!/bin/sh\n" +
+                "# Runs the prediction of this job bundle. Usage: ./run_prediction.sh [path/to/python]\n" +
+                "cd \"$(dirname \"$0\")\" || exit 1\n" +
+                "\"${1:-python}\" " + getArgs(manifest, JobBundle::quoteSh) + "\n";
+        // %~1 removes the quotes of a path with spaces, which are added again around %PYTHON%
+        String bat = "@echo off\r\n" +
+                "rem Runs the prediction of this job bundle. Usage: run_prediction.bat [path\\to\\python.exe]\r\n" +
+                "cd /d \"%~dp0\"\r\n" +
+                "set \"PYTHON=%~1\"\r\n" +
+                "if \"%PYTHON%\"==\"\" set \"PYTHON=python\"\r\n" +
+                "\"%PYTHON%\" " + getArgs(manifest, JobBundle::quoteBat) + "\r\n";
+        try {
+            File sh_file = new File(workspace.getRoot(), "run_prediction.sh");
+            Files.writeString(sh_file.toPath(), sh);
+            if (!sh_file.setExecutable(true)) logger.debug("Could not make executable: " + sh_file.getAbsolutePath());
+            Files.writeString(new File(workspace.getRoot(), "run_prediction.bat").toPath(), bat);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the run scripts of the bundle: " + e);
+        }
+    }
+
+    /**
+     * Get the arguments of the python prediction, with the paths quoted for the script
+     * @param manifest: PredictionManifest of the bundle
+     * @param quote: UnaryOperator quoting a path for the script
+     * @return String arguments
+     */
+    private static String getArgs(PredictionManifest manifest, UnaryOperator<String> quote) {
+        return "-W ignore -m efficient_v2_unet --predict --dir " + quote.apply("temp") +
+                " --model " + quote.apply(manifest.getModelPath()) +
+                " --resolution " + manifest.getResolution() + " --threshold " + manifest.getThreshold() +
+                " --savedir " + quote.apply("prediction") + " --use_less_memory";
+    }
+
+    /**
+     * Quote a path for a shell script (single quotes, nothing in them is expanded)
+     */
+    static String quoteSh(String path) {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Quote a path for a batch script (paths on Windows cannot contain double quotes, % is doubled)
+     */
+    static String quoteBat(String path) {
+        return "\"" + path.replace("%", "%%") + "\"";
+    }
+}
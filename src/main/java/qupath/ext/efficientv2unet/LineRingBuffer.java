@@ -0,0 +1,70 @@
+package qupath.ext.efficientv2unet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last lines of a process output (thread-safe),
+ * so long runs do not keep their whole output in memory.
+ */
+public class LineRingBuffer {
+    private final String[] lines;
+    private int next = 0;
+    private long total = 0;
+
+    /**
+     * Constructor
+     * @param capacity: int maximum number of lines to keep
+     */
+    public LineRingBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Add a line, replacing the oldest one if the buffer is full
+     * @param line: String
+     */
+    public synchronized void add(String line) {
+        lines[next] = line;
+        next = (next + 1) % lines.length;
+        total++;
+    }
+
+    /**
+     * Get the kept lines, oldest first
+     * @return List of String
+     */
+    public synchronized List<String> getLines() {
+        int n = (int) Math.min(total, lines.length);
+        List<String> out = new ArrayList<>(n);
+        int start = total > lines.length ? next : 0;
+        for (int i = 0; i < n; i++) {
+            out.add(lines[(start + i) % lines.length]);
+        }
+        return out;
+    }
+
+    /**
+     * Get the last kept lines, oldest first (e.g. for an error message)
+     * @param n: int max number of lines
+     * @return List of String
+     */
+    public synchronized List<String> getLastLines(int n) {
+        List<String> all = getLines();
+        return new ArrayList<>(all.subList(Math.max(0, all.size() - n), all.size()));
+    }
+
+    /**
+     * Get the number of lines added since the start (including the dropped ones)
+     * @return long
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(System.lineSeparator(), getLines());
+    }
+}
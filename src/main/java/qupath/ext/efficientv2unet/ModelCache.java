@@ -0,0 +1,331 @@
+package qupath.ext.efficientv2unet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Local copies of the model files, e.g. of models on a slow network share.
+ * A model is copied (and hashed in the same pass) the first time it is used, together with its metadata json.
+ * The copies keep their file names, in a folder named by the hash of the model (cache/hash/name.h5 and name.json),
+ * so that the python package finds the json next to the model as usual. They are indexed (index.json) by the path,
+ * size and last modification of the original file, so that the original is not read again as long as it does not change.
+ * The least recently used models are deleted when the cache is larger than its max size.
+ * The folder and max size are preferences (see EV2UnetSetup), the cache is disabled (the default) if the max size is 0.
+ */
+public class ModelCache {
+    private static final Logger logger = LoggerFactory.getLogger(ModelCache.class);
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final String INDEX_FILE = "index.json";
+    private static final Map<File, ModelCache> instances = new HashMap<>();
+
+    private final File dir;
+    private long max_bytes;
+    private Map<String, Entry> index; // by fingerprint of the original model file
+    private long index_modified = -1; // last modification of the index file when it was read
+
+    /**
+     * A cached model
+     */
+    public static class Entry {
+        private String hash;
+        private String source_path;
+        private long source_size;
+        private long source_modified;
+        private String file; // path of the copy in the cache folder (hash/name.h5)
+        private String json; // path of the copied metadata json in the cache folder, or null
+        private long size;
+        private long last_used;
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getSourcePath() {
+            return source_path;
+        }
+
+        public long getLastUsed() {
+            return last_used;
+        }
+    }
+
+    private ModelCache(File dir, long max_bytes) {
+        this.dir = dir;
+        this.max_bytes = max_bytes;
+    }
+
+    /**
+     * Get the cache of a folder (one instance per folder, so that it is locked across runs)
+     * @param dir: File cache folder
+     * @param max_bytes: long max size of the cached models
+     * @return ModelCache
+     */
+    public static synchronized ModelCache getInstance(File dir, long max_bytes) {
+        ModelCache cache = instances.computeIfAbsent(dir.getAbsoluteFile(), d -> new ModelCache(d, max_bytes));
+        cache.setMaxBytes(max_bytes);
+        return cache;
+    }
+
+    /**
+     * Get the cache set in the preferences
+     * @return ModelCache, or null if the cache is disabled
+     */
+    public static ModelCache getDefault() {
+        EV2UnetSetup setup = EV2UnetSetup.getInstance();
+        String dir = setup.getModelCacheDir();
+        long max_bytes = (long) (setup.getModelCacheMaxGB() * (1L << 30));
+        if (dir == null || dir.isBlank() || max_bytes <= 0) return null;
+        return getInstance(new File(dir), max_bytes);
+    }
+
+    /**
+     * Get the path of the model to load: the local copy if the cache is enabled,
+     * else (or if it could not be copied) the model itself
+     * @param model_path: String path to the h5 model file
+     * @return String path to the h5 model file to load
+     */
+    public static String getLocalModelPath(String model_path) {
+        ModelCache cache = getDefault();
+        if (cache == null) return model_path;
+        try {
+            return cache.get(new File(model_path)).getAbsolutePath();
+        } catch (IOException e) {
+            logger.warn("Could not cache model " + model_path + ", using it where it is: " + e.getLocalizedMessage());
+            return model_path;
+        }
+    }
+
+    /**
+     * Get the hash of a model file, from the cache index if it is cached, else from the hash index
+     * (see ModelHashIndex), so the file is only read if it is new or has changed
+     * @param model_file: File h5 model file
+     * @return String hash of the model file (see PredictionProvenance)
+     */
+    public static String hashModel(File model_file) {
+        ModelCache cache = getDefault();
+        if (cache != null) {
+            Entry entry = cache.getEntry(model_file);
+            if (entry != null) return entry.hash;
+        }
+        return ModelHashIndex.getDefault().getHash(model_file);
+    }
+
+    /**
+     * Get the metadata json of a model: the cached copy if the model is cached,
+     * else the json next to the model (see findMetadataJson())
+     * @param model_file: File h5 model file
+     * @return Optional File json
+     */
+    public static Optional<File> getMetadataJson(File model_file) {
+        ModelCache cache = getDefault();
+        if (cache != null) {
+            Entry entry = cache.getEntry(model_file);
+            if (entry != null && entry.json != null && new File(cache.dir, entry.json).exists())
+                return Optional.of(new File(cache.dir, entry.json));
+        }
+        return findMetadataJson(model_file);
+    }
+
+    /**
+     * Find the metadata json written with a model by the python package: the json with the same name,
+     * or else the json of the model the best checkpoint belongs to
+     * @param model_file: File h5 model file
+     * @return Optional File json, empty if the model has no json of its own
+     */
+    public static Optional<File> findMetadataJson(File model_file) {
+        String stem = model_file.getName().endsWith(".h5") ? model_file.getName().substring(0, model_file.getName().length() - 3) : model_file.getName();
+        File json = new File(model_file.getParentFile(), stem + ".json");
+        if (json.exists()) return Optional.of(json);
+        if (stem.endsWith("_best-ckp")) {
+            json = new File(model_file.getParentFile(), stem.substring(0, stem.length() - "_best-ckp".length()) + ".json");
+            if (json.exists()) return Optional.of(json);
+        }
+        return Optional.empty();
+    }
+
+    public void setMaxBytes(long max_bytes) {
+        this.max_bytes = max_bytes;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Get the local copy of a model, copying it if it is not cached (or has changed)
+     * @param model_file: File h5 model file
+     * @return File local copy
+     * @throws IOException if the model could not be copied
+     */
+    public synchronized File get(File model_file) throws IOException {
+        if (!model_file.isFile()) throw new IOException("Model file does not exist: " + model_file.getAbsolutePath());
+        Entry entry = getEntry(model_file);
+        if (entry == null) {
+            entry = copy(model_file);
+            index.put(fingerprint(model_file), entry);
+            evict(entry.hash);
+        }
+        else logger.debug("Using cached model " + entry.file + " for " + model_file.getAbsolutePath());
+        entry.last_used = System.currentTimeMillis();
+        writeIndex();
+        return new File(dir, entry.file);
+    }
+
+    /**
+     * Get the index entry of a model, if its copy is up to date
+     * @param model_file: File h5 model file
+     * @return Entry, or null if the model is not cached
+     */
+    public synchronized Entry getEntry(File model_file) {
+        readIndex();
+        Entry entry = index.get(fingerprint(model_file));
+        if (entry != null && !new File(dir, entry.file).exists()) {
+            index.remove(fingerprint(model_file));
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Get all cached models, the most recently used first
+     * @return List of Entry
+     */
+    public synchronized List<Entry> getEntries() {
+        readIndex();
+        List<Entry> entries = new ArrayList<>(index.values());
+        entries.sort(Comparator.comparingLong(Entry::getLastUsed).reversed());
+        return entries;
+    }
+
+    /**
+     * Copy a model (hashing it in the same pass) and its metadata json into the cache
+     */
+    private Entry copy(File model_file) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Could not create the model cache folder: " + dir.getAbsolutePath());
+        long start = System.currentTimeMillis();
+        File temp = File.createTempFile("model", ".part", dir);
+        String hash;
+        try (InputStream stream = new DigestInputStream(Files.newInputStream(model_file.toPath()), MessageDigest.getInstance("SHA-256"))) {
+            Files.copy(stream, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            hash = HexFormat.of().formatHex(((DigestInputStream) stream).getMessageDigest().digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            temp.delete();
+            throw new IOException("Could not copy model " + model_file.getAbsolutePath() + ": " + e.getLocalizedMessage(), e);
+        }
+        // the same model may already be cached from another path (with the same name)
+        File hash_dir = new File(dir, hash);
+        File local = new File(hash_dir, model_file.getName());
+        try {
+            if (!hash_dir.isDirectory() && !hash_dir.mkdirs()) throw new IOException("Could not create the folder " + hash_dir.getAbsolutePath());
+            if (local.exists()) temp.delete();
+            else Files.move(temp.toPath(), local.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        Entry entry = new Entry();
+        entry.hash = hash;
+        entry.source_path = model_file.getAbsolutePath();
+        entry.source_size = model_file.length();
+        entry.source_modified = model_file.lastModified();
+        entry.file = hash + "/" + local.getName();
+        entry.size = local.length();
+        // the json keeps its name, so that findMetadataJson() also finds it next to the copy
+        Optional<File> json = findMetadataJson(model_file);
+        if (json.isPresent()) {
+            File local_json = new File(hash_dir, json.get().getName());
+            Files.copy(json.get().toPath(), local_json.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            entry.json = hash + "/" + local_json.getName();
+        }
+        logger.info("Cached model " + model_file.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        return entry;
+    }
+
+    /**
+     * Delete the least recently used models until the cache is not larger than its max size
+     * @param keep_hash: String hash of the model that must be kept
+     */
+    private void evict(String keep_hash) {
+        // models can be indexed for several paths (and names), keep the last use of every hash folder
+        Map<String, Long> last_used = new LinkedHashMap<>();
+        Map<String, Long> file_sizes = new HashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        for (Entry e : index.values()) {
+            last_used.merge(e.hash, e.last_used, Math::max);
+            if (file_sizes.put(e.file, e.size) == null) sizes.merge(e.hash, e.size, Long::sum);
+        }
+        long total = sizes.values().stream().mapToLong(Long::longValue).sum();
+        List<String> hashes = new ArrayList<>(last_used.keySet());
+        hashes.sort(Comparator.comparingLong(last_used::get));
+        for (String hash : hashes) {
+            if (total <= max_bytes) break;
+            if (hash.equals(keep_hash)) continue;
+            index.values().removeIf(e -> e.hash.equals(hash));
+            deleteFolder(new File(dir, hash));
+            total -= sizes.get(hash);
+            logger.info("Removed model " + hash + " from the model cache");
+        }
+    }
+
+    private static String fingerprint(File model_file) {
+        return model_file.getAbsolutePath() + "|" + model_file.length() + "|" + model_file.lastModified();
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        if (!folder.delete()) logger.warn("Could not delete the cached model folder " + folder.getAbsolutePath());
+    }
+
+    /**
+     * Read the index, only if it is new or has been changed (e.g. by another QuPath) since it was last read
+     */
+    private void readIndex() {
+        File file = new File(dir, INDEX_FILE);
+        long modified = file.lastModified(); // 0 if it does not exist
+        if (index != null && modified == index_modified) return;
+        index_modified = modified;
+        index = new LinkedHashMap<>();
+        if (!file.exists()) return;
+        try (Reader reader = Files.newBufferedReader(file.toPath())) {
+            Map<String, Entry> read = gson.fromJson(reader, new TypeToken<LinkedHashMap<String, Entry>>() {}.getType());
+            if (read != null) index = read;
+        } catch (Exception e) {
+            logger.warn("Could not read the model cache index, starting a new one: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        // written to a temp file first, as another QuPath may read it at the same time
+        File file = new File(dir, INDEX_FILE);
+        File temp = new File(dir, INDEX_FILE + "." + ProcessHandle.current().pid() + ".part");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath())) {
+            gson.toJson(index, writer);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index_modified = file.lastModified();
+    }
+}
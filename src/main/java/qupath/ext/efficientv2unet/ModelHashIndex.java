@@ -0,0 +1,115 @@
+package qupath.ext.efficientv2unet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of the hashes of the model files (see PredictionProvenance), by path, size and last modification,
+ * so that a model on a network share is only hashed again when it changes, also if the model cache is disabled
+ * (e.g. headless runs, or every job of a sharded prediction).
+ * The index is kept in ~/.ev2unet/model_hashes.json, and read again when another QuPath has changed it.
+ */
+public class ModelHashIndex {
+    private static final Logger logger = LoggerFactory.getLogger(ModelHashIndex.class);
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final int MAX_ENTRIES = 256; // the least recently hashed models are dropped
+    private static ModelHashIndex instance;
+
+    private final File file;
+    private Map<String, Entry> index; // by absolute path of the model
+    private long index_modified = -1; // last modification of the file when it was read
+
+    private static class Entry {
+        private long size;
+        private long modified;
+        private String hash;
+    }
+
+    /**
+     * Constructor
+     * @param file: File of the index (created when the first model is hashed)
+     */
+    public ModelHashIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the index in the user folder
+     * @return ModelHashIndex
+     */
+    public static synchronized ModelHashIndex getDefault() {
+        if (instance == null)
+            instance = new ModelHashIndex(new File(System.getProperty("user.home"), ".ev2unet" + File.separator + "model_hashes.json"));
+        return instance;
+    }
+
+    /**
+     * Get the hash of a model file, hashing it only if it is not indexed or has changed
+     * @param model_file: File h5 model file
+     * @return String hash of the model file
+     */
+    public synchronized String getHash(File model_file) {
+        readIndex();
+        String path = model_file.getAbsolutePath();
+        Entry entry = index.get(path);
+        if (entry != null && entry.size == model_file.length() && entry.modified == model_file.lastModified()) return entry.hash;
+        entry = new Entry();
+        entry.size = model_file.length();
+        entry.modified = model_file.lastModified();
+        long start = System.currentTimeMillis();
+        entry.hash = PredictionProvenance.hashFile(model_file);
+        logger.debug("Hashed model " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+        index.remove(path); // moved to the end, as the most recently hashed
+        index.put(path, entry);
+        for (Iterator<String> it = index.keySet().iterator(); index.size() > MAX_ENTRIES && it.hasNext(); ) {
+            it.next();
+            it.remove();
+        }
+        writeIndex();
+        return entry.hash;
+    }
+
+    private void readIndex() {
+        long modified = file.lastModified(); // 0 if it does not exist
+        if (index != null && modified == index_modified) return;
+        index_modified = modified;
+        index = new LinkedHashMap<>();
+        if (!file.exists()) return;
+        try (Reader reader = Files.newBufferedReader(file.toPath())) {
+            Map<String, Entry> read = gson.fromJson(reader, new TypeToken<LinkedHashMap<String, Entry>>() {}.getType());
+            if (read != null) index = read;
+        } catch (Exception e) {
+            logger.warn("Could not read the model hash index, starting a new one: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void writeIndex() {
+        // written to a temp file first, as another QuPath may read it at the same time
+        File temp = new File(file.getParentFile(), file.getName() + "." + ProcessHandle.current().pid() + ".part");
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+                throw new IOException("Could not create the folder " + file.getParentFile().getAbsolutePath());
+            try (Writer writer = Files.newBufferedWriter(temp.toPath())) {
+                gson.toJson(index, writer);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index_modified = file.lastModified();
+        } catch (IOException e) {
+            logger.warn("Could not write the model hash index: " + e.getLocalizedMessage());
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package qupath.ext.efficientv2unet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Index of the trained models (h5 files) and of their metrics, as written by the python package
+ * into the metadata json next to the models: base model, epochs, best threshold and resolution, and test IoU.
+ * The index is kept in Efficient_V2_UNet/model_index.json of the project. A model is parsed again only if
+ * its file changed, so looking up a model does not list folders or read its json again.
+ * The model folders are only scanned on refresh(): Efficient_V2_UNet/models and models of the project,
+ * and the folders of the preferences (see EV2UnetSetup).
+ */
+public class ModelRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ModelRegistry.class);
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final String INDEX_FILE = "model_index.json";
+    private static final int MAX_DEPTH = 4; // of the models in a model folder
+    private static final Pattern EPOCHS = Pattern.compile("epochs(\\d+)");
+    private static final Pattern BASE_MODEL = Pattern.compile("(?:^|_)(b0|b1|b2|b3|s|m|l)(?:_|$)");
+    private static final Pattern TRAILING_NUMBER = Pattern.compile("(\\d+)$");
+
+    private final File index_file;
+    private final List<File> roots;
+    private Map<String, Model> index; // by absolute path of the model
+
+    /**
+     * A model and the metrics found for it (null if not found)
+     */
+    public static class Model {
+        private String path;
+        private long size;
+        private long modified;
+        private String json;
+        private String base_model;
+        private Integer epochs;
+        private boolean best_checkpoint;
+        // metrics of the model, and of the best checkpoint of the same training
+        private String threshold;
+        private String resolution;
+        private Double test_iou;
+        private String best_threshold;
+        private String best_resolution;
+        private Double best_test_iou;
+
+        public File getFile() {
+            return new File(path);
+        }
+
+        public String getName() {
+            return new File(path).getName();
+        }
+
+        public String getBaseModel() {
+            return base_model;
+        }
+
+        public Integer getEpochs() {
+            return epochs;
+        }
+
+        public boolean isBestCheckpoint() {
+            return best_checkpoint;
+        }
+
+        public boolean hasMetadataJson() {
+            return json != null;
+        }
+
+        public boolean hasMetrics() {
+            return threshold != null || best_threshold != null;
+        }
+
+        public String getThreshold() {
+            return threshold;
+        }
+
+        public String getResolution() {
+            return resolution;
+        }
+
+        public Double getTestIoU() {
+            return test_iou;
+        }
+
+        public String getBestThreshold() {
+            return best_threshold;
+        }
+
+        public String getBestResolution() {
+            return best_resolution;
+        }
+
+        public Double getBestTestIoU() {
+            return best_test_iou;
+        }
+
+        /**
+         * Describe the metrics, e.g. at the end of a training
+         * @return String
+         */
+        public String describe() {
+            String s = getName() + " (" + (base_model == null ? "?" : base_model) + ", " + (epochs == null ? "?" : epochs) + " epochs)";
+            if (!hasMetrics()) return s + ": no metrics found";
+            if (threshold != null) s += String.format(Locale.US, "\n  model: threshold = %s, resolution = %s, test IoU = %s",
+                    threshold, resolution, test_iou == null ? "?" : String.format(Locale.US, "%.3f", test_iou));
+            if (best_threshold != null) s += String.format(Locale.US, "\n  best checkpoint: threshold = %s, resolution = %s, test IoU = %s",
+                    best_threshold, best_resolution, best_test_iou == null ? "?" : String.format(Locale.US, "%.3f", best_test_iou));
+            return s;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + (base_model == null ? "" : " (" + base_model + (epochs == null ? "" : ", " + epochs + " epochs") + ")");
+        }
+    }
+
+    /**
+     * Constructor
+     * @param index_file: File of the index (created if it does not exist)
+     * @param roots: List of File, the folders scanned for models on refresh()
+     */
+    public ModelRegistry(File index_file, List<File> roots) {
+        this.index_file = index_file;
+        this.roots = roots;
+    }
+
+    /**
+     * Get the registry of a project
+     * @param ops: OpInEx of the project
+     * @return ModelRegistry with the model folders of the project and of the preferences
+     */
+    public static ModelRegistry forProject(OpInEx ops) {
+        Set<File> roots = new LinkedHashSet<>();
+        roots.add(new File(ops.getTraining_root(), "models"));
+        roots.add(new File(ops.getProject_dir(), "models"));
+        String extra = EV2UnetSetup.getInstance().getModelRoots();
+        if (extra != null) {
+            for (String root : extra.split(File.pathSeparator)) {
+                if (!root.isBlank()) roots.add(new File(root.strip()));
+            }
+        }
+        return new ModelRegistry(new File(ops.getTraining_root(), INDEX_FILE), new ArrayList<>(roots));
+    }
+
+    /**
+     * Get the indexed models, without scanning the model folders
+     * @return List of Model, the most recently modified first
+     */
+    public synchronized List<Model> getModels() {
+        readIndex();
+        List<Model> models = new ArrayList<>(index.values());
+        models.sort(Comparator.comparingLong((Model m) -> m.modified).reversed());
+        return models;
+    }
+
+    /**
+     * Get a model, indexing it if it is not indexed yet or has changed
+     * @param model_file: File h5 model file
+     * @return Model
+     */
+    public synchronized Model get(File model_file) {
+        readIndex();
+        Model model = index.get(model_file.getAbsolutePath());
+        if (model != null && model.size == model_file.length() && model.modified == model_file.lastModified()) return model;
+        model = parse(model_file);
+        index.put(model.path, model);
+        writeIndex();
+        return model;
+    }
+
+    /**
+     * Scan the model folders: index new and changed models, and remove the ones that no longer exist
+     * @return int number of models (re-)indexed
+     */
+    public synchronized int refresh() {
+        return refresh(roots);
+    }
+
+    /**
+     * Same as above, only for some folders (e.g. the folder of a training)
+     * @param dirs: List of File folders to scan
+     * @return int number of models (re-)indexed
+     */
+    public synchronized int refresh(List<File> dirs) {
+        readIndex();
+        int n = 0;
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) continue;
+            Path root = dir.toPath().toAbsolutePath();
+            index.values().removeIf(m -> Path.of(m.path).startsWith(root) && !new File(m.path).exists());
+            List<File> files;
+            try (Stream<Path> paths = Files.walk(root, MAX_DEPTH)) {
+                files = paths.filter(p -> p.toString().endsWith(".h5")).map(Path::toFile).toList();
+            } catch (IOException e) {
+                logger.warn("Could not scan model folder " + dir.getAbsolutePath() + ": " + e.getLocalizedMessage());
+                continue;
+            }
+            for (File file : files) {
+                Model model = index.get(file.getAbsolutePath());
+                if (model != null && model.size == file.length() && model.modified == file.lastModified()) continue;
+                model = parse(file);
+                index.put(model.path, model);
+                n++;
+            }
+        }
+        writeIndex();
+        logger.debug("Indexed " + n + " new or changed models, " + index.size() + " models in total");
+        return n;
+    }
+
+    /**
+     * Parse the metrics of a model from its metadata json
+     * @param model_file: File h5 model file
+     * @return Model
+     */
+    static Model parse(File model_file) {
+        Model model = new Model();
+        model.path = model_file.getAbsolutePath();
+        model.size = model_file.length();
+        model.modified = model_file.lastModified();
+        String name = model_file.getName();
+        model.best_checkpoint = name.endsWith("best-ckp.h5");
+        // base model and epochs from the names, as the python package names its models and folders
+        String names = name.replace(".h5", "") + "_" + (model_file.getParentFile() == null ? "" : model_file.getParentFile().getName());
+        Matcher m = BASE_MODEL.matcher(names);
+        if (m.find()) model.base_model = m.group(1);
+        m = EPOCHS.matcher(names);
+        if (m.find()) model.epochs = Integer.parseInt(m.group(1));
+
+        Optional<File> json = ModelCache.getMetadataJson(model_file);
+        if (json.isEmpty()) return model;
+        model.json = json.get().getAbsolutePath();
+        try (Reader reader = Files.newBufferedReader(json.get().toPath())) {
+            JsonObject root = JsonParser.parseReader(reader).getAsJsonObject();
+            // the json may also name the base model and epochs
+            for (String key : new String[]{"base_model", "basemodel"}) {
+                if (root.has(key) && root.get(key).isJsonPrimitive()) model.base_model = root.get(key).getAsString();
+            }
+            if (root.has("epochs") && root.get("epochs").isJsonPrimitive()) model.epochs = root.get("epochs").getAsInt();
+            if (!root.has("test_metrics") || !root.get("test_metrics").isJsonObject()) {
+                logger.info("No test_metrics found in json file: " + json.get().getAbsolutePath());
+                return model;
+            }
+            // metrics of the 'normal' and the 'best-ckp' model
+            for (Map.Entry<String, JsonElement> e : root.getAsJsonObject("test_metrics").entrySet()) {
+                if (!e.getValue().isJsonObject()) continue;
+                JsonObject params = e.getValue().getAsJsonObject().getAsJsonObject("best_binary_iou_parameters");
+                if (params == null) continue;
+                String threshold = params.has("best_threshold") ? params.get("best_threshold").getAsString() : null;
+                String resolution = null;
+                if (params.has("best_resolution")) {
+                    Matcher r = TRAILING_NUMBER.matcher(params.get("best_resolution").getAsString());
+                    resolution = r.find() ? r.group(1) : params.get("best_resolution").getAsString();
+                }
+                Double iou = findIoU(params);
+                if (e.getKey().endsWith("best-ckp.h5")) {
+                    model.best_threshold = threshold;
+                    model.best_resolution = resolution;
+                    model.best_test_iou = iou;
+                }
+                else if (e.getKey().endsWith(".h5")) {
+                    model.threshold = threshold;
+                    model.resolution = resolution;
+                    model.test_iou = iou;
+                }
+                else logger.trace("found key for model name without .h5-ending: " + e.getKey());
+            }
+        } catch (Exception e) {
+            logger.error("Error during reading of the JSON file: " + e.getLocalizedMessage());
+        }
+        return model;
+    }
+
+    /**
+     * Find the IoU of the best parameters (the key differs between versions of the python package)
+     */
+    private static Double findIoU(JsonObject params) {
+        for (Map.Entry<String, JsonElement> e : params.entrySet()) {
+            String key = e.getKey().toLowerCase();
+            if (key.contains("iou") && e.getValue().isJsonPrimitive() && e.getValue().getAsJsonPrimitive().isNumber())
+                return e.getValue().getAsDouble();
+        }
+        return null;
+    }
+
+    private void readIndex() {
+        if (index != null) return;
+        index = new LinkedHashMap<>();
+        if (!index_file.exists()) return;
+        try (Reader reader = Files.newBufferedReader(index_file.toPath())) {
+            Map<String, Model> read = gson.fromJson(reader, new TypeToken<LinkedHashMap<String, Model>>() {}.getType());
+            if (read != null) index = read;
+        } catch (Exception e) {
+            logger.warn("Could not read the model index, starting a new one: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void writeIndex() {
+        File temp = new File(index_file.getParentFile(), INDEX_FILE + ".part");
+        index_file.getParentFile().mkdirs();
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp.toPath())) {
+                gson.toJson(index, writer);
+            }
+            Files.move(temp.toPath(), index_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write the model index: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -25,11 +25,13 @@ import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.tools.GuiTools;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.LabeledImageServer;
 import qupath.lib.images.writers.ImageWriterTools;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
+import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
@@ -48,14 +50,22 @@ import static qupath.lib.roi.GeometryTools.geometryToROI;
 public class OpInEx {
     // Class variables
     private final static Logger logger = LoggerFactory.getLogger(OpInEx.class);
-    private final QuPathGUI qupath;
+    private final QuPathGUI qupath; // null when running headless
+    private final Project<BufferedImage> project;
+    private final boolean interactive; // whether dialogs may be shown
     private File project_dir;
     public File training_root;
     public File images_dir; // train images
     public File masks_dir; // train masks
-    public File prediction_dir; // predicted images
-    public File temp_dir; // folder to put images to be predicted
+    public File prediction_dir; // predicted images (of the current workspace)
+    public File temp_dir; // folder to put images to be predicted (of the current workspace)
     public ArrayList<File> temp_files = new ArrayList<>();
+    private PredictionWorkspace workspace; // workspace of the current run, created on first use
+    private RunJournal journal; // journal of the current workspace
+    private StageTimings timings = new StageTimings("ops"); // time spent exporting and loading
+    private TempImageWriter temp_writer = EV2UnetSetup.getInstance().getTempImageWriter(); // encoder of the images exported to predict
+    private ExportTransform export_transform = EV2UnetSetup.getInstance().getExportTransform(); // channels and bit depth of the exported images
+    private int prefetch_depth = EV2UnetSetup.getInstance().getPrefetchDepth(); // images read ahead while exporting
 
     /**
      * Just gets and sets the current project folder.
@@ -63,12 +73,29 @@ public class OpInEx {
      * @param qupath
      */
     public OpInEx(QuPathGUI qupath) {
+        this(qupath, qupath.getProject(), true);
+    }
+
+    /**
+     * Headless constructor, does not need a QuPathGUI and never shows dialogs.
+     * Existing training images are kept.
+     * @param project: Project to work on
+     */
+    public OpInEx(Project<BufferedImage> project) {
+        this(null, project, false);
+    }
+
+    private OpInEx(QuPathGUI qupath, Project<BufferedImage> project, boolean interactive) {
         this.qupath = qupath;
+        this.project = project;
+        this.interactive = interactive;
         // get & set the project folder File
         project_dir = retrieve_Project_dir();
         if (project_dir == null) throw new RuntimeException("Please open a project first");
-        // initialize / create output folders
-        create_output_folders();
+        // initialize the output folders, they are only created when exporting training images
+        training_root = new File(project_dir, "Efficient_V2_UNet");
+        images_dir = new File(training_root, "images");
+        masks_dir = new File(training_root, "masks");
     }
 
     /**
@@ -78,15 +105,23 @@ public class OpInEx {
     private File retrieve_Project_dir() {
         try {
             // create a temp folder
-            project_dir = qupath.getProject().getPath().getParent().toFile();
+            project_dir = project.getPath().getParent().toFile();
         }
         catch (Exception e) {
-            GuiTools.showNoProjectError("Please open a project first");
-
+            if (interactive) GuiTools.showNoProjectError("Please open a project first");
+            else logger.error("Could not get the project folder: " + e.getLocalizedMessage());
         }
     return project_dir;
     }
 
+    /**
+     * Getter for the project
+     * @return Project
+     */
+    public Project<BufferedImage> getProject() {
+        return project;
+    }
+
     /**
      * Getter for the project folder dir String
      * @return String path of project folder
@@ -95,19 +130,19 @@ public class OpInEx {
         return project_dir.getAbsolutePath();
     }
     /**
-     * Getter for the temp_dir
+     * Getter for the temp_dir (of the current workspace)
      * @return String temp_dir
      */
     public String getTemp_dir() {
-        return temp_dir.getAbsolutePath();
+        return getWorkspace().getTempDir().getAbsolutePath();
     }
 
     /**
-     * Getter for the prediction_dir
+     * Getter for the prediction_dir (of the current workspace)
      * @return String prediction_dir
      */
     public String getPrediction_dir() {
-        return prediction_dir.getAbsolutePath();
+        return getWorkspace().getPredictionDir().getAbsolutePath();
     }
 
     /**
@@ -139,13 +174,11 @@ public class OpInEx {
      * training_root = project_folder_path / Efficient_V2_UNet
      * images_dir = project_folder_path / Efficient_V2_UNet / images
      * masks_dir = project_folder_path / Efficient_V2_UNet / masks
+     * The temp and prediction folders are not shared, they belong to the workspace of a run
+     * (see getWorkspace()), so that several predictions can run on the same project,
+     * and may be in a scratch folder instead of the project folder (see getRuns_dir()).
      */
     public void create_output_folders() {
-        training_root = new File(project_dir, "Efficient_V2_UNet");
-        images_dir = new File(training_root, "images");
-        masks_dir = new File(training_root, "masks");
-        prediction_dir = new File(training_root, "prediction");
-        temp_dir = new File(training_root, "temp");
         /*
         if (images_dir.exists() || masks_dir.exists()) {
              // following function is deprecated but I did not find any other fitting function in GuiTools
@@ -155,8 +188,6 @@ public class OpInEx {
         try {
             images_dir.mkdirs();
             masks_dir.mkdirs();
-            prediction_dir.mkdirs();
-            temp_dir.mkdirs();
         }
         catch (Exception e) {
             logger.error(e.getMessage(), e);
@@ -166,7 +197,7 @@ public class OpInEx {
         boolean hasTifImages = Arrays.stream(images_dir.listFiles()).toList().stream().anyMatch(f -> f.getName().endsWith(".tif"));
         boolean hasTifMasks = Arrays.stream(masks_dir.listFiles()).toList().stream().anyMatch(f -> f.getName().endsWith(".tif"));
 
-        if (hasTifImages || hasTifMasks) {
+        if ((hasTifImages || hasTifMasks) && interactive) {
             if (!Dialogs.showYesNoDialog("TIF images already exist", "The output folders already contain images.\nImages may be overwritten.\nDo you want to keep the images?\nPress 'No' to delete them.")) {
                 // Does not delete subfolders
                 Arrays.stream(images_dir.listFiles()).toList().forEach(File::delete);
@@ -175,6 +206,159 @@ public class OpInEx {
         }
     }
 
+    /**
+     * Move the training images and masks back from the 'train', 'val' and 'test' sub-folders
+     * (created by the python training) to the images and masks folders, and delete the sub-folders.
+     * Used to clean up after a training was stopped.
+     */
+    public void undo_data_split() {
+        for (File dir : List.of(images_dir, masks_dir)) {
+            for (String split : List.of("train", "val", "test")) {
+                File split_dir = new File(dir, split);
+                File[] files = split_dir.listFiles(File::isFile);
+                if (files == null) continue;
+                for (File f : files) {
+                    if (!f.renameTo(new File(dir, f.getName()))) logger.warn("Could not move back: " + f.getAbsolutePath());
+                }
+                if (!split_dir.delete()) logger.warn("Could not delete folder: " + split_dir.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Use the temp and prediction folders of a workspace
+     * (e.g. of a resumed run, or of a shard of the project).
+     * @param workspace: PredictionWorkspace
+     */
+    public void useWorkspace(PredictionWorkspace workspace) {
+        this.workspace = workspace;
+        temp_dir = workspace.getTempDir();
+        prediction_dir = workspace.getPredictionDir();
+        temp_files = new ArrayList<>();
+        journal = workspace.getJournal();
+    }
+
+    /**
+     * Get the workspace of the current run.
+     * If none has been set with useWorkspace(), a new run is created.
+     * @return PredictionWorkspace
+     */
+    public PredictionWorkspace getWorkspace() {
+        if (workspace == null) useWorkspace(PredictionWorkspace.createRun(getRuns_dir()));
+        return workspace;
+    }
+
+    /**
+     * Record the time of the export and load stages into the timings of a run
+     * @param timings: StageTimings
+     */
+    public void setTimings(StageTimings timings) {
+        this.timings = timings;
+    }
+
+    public StageTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Set the encoder of the images exported to predict (defaults to the one of the preferences)
+     * @param temp_writer: TempImageWriter
+     */
+    public void setTempImageWriter(TempImageWriter temp_writer) {
+        this.temp_writer = temp_writer;
+    }
+
+    /**
+     * Set the channels and bit depth of the exported images (predicting and training)
+     * @param export_transform: ExportTransform
+     */
+    public void setExportTransform(ExportTransform export_transform) {
+        this.export_transform = export_transform == null ? new ExportTransform() : export_transform;
+    }
+
+    public ExportTransform getExportTransform() {
+        return export_transform;
+    }
+
+    /**
+     * Set the number of images read ahead while exporting (see ImagePrefetcher)
+     * @param prefetch_depth: int, 0 to read every image when it is exported
+     */
+    public void setPrefetchDepth(int prefetch_depth) {
+        this.prefetch_depth = Math.max(0, prefetch_depth);
+    }
+
+    /**
+     * Get the folder containing the timing reports of the runs
+     * @return File project_folder / Efficient_V2_UNet / reports
+     */
+    public File getReports_dir() {
+        return new File(training_root, "reports");
+    }
+
+    /**
+     * Get the folder the workspace of a new prediction run is created in: the runs folder of the project
+     * in the scratch folder of the preferences, if it has enough free space (see ScratchSpace),
+     * else the runs folder in the project folder
+     * @return File runs folder
+     */
+    public File getRuns_dir() {
+        ScratchSpace scratch = ScratchSpace.getDefault();
+        if (scratch != null) {
+            if (scratch.hasFreeSpace(ScratchSpace.getRequiredBytes())) return scratch.getRunsDir(project_dir);
+            logger.info("Using the project folder for the temporary files instead of the scratch folder");
+        }
+        return getProjectRuns_dir();
+    }
+
+    /**
+     * Get the runs folder in the project folder
+     * @return File project_folder / Efficient_V2_UNet / runs
+     */
+    public File getProjectRuns_dir() {
+        return new File(training_root, "runs");
+    }
+
+    /**
+     * Get the workspaces of runs that have not finished (e.g. because QuPath or python crashed),
+     * in the project folder and in the scratch folder
+     * @return List of PredictionWorkspace, newest first
+     */
+    public List<PredictionWorkspace> getUnfinishedRuns() {
+        List<File> run_dirs = new ArrayList<>();
+        List<File> runs_roots = new ArrayList<>(List.of(getProjectRuns_dir()));
+        ScratchSpace scratch = ScratchSpace.getDefault();
+        if (scratch != null) runs_roots.add(scratch.getRunsDir(project_dir));
+        for (File runs_root : runs_roots) {
+            File[] dirs = runs_root.listFiles(File::isDirectory);
+            if (dirs != null) run_dirs.addAll(Arrays.asList(dirs));
+        }
+        return run_dirs.stream()
+                .sorted(Comparator.comparing(File::getName).reversed())
+                .map(PredictionWorkspace::open)
+                .filter(w -> w.hasManifest() && !w.isComplete())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Map the entries of a workspace manifest to the project image entries (by ID)
+     * @param workspace: PredictionWorkspace with a manifest
+     * @return LinkedHashMap of ProjectImageEntry to its exported image file
+     */
+    public LinkedHashMap<ProjectImageEntry<BufferedImage>, File> map_manifest_entries(PredictionWorkspace workspace) {
+        PredictionManifest manifest = workspace.readManifest();
+        Map<String, ProjectImageEntry<BufferedImage>> entries_by_id = new HashMap<>();
+        project.getImageList().forEach(e -> entries_by_id.put(e.getID(), e));
+
+        LinkedHashMap<ProjectImageEntry<BufferedImage>, File> mapped_files = new LinkedHashMap<>();
+        manifest.getEntries().forEach(e -> {
+            ProjectImageEntry<BufferedImage> entry = entries_by_id.get(e.getId());
+            if (entry == null) logger.error("Project does not contain image <" + e.getName() + "> with ID " + e.getId());
+            else mapped_files.put(entry, new File(workspace.getTempDir(), e.getFile()));
+        });
+        return mapped_files;
+    }
+
 
     /**
      * Delete temp files (file list created when using exportTempImages())
@@ -196,7 +380,8 @@ public class OpInEx {
     /**
      * Delete the prediction files.
      * (or any list of files)
-     * @param file_list = List of files that need to be deleted. If null, then all tif files in the prediction_dir will be deleted
+     * @param file_list = List of files that need to be deleted. If null, then all tif files in the prediction_dir
+     *                  of the current workspace will be deleted (never the ones of other runs)
      * @return boolean
      */
     public boolean deletePredictionFiles(List<File> file_list) {
@@ -222,11 +407,11 @@ public class OpInEx {
     }
 
     /**
-     * Get a list of all tif files in the prediction_dir
+     * Get a list of all tif files in the prediction_dir of the current workspace
      * @return List<File>
      */
     public List<File> getPredictionFiles() {
-        List<File> file_list = List.of(prediction_dir.listFiles(new FileFilter() {
+        List<File> file_list = List.of(getWorkspace().getPredictionDir().listFiles(new FileFilter() {
             @Override
             public boolean accept(File pathname) {
                 return pathname.getName().endsWith(".tif");
@@ -269,9 +454,84 @@ public class OpInEx {
                 logger.error("Mask file does not exist: " + mask_file.getAbsolutePath());
             }
             else {
-                load_maskFile(mask_file, entry.getKey(), doSplit, doRemove, map_anno_class);
+                // a failing image should not stop the other images from being loaded
+                try {
+                    load_maskFile(mask_file, entry.getKey(), doSplit, doRemove, map_anno_class);
+                } catch (RuntimeException ex) {
+                    logger.error("Could not load mask for image <" + entry.getKey().getImageName() + ">: " + ex.getMessage());
+                    EV2UNetMetrics.getInstance().recordFailedImage();
+                }
             }
         }
+        if (journal != null) journal.sync();
+    }
+
+    /**
+     * The outcome of loading the predictions of a workspace (see batch_load_workspace())
+     */
+    public static class WorkspaceLoad {
+        private final int saved;
+        private final int failed;
+
+        WorkspaceLoad(int saved, int failed) {
+            this.saved = saved;
+            this.failed = failed;
+        }
+
+        /**
+         * Get the number of manifest entries that are saved (including the ones saved by an earlier load)
+         * @return int
+         */
+        public int getSaved() {
+            return saved;
+        }
+
+        /**
+         * Get the number of manifest entries that are not saved, e.g. because their mask is missing
+         * (the python process failed), could not be loaded, or their image is no longer in the project
+         * @return int
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Whether every entry of the manifest has been saved
+         * @return boolean
+         */
+        public boolean isComplete() {
+            return failed == 0;
+        }
+    }
+
+    /**
+     * Load the predicted masks of a workspace into the project.
+     * Uses the image files and the post-prediction settings of the workspace manifest,
+     * image entries are matched by their ID.
+     * Entries already saved (according to the journal of the workspace) are not loaded again,
+     * so a workspace can be loaded again after some of its entries failed.
+     * @param workspace: PredictionWorkspace with a manifest
+     * @return WorkspaceLoad with the number of saved and failed manifest entries
+     */
+    public WorkspaceLoad batch_load_workspace(PredictionWorkspace workspace) {
+        if (!workspace.hasManifest()) {
+            logger.error("No manifest found in: " + workspace.getRoot().getAbsolutePath());
+            return new WorkspaceLoad(0, 0);
+        }
+        PredictionManifest manifest = workspace.readManifest();
+        RunJournal workspace_journal = workspace.getJournal();
+        HashMap<ProjectImageEntry<BufferedImage>, File> mapped_files = map_manifest_entries(workspace);
+        mapped_files.keySet().removeIf(e -> workspace_journal.hasReached(e.getID(), RunJournal.State.SAVED));
+        logger.info("Loading " + mapped_files.size() + " predictions from " + workspace.getRoot().getAbsolutePath());
+        useWorkspace(workspace);
+        if (!mapped_files.isEmpty()) {
+            batch_load_maskFiles(mapped_files, manifest.doSplitAnnotations(), manifest.doRemoveAnnotations(),
+                    Map.ofEntries(Map.entry(1, manifest.getAnnotationClassName())));
+            PredictionProvenance.recordSaved(project, workspace);
+        }
+        List<String> ids = manifest.getEntries().stream().map(PredictionManifest.Entry::getId).toList();
+        int saved = workspace_journal.countSaved(ids);
+        return new WorkspaceLoad(saved, ids.size() - saved);
     }
 
 
@@ -308,6 +568,47 @@ public class OpInEx {
     }
 
 
+    /**
+     * Wrap an opened mask image for the contour tracing (first step of load_maskFile)
+     * @param mask: ImagePlus of the mask
+     * @return SimpleImage
+     */
+    public static SimpleImage wrap_mask(ImagePlus mask) {
+        return new PixelImageIJ(mask.getProcessor());
+    }
+
+    /**
+     * Trace the labels of a mask into annotations (second step of load_maskFile)
+     * @param mask: SimpleImage of the mask (see wrap_mask())
+     * @param request: RegionRequest of the full image at downsample 1
+     * @param map_anno_class: Map of label id to annotation class name
+     * @return Map of annotation class name to the traced annotations (one per label)
+     */
+    public static Map<String, List<PathObject>> trace_mask(SimpleImage mask, RegionRequest request, Map<Integer, String> map_anno_class) {
+        Map<String, List<PathObject>> annotation_map = new HashMap<>();
+        for (int label : map_anno_class.keySet()) {
+            List<PathObject> annotation = ContourTracing.createAnnotations(mask, request, label, label);
+            annotation_map.put(map_anno_class.get(label), annotation);
+        }
+        return annotation_map;
+    }
+
+    /**
+     * Split a traced annotation into one annotation per connected object (optional step of load_maskFile)
+     * @param annotation: PathObject traced annotation
+     * @param class_name: String annotation class name of the split annotations
+     * @return List of PathObject
+     */
+    public static List<PathObject> split_annotation(PathObject annotation, String class_name) {
+        List<ROI> split_ROIs = RoiTools.splitROI(annotation.getROI());
+        // Convert the ROIs to PathObjects
+        List<PathObject> split_annotations = new ArrayList<>();
+        split_ROIs.forEach(r -> split_annotations.add(
+                PathObjects.createAnnotationObject(r, PathClass.getInstance(class_name))
+        ));
+        return split_annotations;
+    }
+
     /**
      * Load a segmentation mask and adds it to a specific QuPath image entry
      * @param file = File of the mask
@@ -320,7 +621,7 @@ public class OpInEx {
     public void load_maskFile(File file, ProjectImageEntry<BufferedImage> imageEntry,
                               boolean doSplit, boolean doRemove, Map<Integer, String> map_anno_class) {
         // Sanity test
-        if (!qupath.getProject().getImageList().contains(imageEntry)) {
+        if (!project.getImageList().contains(imageEntry)) {
             logger.error("Project does not contain image: " + imageEntry.getImageName());
             throw new RuntimeException("Project does not contain image: " + imageEntry.getImageName());
         }
@@ -331,6 +632,9 @@ public class OpInEx {
 
         // Load mask file
         logger.debug("Loading mask file: " + file.getAbsolutePath());
+        JfrEvents.LoadMaskEvent load_event = new JfrEvents.LoadMaskEvent();
+        load_event.begin();
+        long start = StageTimings.start();
         ImagePlus mask = IJ.openImage(file.getAbsolutePath());
 
         // in case the image cannot be opened
@@ -339,17 +643,23 @@ public class OpInEx {
             throw new RuntimeException("Could not open mask file: " + file.getAbsolutePath());
         }
 
-        SimpleImage image = new PixelImageIJ(mask.getProcessor());
+        SimpleImage image = wrap_mask(mask);
+        timings.stop(StageTimings.MASK_DECODE, start);
+        long n_pixels = (long) image.getWidth() * image.getHeight();
         ImageData<BufferedImage> imageData;
         // load objects into a Map<AnnotationClassName, List<PathObject>>
-        Map<String, List<PathObject>> annotation_map = new HashMap<>();
+        Map<String, List<PathObject>> annotation_map;
         try {
+            start = StageTimings.start();
             imageData = imageEntry.readImageData();
+            timings.stop(StageTimings.READ_IMAGE_DATA, start);
+            start = StageTimings.start();
+            JfrEvents.ContourTracingEvent trace_event = new JfrEvents.ContourTracingEvent();
+            trace_event.begin();
             RegionRequest request = RegionRequest.createAllRequests(imageData.getServer(), 1).get(0);
-            for (int label : map_anno_class.keySet()) {
-                List<PathObject> annotation = ContourTracing.createAnnotations(image, request, label, label);
-                annotation_map.put(map_anno_class.get(label), annotation);
-            }
+            annotation_map = trace_mask(image, request, map_anno_class);
+            trace_event.commit(imageEntry.getImageName(), n_pixels, annotation_map.values().stream().mapToInt(List::size).sum());
+            timings.stop(StageTimings.CONTOUR_TRACING, start);
 
         } catch (IOException e) {
             throw new RuntimeException("Could not read imageData from QuPath image: " + imageEntry.getImageName() + " -> " + e);
@@ -357,7 +667,11 @@ public class OpInEx {
         mask.close();
 
         // remove existing annotations from the image
+        long insert_nanos = 0;
+        int n_objects = 0;
+        start = StageTimings.start();
         if (doRemove) imageData.getHierarchy().clearAll();
+        insert_nanos += System.nanoTime() - start;
 
         // add the objects to the image
         for (Map.Entry<String, List<PathObject>> entry : annotation_map.entrySet()) {
@@ -367,84 +681,128 @@ public class OpInEx {
                 logger.warn("No objects found for image <" + imageEntry.getImageName() + "> for annotation class <" + entry.getKey() + ">.");
             }
             else {
+                List<PathObject> annotations;
                 if (!doSplit) {
-                    imageData.getHierarchy().addObject(
+                    annotations = List.of(
                             PathObjects.createAnnotationObject(entry.getValue().get(0).getROI(), PathClass.getInstance(entry.getKey()))
                     );
                 } else {
-                    // Create the split ROIs
-                    List<ROI> split_ROIs = RoiTools.splitROI(entry.getValue().get(0).getROI());
-                    logger.debug("Split object into n ROIs: " + split_ROIs.size());
-                    // Convert the ROIs to PathObjects
-                    List<PathObject> split_annotations = new ArrayList<>();
-                    split_ROIs.forEach(r -> split_annotations.add(
-                            PathObjects.createAnnotationObject(r, PathClass.getInstance(entry.getKey()))
-                    ));
-                    // Add the PathObjects to the image
-                    imageData.getHierarchy().addObjects(split_annotations);
+                    start = StageTimings.start();
+                    JfrEvents.SplitEvent split_event = new JfrEvents.SplitEvent();
+                    split_event.begin();
+                    annotations = split_annotation(entry.getValue().get(0), entry.getKey());
+                    logger.debug("Split object into n ROIs: " + annotations.size());
+                    split_event.commit(imageEntry.getImageName(), n_pixels, annotations.size());
+                    timings.stop(StageTimings.SPLIT, start);
                 }
+                // Add the PathObjects to the image
+                start = StageTimings.start();
+                imageData.getHierarchy().addObjects(annotations);
+                insert_nanos += System.nanoTime() - start;
+                n_objects += annotations.size();
             }
         }
 
+        timings.add(StageTimings.HIERARCHY_INSERT, insert_nanos, 1);
+        if (journal != null) journal.record(imageEntry.getID(), RunJournal.State.IMPORTED);
+
         // save the image
         try {
+            start = StageTimings.start();
+            JfrEvents.SaveEvent save_event = new JfrEvents.SaveEvent();
+            save_event.begin();
             imageEntry.saveImageData(imageData);
+            save_event.commit(imageEntry.getImageName(), n_pixels, n_objects);
+            timings.stop(StageTimings.SAVE, start);
+            EV2UNetMetrics.getInstance().recordPredicted(n_pixels);
             logger.debug("Saved imageData: " + imageEntry.getImageName());
+            if (journal != null) journal.record(imageEntry.getID(), RunJournal.State.SAVED);
         } catch (IOException e) {
             logger.error("Could not add (save) the loaded mask to the image: " + imageEntry.getImageName() + " -> " + e);
+            EV2UNetMetrics.getInstance().recordFailedImage();
         }
+        load_event.commit(imageEntry.getImageName(), n_pixels, n_objects);
     }
 
     /**
-     * Save a list of ImageEntries to the temp folder.
+     * Save a list of ImageEntries to the temp folder of the current workspace.
      * Same as the previous exportTempImages, but returns a map of image entries linked to their temp files.
+     * The files are named by the entry ID (unique within the project), as different images can have the same name.
      *
      * @param imageList: List of ProjectImageEntry
      * @return HashMap of ProjectImageEntry<BufferedImage> to temp file
      */
     public HashMap<ProjectImageEntry<BufferedImage>, File> exportImagesToPredict(List<ProjectImageEntry<BufferedImage>> imageList) {
+        return exportImagesToPredict(imageList, null);
+    }
+
+    /**
+     * Same as above, but stops exporting once the disk budget is used up
+     * (the images that are not exported are not in the returned map)
+     * @param imageList: List of ProjectImageEntry
+     * @param budget: DiskBudget of the temp files, or null for no limit
+     * @return HashMap of ProjectImageEntry<BufferedImage> to temp file
+     */
+    public HashMap<ProjectImageEntry<BufferedImage>, File> exportImagesToPredict(List<ProjectImageEntry<BufferedImage>> imageList, DiskBudget budget) {
         // Initialise return map
         HashMap<ProjectImageEntry<BufferedImage>, File> out_map = new HashMap<>();
+        File out_dir = getWorkspace().getTempDir();
 
         logger.debug("number of images to export: " + imageList.size());
 
-        imageList.forEach(i -> {
-            // get the QuPath image name and uri
-            String image_name = i.getImageName();
-            logger.debug("start export for image: <" + image_name + ">");
-            List<URI> uri = null;
-            try {
-                uri = i.getURIs().stream().collect(Collectors.toList());
-            } catch (IOException ex) {
-                logger.error("Error: could not get image path for image: <" + image_name + ">");
-            }
-            if (uri == null) logger.error("Error: could not read image path for image <" + image_name + ">");
-            else if (uri.size() > 1) logger.error("Error: more than one image path for image <" + image_name + ">");
-            else {
-                logger.debug("current image: <" + image_name + ">, with image uri: " + uri.get(0));
-                // save image to temp folder
-                image_name = GeneralTools.stripExtension(new File(uri.get(0).getPath()).getName());
-                File out_file = new File(temp_dir, image_name + ".tif");
-                ImageData<BufferedImage> image_data = null;
+        try (ImagePrefetcher prefetcher = new ImagePrefetcher(imageList, prefetch_depth)) {
+            // only read ahead the images that will fit into the budget
+            if (budget != null) prefetcher.setMaxAhead(budget::estimateRemainingImages);
+            for (ProjectImageEntry<BufferedImage> i : imageList) {
+                // the next images are exported once the files of the exported ones are deleted
+                if (budget != null && budget.isExhausted()) break;
+                // get the QuPath image name and uri
+                String image_name = i.getImageName();
+                logger.debug("start export for image: <" + image_name + ">");
+                List<URI> uri = null;
                 try {
-                    image_data = i.readImageData();
+                    uri = i.getURIs().stream().collect(Collectors.toList());
                 } catch (IOException ex) {
-                    throw new RuntimeException("Could not read image dta for " + image_name);
+                    logger.error("Error: could not get image path for image: <" + image_name + ">");
                 }
-                try {
-                    ImageWriterTools.writeImage(image_data.getServer(), out_file.getAbsolutePath());
-                    logger.trace("Saved image " + out_file.getAbsolutePath());
-                    logger.debug("Saved image " + out_file.getAbsolutePath());
-                    // add ImageEntry and file to return map
-                    out_map.put(i, out_file);
-                    // remember the temp file in class variable
-                    temp_files.add(out_file);
-                } catch (IOException ex) {
-                    logger.debug("Caught IOException for writing temp images: " + ex.getMessage());
-                    throw new RuntimeException("Could not save image " + out_file.getAbsolutePath());
+                if (uri == null) logger.error("Error: could not read image path for image <" + image_name + ">");
+                else if (uri.size() > 1) logger.error("Error: more than one image path for image <" + image_name + ">");
+                else {
+                    logger.debug("current image: <" + image_name + ">, with image uri: " + uri.get(0));
+                    // save image to temp folder
+                    File out_file = new File(out_dir, i.getID() + ".tif");
+                    long start = StageTimings.start();
+                    JfrEvents.ExportEvent export_event = new JfrEvents.ExportEvent();
+                    export_event.begin();
+                    ImageData<BufferedImage> image_data = null;
+                    try {
+                        image_data = prefetcher.get(i);
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Could not read image data for " + image_name);
+                    }
+                    try {
+                        temp_writer.write(export_transform.apply(image_data.getServer()), out_file);
+                        timings.stop(StageTimings.EXPORT, start);
+                        long n_pixels = (long) image_data.getServer().getWidth() * image_data.getServer().getHeight();
+                        export_event.file_bytes = out_file.length();
+                        export_event.commit(image_name, n_pixels, 0);
+                        EV2UNetMetrics.getInstance().recordExport(n_pixels);
+                        if (budget != null) budget.reserve(out_file, n_pixels);
+                        logger.trace("Saved image " + out_file.getAbsolutePath());
+                        logger.debug("Saved image " + out_file.getAbsolutePath());
+                        // add ImageEntry and file to return map
+                        out_map.put(i, out_file);
+                        // remember the temp file in class variable
+                        temp_files.add(out_file);
+                        if (journal != null) journal.record(i.getID(), RunJournal.State.EXPORTED);
+                    } catch (IOException ex) {
+                        logger.debug("Caught IOException for writing temp images: " + ex.getMessage());
+                        throw new RuntimeException("Could not save image " + out_file.getAbsolutePath());
+                    }
                 }
             }
-        });
+        }
+        if (journal != null) journal.sync();
         return out_map;
     }
 
@@ -459,6 +817,7 @@ public class OpInEx {
     public ArrayList<File> exportTempImages(List<ProjectImageEntry<BufferedImage>> imageList) {
         // remember the files that have been written (return of this function)
         ArrayList<File> out_files = new ArrayList<>();
+        File out_dir = getWorkspace().getTempDir();
 
         imageList.forEach(i -> {
             // get the file name as it is in QuPath
@@ -475,7 +834,7 @@ public class OpInEx {
             else {
                 // save image to temp folder
                 image_name = GeneralTools.stripExtension(new File(uri.get(0).getPath()).getName());
-                File out_file = new File(temp_dir, image_name + ".tif");
+                File out_file = new File(out_dir, image_name + ".tif");
                 ImageData<BufferedImage> image_data = null;
                 try {
                     image_data = i.readImageData();
@@ -503,88 +862,99 @@ public class OpInEx {
      * @param fgPathClass: String name for Annotation class used as foreground label
      */
     public void exportImageMaskPair(List<ProjectImageEntry<BufferedImage>> imageList, String cropPathClass, String fgPathClass) {
-        // loop over the ProjectImageEntries
-        imageList.forEach(image -> {
-            // get the image name (without extension), and read the image data
-            String image_name = image.getImageName();
-            // if the image_name also contains a path, remove it (else Windows will not write the file)
-            if ((image_name.contains(File.separator) || image_name.contains("\\")) && image_name.contains(" - ")) {
-                image_name = image_name.split(" - ")[0];
-                logger.trace("********* Removed path from image name: " + image_name);
-            }
-            image_name = GeneralTools.stripExtension(image_name);
-            ImageData<BufferedImage> image_data;
-            try {
-                image_data = image.readImageData();
-            } catch (Exception ex) {
-                logger.error("Could not read image data for {} ({})", image.getImageName(), ex.getLocalizedMessage());
-                throw new RuntimeException("Could not read image data for " + image_name);
-            }
+        // loop over the ProjectImageEntries (reading the next ones ahead)
+        try (ImagePrefetcher prefetcher = new ImagePrefetcher(imageList, prefetch_depth)) {
+            imageList.forEach(image -> {
+                // get the image name (without extension), and read the image data
+                String image_name = image.getImageName();
+                // if the image_name also contains a path, remove it (else Windows will not write the file)
+                if ((image_name.contains(File.separator) || image_name.contains("\\")) && image_name.contains(" - ")) {
+                    image_name = image_name.split(" - ")[0];
+                    logger.trace("********* Removed path from image name: " + image_name);
+                }
+                image_name = GeneralTools.stripExtension(image_name);
+                ImageData<BufferedImage> image_data;
+                try {
+                    image_data = prefetcher.get(image);
+                } catch (Exception ex) {
+                    logger.error("Could not read image data for {} ({})", image.getImageName(), ex.getLocalizedMessage());
+                    throw new RuntimeException("Could not read image data for " + image_name);
+                }
 
-            // Create a list of ROIs for region cropping
-            List<ROI> requestROIs = new ArrayList<>();
+                // Server of the exported channels (the percentiles of a rescale are computed once per image)
+                ImageServer<BufferedImage> export_server;
+                try {
+                    export_server = export_transform.apply(image_data.getServer());
+                } catch (IOException ex) {
+                    logger.error("Could not export the channels of {} ({})", image.getImageName(), ex.getLocalizedMessage());
+                    throw new RuntimeException("Could not export the channels of " + image_name);
+                }
 
-            // If no cropping region class selected, create region request for full image
-            if (cropPathClass == null) {
-                // create ROI for full image
-                Geometry roi = createRectangle(0, 0, image_data.getServer().getWidth(), image_data.getServer().getHeight());
-                requestROIs.add(geometryToROI(roi, ImagePlane.getDefaultPlane()));
-            }
-            else {
-                List<PathObject> cropAnnotations = new ArrayList<>();
-                Collection<PathObject> allAnnotations = image_data.getHierarchy().getAnnotationObjects();
-                allAnnotations.stream().forEach(a -> {
-                    // create ROI for annotation (that is not null)
-                    if (a.getPathClass() != null && a.getPathClass().getName().equals(cropPathClass)) cropAnnotations.add(a);
-                });
+                // Create a list of ROIs for region cropping
+                List<ROI> requestROIs = new ArrayList<>();
 
-                // if there are no fitting cropping annotations, create regionROI for full image
-                if (cropAnnotations.isEmpty()) {
+                // If no cropping region class selected, create region request for full image
+                if (cropPathClass == null) {
+                    // create ROI for full image
                     Geometry roi = createRectangle(0, 0, image_data.getServer().getWidth(), image_data.getServer().getHeight());
                     requestROIs.add(geometryToROI(roi, ImagePlane.getDefaultPlane()));
                 }
-                // create regionROIs for all annotations objects
                 else {
-                    cropAnnotations.forEach(a -> {
-                        Geometry roi = createRectangle(a.getROI().getBoundsX(), a.getROI().getBoundsY(), a.getROI().getBoundsWidth(), a.getROI().getBoundsHeight());
-                        requestROIs.add(geometryToROI(roi,ImagePlane.getDefaultPlane()));
+                    List<PathObject> cropAnnotations = new ArrayList<>();
+                    Collection<PathObject> allAnnotations = image_data.getHierarchy().getAnnotationObjects();
+                    allAnnotations.stream().forEach(a -> {
+                        // create ROI for annotation (that is not null)
+                        if (a.getPathClass() != null && a.getPathClass().getName().equals(cropPathClass)) cropAnnotations.add(a);
                     });
-                }
-            }
-
-            // create a label mask
-            LabeledImageServer mask = new LabeledImageServer.Builder(image_data)
-                    .backgroundLabel(0, ColorTools.BLACK)
-                    .multichannelOutput(false)
-                    .useAnnotations()
-                    .addLabel(fgPathClass, 1)
-                    .build();
-
-            // Save image and mask for each requestROI
-            AtomicInteger count = new AtomicInteger(1);
-            String name = image_name;
-            requestROIs.forEach(roi -> {
-                // Create a RegionRequest without downsampling
-                RegionRequest request = RegionRequest.createInstance(image_data.getServer().getPath(), 1, roi);
-
-                // write images to file
-                File image_file = new File(images_dir, name + "_" + count.get() + ".tif");
-                File mask_file = new File(masks_dir, name + "_" + count.get() + ".tif");
 
-                try {
-                    ImageWriterTools.writeImageRegion(image_data.getServer(), request, image_file.getAbsolutePath());
-                    if (image_file.exists()) logger.info("Image has been written to: " + image_file.getAbsolutePath());
-                    else logger.error("Image was NOT written to: " + image_file.getAbsolutePath());
-                    ImageWriterTools.writeImageRegion(mask, request, mask_file.getAbsolutePath());
-                    if (mask_file.exists()) logger.info("Mask has been written to: " + mask_file.getAbsolutePath());
-                    else logger.error("Mask was NOT written to: " + mask_file.getAbsolutePath());
-                } catch (Exception ex) {
-                    logger.error("Error in writing images to file: {} ({})", name, ex.getLocalizedMessage());
+                    // if there are no fitting cropping annotations, create regionROI for full image
+                    if (cropAnnotations.isEmpty()) {
+                        Geometry roi = createRectangle(0, 0, image_data.getServer().getWidth(), image_data.getServer().getHeight());
+                        requestROIs.add(geometryToROI(roi, ImagePlane.getDefaultPlane()));
+                    }
+                    // create regionROIs for all annotations objects
+                    else {
+                        cropAnnotations.forEach(a -> {
+                            Geometry roi = createRectangle(a.getROI().getBoundsX(), a.getROI().getBoundsY(), a.getROI().getBoundsWidth(), a.getROI().getBoundsHeight());
+                            requestROIs.add(geometryToROI(roi,ImagePlane.getDefaultPlane()));
+                        });
+                    }
                 }
-                count.getAndIncrement();
-            });
 
-        }); // end loop over selected project image entries
+                // create a label mask
+                LabeledImageServer mask = new LabeledImageServer.Builder(image_data)
+                        .backgroundLabel(0, ColorTools.BLACK)
+                        .multichannelOutput(false)
+                        .useAnnotations()
+                        .addLabel(fgPathClass, 1)
+                        .build();
+
+                // Save image and mask for each requestROI
+                AtomicInteger count = new AtomicInteger(1);
+                String name = image_name;
+                requestROIs.forEach(roi -> {
+                    // Create a RegionRequest without downsampling
+                    RegionRequest request = RegionRequest.createInstance(export_server.getPath(), 1, roi);
+
+                    // write images to file
+                    File image_file = new File(images_dir, name + "_" + count.get() + ".tif");
+                    File mask_file = new File(masks_dir, name + "_" + count.get() + ".tif");
+
+                    try {
+                        ImageWriterTools.writeImageRegion(export_server, request, image_file.getAbsolutePath());
+                        if (image_file.exists()) logger.info("Image has been written to: " + image_file.getAbsolutePath());
+                        else logger.error("Image was NOT written to: " + image_file.getAbsolutePath());
+                        ImageWriterTools.writeImageRegion(mask, request, mask_file.getAbsolutePath());
+                        if (mask_file.exists()) logger.info("Mask has been written to: " + mask_file.getAbsolutePath());
+                        else logger.error("Mask was NOT written to: " + mask_file.getAbsolutePath());
+                    } catch (Exception ex) {
+                        logger.error("Error in writing images to file: {} ({})", name, ex.getLocalizedMessage());
+                    }
+                    count.getAndIncrement();
+                });
+
+            }); // end loop over selected project image entries
+        }
     } // export_images
 
 
@@ -602,7 +972,7 @@ public class OpInEx {
         path = new File(masks_dir, "mCherry.tif").getAbsolutePath(); // FIXME temp
 
         // get the imageData and check that an image is open
-        ImageData<BufferedImage> imageData = qupath.getImageData();
+        ImageData<BufferedImage> imageData = qupath == null ? null : qupath.getImageData();
         if (imageData == null) {
             GuiTools.showNoImageError("Please open an image first");
             return; // return if no image (ends the function)
@@ -651,8 +1021,8 @@ public class OpInEx {
         logger.info("Creating output folders");
         create_output_folders();
         // get the imageData and image name
-        ImageData<BufferedImage> imageData = qupath.getImageData();
-        
+        ImageData<BufferedImage> imageData = qupath == null ? null : qupath.getImageData();
+
         String image_name = null;
         try {
             image_name = imageData.getServer().getMetadata().getName();
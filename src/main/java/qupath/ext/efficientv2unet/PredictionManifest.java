@@ -0,0 +1,192 @@
+package qupath.ext.efficientv2unet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a prediction run: the model, the parameters and which exported
+ * image file belongs to which project image entry (by entry ID).
+ * Written as JSON into the run directory, so that the predictions can be
+ * loaded back into the project later (or by another QuPath instance).
+ */
+public class PredictionManifest {
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    // Predict settings
+    private String model_path;
+    private String model_hash;
+    private Double threshold;
+    private Integer resolution;
+    // Post-prediction settings
+    private String annotation_class_name;
+    private boolean split_annotations;
+    private boolean remove_annotations;
+    // Channels and bit depth of the exported images (see ExportTransform), empty if exported as they are
+    private String export_transform;
+    // Exported images
+    private List<Entry> entries = new ArrayList<>();
+    private transient Map<String, Integer> entry_indices; // index in entries by entry ID, built on first use
+
+    /**
+     * A project image entry and the file name of its exported image
+     * (the predicted mask has the same file name).
+     */
+    public static class Entry {
+        private String id;
+        private String name;
+        private String file;
+
+        private Entry(String id, String name, String file) {
+            this.id = id;
+            this.name = name;
+            this.file = file;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param model_path: String path to the h5 model file
+     * @param threshold: Double threshold for the prediction
+     * @param resolution: Integer resolution of the prediction
+     * @param annotation_class_name: String class name for the predicted objects
+     * @param split_annotations: boolean, whether to split the predicted objects
+     * @param remove_annotations: boolean, whether to remove existing objects
+     */
+    public PredictionManifest(String model_path, Double threshold, Integer resolution,
+                              String annotation_class_name, boolean split_annotations, boolean remove_annotations) {
+        this.model_path = model_path;
+        this.threshold = threshold;
+        this.resolution = resolution;
+        this.annotation_class_name = annotation_class_name;
+        this.split_annotations = split_annotations;
+        this.remove_annotations = remove_annotations;
+    }
+
+    /**
+     * Add an exported image (or replace it, if the entry was already added)
+     * @param imageEntry: ProjectImageEntry that was exported
+     * @param file: File the image was exported to
+     */
+    public void addEntry(ProjectImageEntry<BufferedImage> imageEntry, File file) {
+        if (entry_indices == null) {
+            entry_indices = new HashMap<>();
+            for (int i = 0; i < entries.size(); i++) entry_indices.put(entries.get(i).id, i);
+        }
+        Entry entry = new Entry(imageEntry.getID(), imageEntry.getImageName(), file.getName());
+        // an entry that is exported again replaces the previous one
+        Integer index = entry_indices.get(entry.id);
+        if (index != null) entries.set(index, entry);
+        else {
+            entry_indices.put(entry.id, entries.size());
+            entries.add(entry);
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public String getModelPath() {
+        return model_path;
+    }
+
+    public String getModelHash() {
+        return model_hash;
+    }
+
+    /**
+     * Set the hash of the model file (see PredictionProvenance)
+     * @param model_hash: String hash of the model file
+     */
+    public void setModelHash(String model_hash) {
+        this.model_hash = model_hash;
+    }
+
+    public String getExportTransform() {
+        return export_transform;
+    }
+
+    /**
+     * Set the description of the export transform of the images
+     * @param export_transform: String (see ExportTransform.toString())
+     */
+    public void setExportTransform(String export_transform) {
+        this.export_transform = export_transform;
+    }
+
+    public Double getThreshold() {
+        return threshold;
+    }
+
+    public Integer getResolution() {
+        return resolution;
+    }
+
+    public String getAnnotationClassName() {
+        return annotation_class_name;
+    }
+
+    public boolean doSplitAnnotations() {
+        return split_annotations;
+    }
+
+    public boolean doRemoveAnnotations() {
+        return remove_annotations;
+    }
+
+    /**
+     * Write the manifest as JSON.
+     * It is written to a temp file first and then moved, so that a crash never leaves a truncated manifest.
+     * @param file: File to write to
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = new FileWriter(temp)) {
+            gson.toJson(this, writer);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read a manifest from a JSON file
+     * @param file: File to read
+     * @return PredictionManifest
+     * @throws IOException
+     */
+    public static PredictionManifest read(File file) throws IOException {
+        try (Reader reader = new FileReader(file)) {
+            PredictionManifest manifest = gson.fromJson(reader, PredictionManifest.class);
+            if (manifest == null) throw new IOException("Empty manifest file: " + file.getAbsolutePath());
+            if (manifest.entries == null) manifest.entries = new ArrayList<>();
+            return manifest;
+        }
+    }
+}
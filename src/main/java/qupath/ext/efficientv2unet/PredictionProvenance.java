@@ -0,0 +1,157 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Records in the metadata of a project image entry which model, parameters and image
+ * produced its current predicted objects. Allows to predict only images that are new
+ * or have changed since their last prediction.
+ */
+public class PredictionProvenance {
+    private static final Logger logger = LoggerFactory.getLogger(PredictionProvenance.class);
+    public static final String KEY_MODEL_HASH = "EV2UNet model hash";
+    public static final String KEY_PARAMETERS = "EV2UNet parameters";
+    public static final String KEY_IMAGE_FINGERPRINT = "EV2UNet image fingerprint";
+
+    /**
+     * Calculate the SHA-256 hash of a file
+     * @param file: File, e.g. the h5 model
+     * @return String hex hash
+     */
+    public static String hashFile(File file) {
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            for (int n = stream.read(buffer); n > 0; n = stream.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not hash file: " + file.getAbsolutePath() + " -> " + e);
+        }
+    }
+
+    /**
+     * The prediction parameters that change the predicted objects
+     * @param manifest: PredictionManifest
+     * @return String describing the parameters
+     */
+    public static String getParameters(PredictionManifest manifest) {
+        return "threshold=" + manifest.getThreshold() +
+                ";resolution=" + manifest.getResolution() +
+                ";class=" + manifest.getAnnotationClassName() +
+                ";split=" + manifest.doSplitAnnotations() +
+                ";remove=" + manifest.doRemoveAnnotations() +
+                // only if set, so that images predicted before it existed stay up to date
+                (manifest.getExportTransform() == null || manifest.getExportTransform().isEmpty() ? "" : ";export=" + manifest.getExportTransform());
+    }
+
+    /**
+     * A cheap fingerprint of the image files of an entry (path, size and last modification),
+     * the image itself is not read.
+     * @param imageEntry: ProjectImageEntry
+     * @return String fingerprint
+     */
+    public static String getImageFingerprint(ProjectImageEntry<BufferedImage> imageEntry) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (URI uri : imageEntry.getURIs()) {
+                sb.append(uri);
+                if ("file".equals(uri.getScheme())) {
+                    File file = new File(uri);
+                    sb.append(':').append(file.length()).append(':').append(file.lastModified());
+                }
+                sb.append(';');
+            }
+        } catch (IOException e) {
+            logger.warn("Could not get image path for image <" + imageEntry.getImageName() + ">: " + e.getLocalizedMessage());
+            return null;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Whether the current predicted objects of an entry were created with the same model,
+     * parameters and image.
+     * @param imageEntry: ProjectImageEntry
+     * @param manifest: PredictionManifest of the new prediction (with the model hash)
+     * @return boolean
+     */
+    public static boolean isUpToDate(ProjectImageEntry<BufferedImage> imageEntry, PredictionManifest manifest) {
+        String fingerprint = imageEntry.getMetadataValue(KEY_IMAGE_FINGERPRINT);
+        return fingerprint != null &&
+                Objects.equals(imageEntry.getMetadataValue(KEY_MODEL_HASH), manifest.getModelHash()) &&
+                Objects.equals(imageEntry.getMetadataValue(KEY_PARAMETERS), getParameters(manifest)) &&
+                fingerprint.equals(getImageFingerprint(imageEntry));
+    }
+
+    /**
+     * Keep only the entries that have never been predicted, or not with the model, parameters and image of the manifest
+     * @param imageList: List of ProjectImageEntry
+     * @param manifest: PredictionManifest of the new prediction (with the model hash)
+     * @return List of ProjectImageEntry that need to be predicted
+     */
+    public static List<ProjectImageEntry<BufferedImage>> filterNewOrChanged(List<ProjectImageEntry<BufferedImage>> imageList,
+                                                                            PredictionManifest manifest) {
+        List<ProjectImageEntry<BufferedImage>> filtered = imageList.stream()
+                .filter(i -> !isUpToDate(i, manifest))
+                .collect(Collectors.toList());
+        logger.info("Skipping " + (imageList.size() - filtered.size()) + " images that are already predicted with the same model and parameters");
+        return filtered;
+    }
+
+    /**
+     * Record the provenance of all images of a workspace that have been saved, and sync the project.
+     * @param project: Project
+     * @param workspace: PredictionWorkspace with manifest and journal
+     */
+    public static void recordSaved(Project<BufferedImage> project, PredictionWorkspace workspace) {
+        if (!workspace.hasManifest()) return;
+        PredictionManifest manifest = workspace.readManifest();
+        RunJournal journal = workspace.getJournal();
+        String parameters = getParameters(manifest);
+        Map<String, ProjectImageEntry<BufferedImage>> entries_by_id = project.getImageList().stream()
+                .collect(Collectors.toMap(ProjectImageEntry::getID, Function.identity()));
+        int count = 0;
+        for (PredictionManifest.Entry e : manifest.getEntries()) {
+            if (!journal.hasReached(e.getId(), RunJournal.State.SAVED)) continue;
+            ProjectImageEntry<BufferedImage> imageEntry = entries_by_id.get(e.getId());
+            if (imageEntry == null) continue;
+            if (manifest.getModelHash() != null) imageEntry.putMetadataValue(KEY_MODEL_HASH, manifest.getModelHash());
+            imageEntry.putMetadataValue(KEY_PARAMETERS, parameters);
+            String fingerprint = getImageFingerprint(imageEntry);
+            if (fingerprint != null) imageEntry.putMetadataValue(KEY_IMAGE_FINGERPRINT, fingerprint);
+            count++;
+        }
+        if (count == 0) return;
+        try {
+            project.syncChanges();
+        } catch (IOException e) {
+            logger.error("Could not save the prediction metadata to the project: " + e.getLocalizedMessage());
+        }
+    }
+}
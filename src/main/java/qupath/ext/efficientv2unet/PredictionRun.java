@@ -0,0 +1,630 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.cmd.VirtualEnvironmentRunner;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Predicts a list of project image entries in a single python session, without the QuPath GUI:
+ * exports the images to the run workspace, predicts them, loads the masks into the entries and saves them.
+ * Used by the predict dialog (PredictTask) and by scripts (EfficientV2UNet.predictAsync()).
+ * The progress is recorded in the RunJournal of the workspace, so an unfinished run can be resumed.
+ */
+public class PredictionRun {
+    private static final Logger logger = LoggerFactory.getLogger(PredictionRun.class);
+    private static final String PREDICTING = "Predicting images...";
+    private static final int STAGES_PER_PART = 3; // exporting, predicting and loading, in the progress
+
+    /**
+     * Receives the progress of a run (called on the thread of the run)
+     */
+    public interface Listener {
+        void updateMessage(String message);
+        void updateProgress(long done, long total);
+        default void entryStateChanged(ProjectImageEntry<BufferedImage> entry, RunJournal.State state) {}
+    }
+
+    private List<ProjectImageEntry<BufferedImage>> imagesToPredict;
+    private final PredictionManifest manifest;
+    private final PredictionWorkspace workspace;
+    private final RunJournal journal;
+    private final OpInEx ops;
+    private final String python_path;
+    private final VirtualEnvironmentRunner.EnvType env_type;
+    private boolean use_less_memory = true;
+    private boolean only_new_or_changed = false;
+    private Listener listener = new Listener() {
+        @Override
+        public void updateMessage(String message) {}
+        @Override
+        public void updateProgress(long done, long total) {}
+    };
+    private CompletableFuture<Result> future;
+    private volatile ProcessSupervisor supervisor;
+    private volatile boolean cancelled = false;
+    private volatile int error = 1; // 0 = cancelled, 1 = all fine
+                                    // 2 = CLI exe error, 3 = Venv error, 5 = interrupted or failed
+    private volatile String error_message = ""; // details of the error, e.g. the last output of a failed process
+    private final ProgressBus bus = new ProgressBus();
+    private final StageTimings timings;
+    private volatile int n_to_predict = 0;
+    private String local_model_path; // model loaded by python (the cached copy, see ModelCache)
+    private DiskBudget disk_budget = DiskBudget.fromPreferences(); // of the exported images and masks
+    private int skipped = 0;
+
+    /**
+     * The outcome of a run
+     */
+    public static class Result {
+        private final Map<ProjectImageEntry<BufferedImage>, RunJournal.State> states;
+        private final int skipped;
+        private final int error;
+        private final String error_message;
+        private final StageTimings timings;
+
+        private Result(Map<ProjectImageEntry<BufferedImage>, RunJournal.State> states, int skipped, int error,
+                       String error_message, StageTimings timings) {
+            this.states = Collections.unmodifiableMap(states);
+            this.skipped = skipped;
+            this.error = error;
+            this.error_message = error_message;
+            this.timings = timings;
+        }
+
+        /**
+         * Get the state each entry of the run has reached (null if it was not even exported)
+         * @return Map of ProjectImageEntry to State
+         */
+        public Map<ProjectImageEntry<BufferedImage>, RunJournal.State> getStates() {
+            return states;
+        }
+
+        /**
+         * Get the entries that have been predicted and saved
+         * @return List of ProjectImageEntry
+         */
+        public List<ProjectImageEntry<BufferedImage>> getSaved() {
+            return states.entrySet().stream().filter(e -> e.getValue() == RunJournal.State.SAVED).map(Map.Entry::getKey).toList();
+        }
+
+        /**
+         * Get the number of entries that have not been saved (the run can be resumed, unless it was cancelled)
+         * @return int
+         */
+        public int getRemaining() {
+            return states.size() - getSaved().size();
+        }
+
+        /**
+         * Get the number of entries skipped as they were up to date (see PredictionProvenance)
+         * @return int
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Get the error code: 0 = cancelled, 1 = all fine, 2 = CLI exe error, 3 = Venv error, 5 = interrupted or failed
+         * @return int
+         */
+        public int getError() {
+            return error;
+        }
+
+        /**
+         * Get the details of the error, e.g. the last output of a failed python process
+         * @return String, empty if there are none
+         */
+        public String getErrorMessage() {
+            return error_message;
+        }
+
+        /**
+         * Get the time spent in every stage of the run
+         * @return StageTimings
+         */
+        public StageTimings getTimings() {
+            return timings;
+        }
+
+        /**
+         * Whether all entries have been predicted and saved
+         * @return boolean
+         */
+        public boolean isComplete() {
+            return error == 1 && getRemaining() == 0;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param imagesToPredict: List of ProjectImageEntry of the run
+     * @param manifest: PredictionManifest with the prediction parameters
+     * @param workspace: PredictionWorkspace of the run (a new or an unfinished one)
+     * @param ops: OpInEx of the project
+     * @param python_path: String path to the EfficientV2UNet python executable
+     * @param env_type: VirtualEnvironmentRunner.EnvType of the python environment
+     */
+    public PredictionRun(List<ProjectImageEntry<BufferedImage>> imagesToPredict,
+                         PredictionManifest manifest,
+                         PredictionWorkspace workspace,
+                         OpInEx ops,
+                         String python_path,
+                         VirtualEnvironmentRunner.EnvType env_type) {
+        this.imagesToPredict = imagesToPredict;
+        this.manifest = manifest;
+        this.workspace = workspace;
+        this.journal = workspace.getJournal();
+        this.ops = ops;
+        this.ops.useWorkspace(workspace);
+        this.python_path = python_path;
+        this.env_type = env_type;
+        this.timings = new StageTimings(workspace.getRunId());
+        this.ops.setTimings(timings);
+        this.bus.addSnapshotListener(this::forwardProgress);
+    }
+
+    /**
+     * Specify whether to use less memory, by predicting images one by one
+     * @param use_less_memory: boolean
+     * @return this run
+     */
+    public PredictionRun setUseLessMemory(boolean use_less_memory) {
+        this.use_less_memory = use_less_memory;
+        return this;
+    }
+
+    /**
+     * Specify whether to skip the images that are up to date (see PredictionProvenance)
+     * @param only_new_or_changed: boolean
+     * @return this run
+     */
+    public PredictionRun setOnlyNewOrChanged(boolean only_new_or_changed) {
+        this.only_new_or_changed = only_new_or_changed;
+        return this;
+    }
+
+    /**
+     * Specify the disk space the exported images and masks may use at a time:
+     * larger runs are exported, predicted and loaded in parts (the model is loaded for every part)
+     * @param disk_budget: DiskBudget (see DiskBudget.fromPreferences())
+     * @return this run
+     */
+    public PredictionRun setDiskBudget(DiskBudget disk_budget) {
+        this.disk_budget = disk_budget == null ? new DiskBudget(0) : disk_budget;
+        return this;
+    }
+
+    /**
+     * Specify the listener for the progress of the run
+     * @param listener: Listener
+     * @return this run
+     */
+    public PredictionRun setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public PredictionWorkspace getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * Get the current state of an entry of the run
+     * @param entry: ProjectImageEntry
+     * @return State, or null if it has not been exported yet
+     */
+    public RunJournal.State getState(ProjectImageEntry<BufferedImage> entry) {
+        return journal.getState(entry.getID());
+    }
+
+    /**
+     * Get the progress of the run
+     * @return double between 0 and 1
+     */
+    public double getProgress() {
+        ProgressBus.Snapshot snapshot = bus.getSnapshot();
+        return (double) snapshot.getDone() / snapshot.getTotal();
+    }
+
+    /**
+     * Get the time spent in every stage of the run (so far)
+     * @return StageTimings
+     */
+    public StageTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Get the progress events of the run, e.g. to follow the predicted images in a script
+     * @return ProgressBus
+     */
+    public ProgressBus getProgressBus() {
+        return bus;
+    }
+
+    /**
+     * Get the future of the run, once it has been started with runAsync()
+     * @return CompletableFuture of the Result, or null if not started
+     */
+    public synchronized CompletableFuture<Result> getFuture() {
+        return future;
+    }
+
+    /**
+     * Run in the background. Cancelling the returned future cancels the run.
+     * Note: a script should wait for the future (e.g. future.join()) before it ends.
+     * @return CompletableFuture of the Result
+     */
+    public synchronized CompletableFuture<Result> runAsync() {
+        if (future != null) return future;
+        CompletableFuture<Result> f = new CompletableFuture<>();
+        f.whenComplete((r, e) -> {
+            if (f.isCancelled()) cancel();
+        });
+        Thread t = new Thread(() -> {
+            try {
+                f.complete(run());
+            } catch (Throwable e) {
+                f.completeExceptionally(e);
+            }
+        }, "ev2unet-run-" + workspace.getRunId());
+        t.setDaemon(true);
+        t.start();
+        future = f;
+        return f;
+    }
+
+    /**
+     * Cancel the run: terminates the python process (and its children), and deletes the exported images.
+     * The entries saved so far keep their predicted objects, and the workspace is kept
+     * (with its manifest, its journal and the predicted masks not imported yet),
+     * so the run can still be resumed (exporting the images again), or discarded by deleting its workspace.
+     */
+    public void cancel() {
+        cancelled = true;
+        error = 0;
+        ProcessSupervisor s = supervisor;
+        if (s != null) s.terminateAsync();
+    }
+
+    /**
+     * Run the prediction, which blocks until done
+     * @return Result
+     */
+    public Result run() {
+        BiConsumer<String, RunJournal.State> journal_listener = forwardEntryStates();
+        journal.addListener(journal_listener);
+        EV2UNetMetrics metrics = EV2UNetMetrics.getInstance();
+        metrics.addTempDir(workspace.getRoot());
+        bus.start();
+        try {
+            doRun();
+        } finally {
+            bus.close();
+            journal.removeListener(journal_listener);
+            metrics.removeTempDir(workspace.getRoot());
+            if (error > 1) metrics.recordFailedJob();
+            timings.writeReport(ops.getReports_dir());
+            // make sure the python process has ended before freeing the disk,
+            // the exported images are cheap to export again, the rest of the workspace is kept for resuming the run
+            if (cancelled) {
+                if (supervisor != null) supervisor.terminate(ProcessSupervisor.DEFAULT_GRACE_MILLIS);
+                journal.sync();
+                int n_deleted = workspace.deleteExportedImages();
+                logger.info("Prediction cancelled, deleted " + n_deleted + " exported images, it can be resumed or discarded: " + workspace.getRoot().getAbsolutePath());
+            }
+        }
+        Map<ProjectImageEntry<BufferedImage>, RunJournal.State> states = new LinkedHashMap<>();
+        imagesToPredict.forEach(i -> states.put(i, journal.getState(i.getID())));
+        return new Result(states, skipped, error, error_message, timings);
+    }
+
+    private BiConsumer<String, RunJournal.State> forwardEntryStates() {
+        Map<String, ProjectImageEntry<BufferedImage>> entries_by_id = new HashMap<>();
+        imagesToPredict.forEach(i -> entries_by_id.put(i.getID(), i));
+        return (id, state) -> {
+            ProjectImageEntry<BufferedImage> entry = entries_by_id.get(id);
+            if (entry != null) listener.entryStateChanged(entry, state);
+        };
+    }
+
+    /**
+     * Pass the (coalesced) progress on to the listener
+     * @param snapshot: ProgressBus.Snapshot
+     */
+    private void forwardProgress(ProgressBus.Snapshot snapshot) {
+        listener.updateProgress(snapshot.getDone(), snapshot.getTotal());
+        if (PREDICTING.equals(snapshot.getStage()) && n_to_predict > 0) {
+            long cur_image = Math.max(1, Math.min(snapshot.getImagesStarted(), n_to_predict));
+            listener.updateMessage("Predicting....\nPredicting image " + cur_image + "/" + n_to_predict
+                    + " (remaining: " + ProgressBus.formatDuration(snapshot.getEtaMillis()) + ")\n" + snapshot.getLastOutput());
+        }
+        else {
+            String summary = timings.getSummary();
+            listener.updateMessage(summary.isEmpty() ? snapshot.getStage() : snapshot.getStage() + "\n\n" + summary);
+        }
+    }
+
+    private void stage(String message) {
+        bus.post(ProgressBus.EventType.STAGE_STARTED, message);
+    }
+
+    private void doRun() {
+        long startTime = System.currentTimeMillis();
+        // Remember which model produced the predictions (see PredictionProvenance)
+        stage("Reading model...");
+        local_model_path = ModelCache.getLocalModelPath(manifest.getModelPath());
+        if (manifest.getModelHash() == null) manifest.setModelHash(ModelCache.hashModel(new File(manifest.getModelPath())));
+        if (manifest.getExportTransform() == null) manifest.setExportTransform(ops.getExportTransform().toString());
+        // Skip the images that are up to date (only for new runs, resumed runs keep their images)
+        if (only_new_or_changed && !workspace.hasManifest()) {
+            int n_images = imagesToPredict.size();
+            imagesToPredict = PredictionProvenance.filterNewOrChanged(imagesToPredict, manifest);
+            skipped = n_images - imagesToPredict.size();
+            EV2UNetMetrics.getInstance().recordCacheHit(skipped);
+            EV2UNetMetrics.getInstance().recordCacheMiss(imagesToPredict.size());
+            if (imagesToPredict.isEmpty()) {
+                bus.complete("All images are up to date.");
+                workspace.delete();
+                return;
+            }
+        }
+        // Images of the run that are not done yet (all of them, unless the run is resumed)
+        HashMap<ProjectImageEntry<BufferedImage>, File> tempFiles = workspace.hasManifest() ?
+                ops.map_manifest_entries(workspace) : new HashMap<>();
+        List<ProjectImageEntry<BufferedImage>> todo = imagesToPredict.stream()
+                .filter(i -> !journal.hasReached(i.getID(), RunJournal.State.SAVED)).toList();
+        // images predicted before the run was resumed are only loaded, unless their prediction was deleted
+        List<ProjectImageEntry<BufferedImage>> toPredict = todo.stream()
+                .filter(i -> !journal.hasReached(i.getID(), RunJournal.State.PREDICTED) || !hasPrediction(tempFiles.get(i))).toList();
+        n_to_predict = toPredict.size();
+        bus.setExpectedImages(n_to_predict);
+        // the stages of the first part (export, predict, load), the cleanup, and the images
+        bus.setTotal(bus.getSnapshot().getDone() + STAGES_PER_PART + 1 + toPredict.size());
+
+        // The images are exported, predicted and loaded in parts that fit into the disk budget (a single part if unlimited),
+        // or into the free space of the scratch folder the run is in
+        disk_budget = ScratchSpace.limitBudget(workspace.getRoot(), disk_budget);
+        // the files kept from before the run was resumed are loaded or predicted first, and use the budget until then
+        if (disk_budget.isLimited()) todo.forEach(i -> {
+            File temp_file = tempFiles.get(i);
+            if (temp_file == null) return;
+            File prediction = new File(workspace.getPredictionDir(), temp_file.getName());
+            if (temp_file.exists()) disk_budget.reserveExported(temp_file);
+            else if (prediction.exists()) disk_budget.reserve(temp_file, prediction.length());
+        });
+        List<ProjectImageEntry<BufferedImage>> toExport = new ArrayList<>(toPredict.stream()
+                .filter(i -> !tempFiles.containsKey(i) || !tempFiles.get(i).exists()).toList());
+        Map<Integer, String> label_name_map = Map.ofEntries(Map.entry(1, manifest.getAnnotationClassName())); // map of label id to annotation class name
+        Set<ProjectImageEntry<BufferedImage>> failed = new HashSet<>(); // not predicted or loaded, not tried again in this run
+
+        int part = 0;
+        do {
+            part++;
+            // every further part runs the stages again, so the progress does not reach the end before the images
+            if (part > 1) bus.setTotal(bus.getSnapshot().getTotal() + STAGES_PER_PART);
+            // let an interactive prediction go first (only when run as a background job)
+            EV2UNetJobScheduler.getInstance().yieldToInteractive();
+            if (cancelled) return;
+            // Export the images that need to be predicted  -------------------
+            stage("Exporting images...");
+            HashMap<ProjectImageEntry<BufferedImage>, File> exported = ops.exportImagesToPredict(toExport, disk_budget.isLimited() ? disk_budget : null);
+            tempFiles.putAll(exported);
+            toExport.removeAll(exported.keySet());
+            exported.forEach(manifest::addEntry);
+            workspace.writeManifest(manifest);
+            logger.info("Exported temp images.");
+            if (cancelled) return;
+            if (!toExport.isEmpty()) logger.info("Temporary disk budget reached (" + (disk_budget.getUsed() >> 20) + " MB), predicting part " + part
+                    + ", " + toExport.size() + " images left to export");
+
+            // the images of this part: the exported ones, and the ones exported before the run was resumed
+            List<ProjectImageEntry<BufferedImage>> pending = toPredict.stream()
+                    .filter(i -> !failed.contains(i) && tempFiles.containsKey(i) && tempFiles.get(i).exists() && !hasPrediction(tempFiles.get(i))).toList();
+            if (!pending.isEmpty()) EV2UNetJobScheduler.getInstance().yieldToInteractive();
+            if (cancelled) return;
+            if (!pending.isEmpty() && !predictPart()) return;
+
+            // Record the predicted images, also if the process did not finish
+            pending.forEach(i -> {
+                File temp_file = tempFiles.get(i);
+                if (hasPrediction(temp_file)) {
+                    if (!journal.hasReached(i.getID(), RunJournal.State.PREDICTED)) journal.record(i.getID(), RunJournal.State.PREDICTED);
+                }
+                else {
+                    logger.warn("Image " + i.getImageName() + " was not predicted");
+                    failed.add(i);
+                    // kept for resuming the run, unless it uses the budget of the next images (exported again when resuming)
+                    if (!disk_budget.isLimited()) return;
+                    disk_budget.release(temp_file);
+                }
+                // the input image is not needed anymore
+                if (temp_file.exists() && !temp_file.delete()) logger.debug("Could not delete temp file: " + temp_file.getAbsolutePath());
+            });
+            journal.sync();
+
+            EV2UNetJobScheduler.getInstance().yieldToInteractive();
+            if (cancelled) return;
+            // Load the masks
+            stage("Loading predictions...");
+            HashMap<ProjectImageEntry<BufferedImage>, File> predictedFiles = new HashMap<>();
+            todo.stream().filter(i -> !failed.contains(i) && !journal.hasReached(i.getID(), RunJournal.State.SAVED) && hasPrediction(tempFiles.get(i)))
+                    .forEach(i -> predictedFiles.put(i, tempFiles.get(i)));
+            if (!predictedFiles.isEmpty()) {
+                ops.batch_load_maskFiles(predictedFiles, manifest.doSplitAnnotations(), manifest.doRemoveAnnotations(), label_name_map);
+                PredictionProvenance.recordSaved(ops.getProject(), workspace);
+            }
+            logger.info("Predictions loaded.");
+            // free the disk and the budget as soon as the masks are imported, or failed to be
+            predictedFiles.forEach((i, f) -> {
+                if (!journal.hasReached(i.getID(), RunJournal.State.SAVED)) {
+                    logger.warn("Prediction of image " + i.getImageName() + " could not be loaded");
+                    failed.add(i);
+                    // kept for resuming the run, unless it uses the budget of the next images (predicted again when resuming)
+                    if (!disk_budget.isLimited()) return;
+                }
+                new File(workspace.getPredictionDir(), f.getName()).delete();
+                disk_budget.release(f);
+            });
+            // stop if nothing could be exported or predicted in this part (e.g. the images left cannot be read)
+            if (exported.isEmpty() && pending.isEmpty()) break;
+        } while (!toExport.isEmpty());
+
+        // Delete the temp files
+        stage("Deleting temporary files...");
+        int remaining = (int) imagesToPredict.stream().filter(i -> !journal.hasReached(i.getID(), RunJournal.State.SAVED)).count();
+        if (remaining == 0) workspace.delete();
+        else {
+            // keep the unfinished images for resuming the run
+            todo.forEach(i -> {
+                File f = tempFiles.get(i);
+                if (f != null && journal.hasReached(i.getID(), RunJournal.State.SAVED))
+                    new File(workspace.getPredictionDir(), f.getName()).delete();
+            });
+            logger.warn(remaining + " images were not predicted, the run can be resumed: " + workspace.getRoot().getAbsolutePath());
+        }
+        logger.info("Deleted temporary files.");
+        bus.complete("Done!");
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Prediction took " + (endTime - startTime) / 1000 + " seconds.");
+    }
+
+    /**
+     * Check whether the prediction of an exported image is in the workspace
+     * @param temp_file: File exported image, or null if it was not exported
+     * @return boolean
+     */
+    private boolean hasPrediction(File temp_file) {
+        return temp_file != null && new File(workspace.getPredictionDir(), temp_file.getName()).exists();
+    }
+
+    /**
+     * Predict the images in the temp folder of the workspace in one python session
+     * @return boolean, false if the run has to stop (error or cancelled)
+     */
+    private boolean predictPart() {
+        // Start the prediction
+        stage(PREDICTING);
+        logger.info("Predicting images...");
+
+        // Build the environment runner                 -------------------
+        VirtualEnvironmentRunner venv = buildPredictVenvRunner();
+        if (venv == null) {
+            this.error = 2;
+            bus.complete("Failed to build VENV");
+            return false;
+        }
+        // Run the CLI
+        long process_start = StageTimings.start();
+        try {
+            venv.runCommand(false);
+        } catch (IOException e) {
+            logger.error("Error occurred when running the VENV: " + e.getLocalizedMessage());
+            this.error = 3;
+            this.error_message = e.getLocalizedMessage();
+            return false;
+        }
+        // Get process to show the progress
+        Process process = venv.getProcess();
+        supervisor = new ProcessSupervisor(process, "predict-" + workspace.getRunId());
+        if (cancelled) supervisor.terminateAsync();
+
+        // the first output line ends the interpreter start-up, the first image ends the model loading
+        AtomicLong first_output = new AtomicLong();
+        AtomicLong first_image = new AtomicLong();
+        long images_before = bus.getSnapshot().getImagesFinished();
+        Consumer<ProgressBus.Event> first_image_listener = e -> {
+            if (e.getType() == ProgressBus.EventType.IMAGE_STARTED) first_image.compareAndSet(0, System.nanoTime());
+        };
+        bus.addEventListener(first_image_listener);
+        ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus);
+        supervisor.startPumps(line -> {
+            first_output.compareAndSet(0, System.nanoTime());
+            parser.accept(line);
+        });
+
+        // wait for the process to finish
+        try {
+            int exit_code = supervisor.waitFor();
+            // a crash (e.g. out of memory) or an invalid argument, the images predicted so far are still loaded on resume
+            if (exit_code != 0 && !cancelled) {
+                this.error_message = supervisor.describeFailure(exit_code);
+                logger.error(error_message);
+                this.error = 5;
+                bus.complete("Prediction failed");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            if (!cancelled) {
+                logger.error("CLI execution/interruption error: " + e);
+                this.error = 5;
+            }
+            supervisor.terminate(ProcessSupervisor.DEFAULT_GRACE_MILLIS);
+            return false;
+        } finally {
+            bus.removeEventListener(first_image_listener);
+        }
+        if (cancelled) return false;
+        parser.finish();
+        long process_end = System.nanoTime();
+        if (first_output.get() > 0) timings.add(StageTimings.INTERPRETER_START, first_output.get() - process_start, 1);
+        if (first_image.get() > 0) {
+            timings.add(StageTimings.MODEL_LOAD, first_image.get() - first_output.get(), 1);
+            timings.add(StageTimings.INFERENCE, process_end - first_image.get(), Math.max(1, bus.getSnapshot().getImagesFinished() - images_before));
+        }
+        ProgressBus.Snapshot snapshot = bus.getSnapshot();
+        logger.info("Prediction finished: " + snapshot.getImagesFinished() + " images, "
+                + String.format("%.1f s per image", snapshot.getMeanImageSeconds())
+                + (snapshot.getPeakMemoryMB() > 0 ? ", peak memory " + snapshot.getPeakMemoryMB() + " MB" : ""));
+        return true;
+    }
+
+    /**
+     * Function to create the VENV for predicting
+     * @return VirtualEnvironmentRunner with commands set for prediction, or null if there is no python path
+     */
+    private VirtualEnvironmentRunner buildPredictVenvRunner() {
+        if (python_path == null || python_path.isEmpty()) {
+            return null;
+        }
+        VirtualEnvironmentRunner venv = new VirtualEnvironmentRunner(
+                python_path, env_type, this.getClass().getSimpleName()
+        );
+        // Build the cli arguments
+        List<String> args = new ArrayList<>(Arrays.asList("-W", "ignore","-m", "efficient_v2_unet", "--predict"));
+        args.add("--dir");
+        args.add(workspace.getTempDir().getAbsolutePath());
+        args.add("--model");
+        args.add(local_model_path == null ? manifest.getModelPath() : local_model_path);
+        args.add("--resolution");
+        args.add(manifest.getResolution().toString());
+        args.add("--threshold");
+        args.add(manifest.getThreshold().toString());
+        args.add("--savedir");
+        args.add(workspace.getPredictionDir().getAbsolutePath());
+        if (use_less_memory) args.add("--use_less_memory");
+
+        venv.setArguments(args);
+        return venv;
+    }
+}
@@ -0,0 +1,177 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * A self-contained directory for one prediction run:
+ * root / temp          -> images to be predicted
+ * root / prediction    -> predicted masks
+ * root / manifest.json -> PredictionManifest linking the files to the project image entries
+ * root / journal.tsv   -> RunJournal with the progress of every image entry
+ */
+public class PredictionWorkspace {
+    private static final Logger logger = LoggerFactory.getLogger(PredictionWorkspace.class);
+    private final File root;
+    private final File temp_dir;
+    private final File prediction_dir;
+    private RunJournal journal;
+
+    /**
+     * Constructor, creates the folders if they do not exist
+     * @param root: File root folder of the workspace
+     */
+    public PredictionWorkspace(File root) {
+        this(root, true);
+    }
+
+    private PredictionWorkspace(File root, boolean create) {
+        this.root = root;
+        this.temp_dir = new File(root, "temp");
+        this.prediction_dir = new File(root, "prediction");
+        if (!create) return;
+        temp_dir.mkdirs();
+        prediction_dir.mkdirs();
+        if (!temp_dir.isDirectory() || !prediction_dir.isDirectory())
+            throw new RuntimeException("Could not create the workspace folders in: " + root.getAbsolutePath());
+    }
+
+    /**
+     * Open an existing workspace without creating any folder, e.g. to list the runs of a folder
+     * or to read the results of a workspace written elsewhere
+     * @param root: File root folder of the workspace
+     * @return PredictionWorkspace
+     */
+    public static PredictionWorkspace open(File root) {
+        return new PredictionWorkspace(root, false);
+    }
+
+    /**
+     * Create the workspace of a new run, named by a unique run ID
+     * @param runs_root: File folder containing the runs
+     * @return PredictionWorkspace
+     */
+    public static PredictionWorkspace createRun(File runs_root) {
+        String run_id = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" +
+                UUID.randomUUID().toString().substring(0, 8);
+        return new PredictionWorkspace(new File(runs_root, run_id));
+    }
+
+    /**
+     * Get the ID of the run (the name of the workspace folder)
+     * @return String run ID
+     */
+    public String getRunId() {
+        return root.getName();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File getTempDir() {
+        return temp_dir;
+    }
+
+    public File getPredictionDir() {
+        return prediction_dir;
+    }
+
+    public File getManifestFile() {
+        return new File(root, "manifest.json");
+    }
+
+    /**
+     * Whether a manifest has been written to this workspace
+     * @return boolean
+     */
+    public boolean hasManifest() {
+        return getManifestFile().exists();
+    }
+
+    /**
+     * Get the journal of this run
+     * @return RunJournal
+     */
+    public synchronized RunJournal getJournal() {
+        if (journal == null) journal = new RunJournal(new File(root, "journal.tsv"));
+        return journal;
+    }
+
+    /**
+     * Whether all images of the manifest have been predicted and saved
+     * @return boolean
+     */
+    public boolean isComplete() {
+        if (!hasManifest()) return false;
+        List<String> ids = readManifest().getEntries().stream().map(PredictionManifest.Entry::getId).toList();
+        return getJournal().countSaved(ids) == ids.size();
+    }
+
+    /**
+     * Write the manifest of this run
+     * @param manifest: PredictionManifest
+     */
+    public void writeManifest(PredictionManifest manifest) {
+        try {
+            manifest.write(getManifestFile());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write manifest: " + getManifestFile().getAbsolutePath() + " -> " + e);
+        }
+    }
+
+    /**
+     * Read the manifest of this run
+     * @return PredictionManifest
+     */
+    public PredictionManifest readManifest() {
+        try {
+            return PredictionManifest.read(getManifestFile());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read manifest: " + getManifestFile().getAbsolutePath() + " -> " + e);
+        }
+    }
+
+    /**
+     * Delete the exported images (the temp folder), e.g. of a cancelled run: they are exported again when it is resumed,
+     * while the manifest, the journal and the predicted masks are kept
+     * @return int number of files deleted
+     */
+    public int deleteExportedImages() {
+        File[] files = getTempDir().listFiles();
+        if (files == null) return 0;
+        int n = 0;
+        for (File f : files) {
+            if (f.delete()) n++;
+            else logger.warn("Could not delete: " + f.getAbsolutePath());
+        }
+        return n;
+    }
+
+    /**
+     * Delete the workspace folder including all its files
+     * @return boolean, true if everything was deleted
+     */
+    public boolean delete() {
+        if (!root.exists()) return true;
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                if (!p.toFile().delete()) logger.warn("Could not delete: " + p);
+            });
+        } catch (IOException e) {
+            logger.error("Could not delete workspace: " + root.getAbsolutePath() + " -> " + e);
+        }
+        return !root.exists();
+    }
+}
@@ -0,0 +1,195 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Supervises a python process started by the VirtualEnvironmentRunner.
+ * Drains its stdout and stderr in the background (a full pipe would stall the process),
+ * keeping only the last lines, and passes every line to a handler (e.g. a progress parser).
+ * Terminating it also terminates its child processes (e.g. python started by a conda
+ * activation shell, or its workers), first gracefully and then forcibly.
+ */
+public class ProcessSupervisor {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessSupervisor.class);
+    public static final long DEFAULT_GRACE_MILLIS = 5000;
+    public static final int DEFAULT_LOG_LINES = 500;
+    public static final int ERROR_LOG_LINES = 20; // lines of the output in the message of a failed process
+    private final Process process;
+    private final String name;
+    private final LineRingBuffer log;
+    private final String worker_name; // name in the metrics
+    private final List<Thread> pumps = new ArrayList<>();
+    private volatile boolean terminated = false;
+
+    /**
+     * Constructor
+     * @param process: Process to supervise
+     * @param name: String name for logging
+     */
+    public ProcessSupervisor(Process process, String name) {
+        this.process = process;
+        this.name = name;
+        this.log = new LineRingBuffer(DEFAULT_LOG_LINES);
+        this.worker_name = name + " (pid " + process.pid() + ")";
+        EV2UNetMetrics.getInstance().workerStarted(worker_name);
+    }
+
+    /**
+     * Start draining stdout and stderr of the process.
+     * @param line_handler: Consumer called with every line of stdout and stderr (on the pump threads), or null
+     * @return this supervisor
+     */
+    public synchronized ProcessSupervisor startPumps(Consumer<String> line_handler) {
+        if (!pumps.isEmpty()) throw new IllegalStateException("The pumps of <" + name + "> have already been started");
+        pumps.add(startPump(process.getInputStream(), "stdout", line_handler));
+        pumps.add(startPump(process.getErrorStream(), "stderr", line_handler));
+        return this;
+    }
+
+    private Thread startPump(InputStream stream, String stream_name, Consumer<String> line_handler) {
+        Thread t = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    log.add(line);
+                    logger.trace("[" + name + "] " + line);
+                    if (line_handler == null) continue;
+                    try {
+                        line_handler.accept(line);
+                    } catch (RuntimeException e) {
+                        logger.warn("Could not handle output line of <" + name + ">: " + e.getLocalizedMessage());
+                    }
+                }
+            } catch (IOException e) {
+                // the stream is closed when the process is terminated
+                if (!terminated) logger.warn("Could not read " + stream_name + " of <" + name + ">: " + e.getLocalizedMessage());
+            }
+        }, name + "-" + stream_name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Get the last lines of the process output
+     * @return LineRingBuffer
+     */
+    public LineRingBuffer getLog() {
+        return log;
+    }
+
+    /**
+     * Describe a failed process, with the last lines of its output (e.g. for an error message)
+     * @param exit_code: int exit code of the process
+     * @return String
+     */
+    public String describeFailure(int exit_code) {
+        return "Process <" + name + "> failed with exit code " + exit_code + ", last output:" + System.lineSeparator() +
+                String.join(System.lineSeparator(), log.getLastLines(ERROR_LOG_LINES));
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Whether the process has been terminated with terminate()
+     * @return boolean
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Wait for the process to finish, and for its output to be handled
+     * @return int exit code
+     * @throws InterruptedException
+     */
+    public int waitFor() throws InterruptedException {
+        JfrEvents.ProcessWaitEvent event = new JfrEvents.ProcessWaitEvent();
+        event.begin();
+        int exit_code = process.waitFor();
+        for (Thread t : pumps) t.join(DEFAULT_GRACE_MILLIS); // a child may keep the pipe open
+        event.end();
+        if (event.shouldCommit()) {
+            event.process = name;
+            event.exit_code = exit_code;
+            event.output_lines = log.getTotal();
+            event.commit();
+        }
+        EV2UNetMetrics.getInstance().workerEnded(worker_name, exit_code, terminated);
+        if (exit_code != 0 && !terminated) {
+            logger.warn("Process <" + name + "> exited with code " + exit_code + ", last output:" + System.lineSeparator() + log);
+        }
+        return exit_code;
+    }
+
+    /**
+     * Terminate the process and its children in the background (e.g. when called from the JavaFX thread)
+     * @return CompletableFuture, true once all processes have ended
+     */
+    public CompletableFuture<Boolean> terminateAsync() {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        Thread t = new Thread(() -> future.complete(terminate(DEFAULT_GRACE_MILLIS)), name + "-terminate");
+        t.setDaemon(true);
+        t.start();
+        return future;
+    }
+
+    /**
+     * Terminate the process and all its descendants: asks them to stop,
+     * and forcibly kills the ones still alive after the grace period.
+     * @param grace_millis: long milliseconds to wait before killing
+     * @return boolean, true if all processes have ended
+     */
+    public boolean terminate(long grace_millis) {
+        terminated = true;
+        ProcessHandle handle = process.toHandle();
+        // the children need to be collected first, they are not descendants anymore once their parent has ended
+        List<ProcessHandle> handles = new ArrayList<>(handle.descendants().toList());
+        handles.add(handle);
+        if (handles.stream().noneMatch(ProcessHandle::isAlive)) {
+            EV2UNetMetrics.getInstance().workerEnded(worker_name, 0, true);
+            return true;
+        }
+
+        logger.info("Terminating process <" + name + "> and " + (handles.size() - 1) + " child processes");
+        handles.forEach(ProcessHandle::destroy);
+        if (waitForExit(handles, grace_millis)) {
+            EV2UNetMetrics.getInstance().workerEnded(worker_name, 0, true);
+            return true;
+        }
+
+        logger.warn("Process <" + name + "> did not stop within " + grace_millis + " ms, killing it");
+        handles.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+        boolean ended = waitForExit(handles, grace_millis);
+        if (!ended) logger.error("Could not kill all processes of <" + name + ">");
+        else EV2UNetMetrics.getInstance().workerEnded(worker_name, 0, true);
+        return ended;
+    }
+
+    private static boolean waitForExit(List<ProcessHandle> handles, long millis) {
+        CompletableFuture<?>[] exits = handles.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(exits).get(millis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return handles.stream().noneMatch(ProcessHandle::isAlive);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return handles.stream().noneMatch(ProcessHandle::isAlive);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Consumer;
+
+/**
+ * Collects the progress of a prediction or training run from any thread (e.g. the process output pumps).
+ * Events update lock-free counters and are passed on immediately to the event listeners,
+ * while the snapshot listeners (e.g. a progress dialog) are updated at a fixed rate,
+ * and only if something has changed, so that verbose process output does not flood the UI.
+ */
+public class ProgressBus implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ProgressBus.class);
+    public static final long DEFAULT_PERIOD_MILLIS = 250;
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ev2unet-progress");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Type of a progress event
+     */
+    public enum EventType {
+        STAGE_STARTED,      // a new step of the run, e.g. "Exporting images..."
+        IMAGE_STARTED,      // the python process starts predicting an image
+        TILE_DONE,          // the python process has predicted a tile
+        IMAGE_FINISHED,     // an image has been predicted
+        EPOCH_FINISHED,     // a training epoch has finished
+        OUTPUT              // any other line of the process output
+    }
+
+    /**
+     * A progress event
+     */
+    public static class Event {
+        private final EventType type;
+        private final String text;
+        private final long timestamp = System.currentTimeMillis();
+
+        public Event(EventType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        public EventType getType() {
+            return type;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * The state of the progress at a point in time
+     */
+    public static class Snapshot {
+        private final String stage;
+        private final String last_output;
+        private final long stages_started;
+        private final long images_started;
+        private final long images_finished;
+        private final long tiles_done;
+        private final long epochs_finished;
+        private final long total;
+        private final long expected_images;
+        private final long expected_epochs;
+        private final long elapsed_millis;
+        private final double image_seconds;
+        private final long images_timed;
+        private final double tile_seconds;
+        private final long tiles_timed;
+        private final double epoch_seconds;
+        private final long epochs_timed;
+        private final long peak_memory_mb;
+
+        private Snapshot(ProgressBus bus) {
+            this.stage = bus.stage.get();
+            this.last_output = bus.last_output.get();
+            this.stages_started = bus.stages_started.get();
+            this.images_started = bus.images_started.get();
+            this.images_finished = bus.images_finished.get();
+            this.tiles_done = bus.tiles_done.get();
+            this.epochs_finished = bus.epochs_finished.get();
+            this.total = bus.total.get();
+            this.expected_images = bus.expected_images;
+            this.expected_epochs = bus.expected_epochs;
+            this.elapsed_millis = bus.start_millis > 0 ? System.currentTimeMillis() - bus.start_millis : 0;
+            this.image_seconds = bus.image_seconds.sum();
+            this.images_timed = bus.images_timed.get();
+            this.tile_seconds = bus.tile_seconds.sum();
+            this.tiles_timed = bus.tiles_timed.get();
+            this.epoch_seconds = bus.epoch_seconds.sum();
+            this.epochs_timed = bus.epochs_timed.get();
+            this.peak_memory_mb = bus.peak_memory_mb.get();
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getLastOutput() {
+            return last_output;
+        }
+
+        public long getImagesStarted() {
+            return images_started;
+        }
+
+        public long getImagesFinished() {
+            return images_finished;
+        }
+
+        public long getTilesDone() {
+            return tiles_done;
+        }
+
+        public long getEpochsFinished() {
+            return epochs_finished;
+        }
+
+        /**
+         * Get the number of steps done: stages, images and epochs
+         * @return long
+         */
+        public long getDone() {
+            return Math.min(total, getSteps());
+        }
+
+        private long getSteps() {
+            return stages_started + Math.max(images_started, images_finished) + epochs_finished;
+        }
+
+        /**
+         * Get the total number of steps (see setTotal())
+         * @return long
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Get the time since the bus was started
+         * @return long milliseconds
+         */
+        public long getElapsedMillis() {
+            return elapsed_millis;
+        }
+
+        /**
+         * Get the mean prediction time of an image
+         * @return double seconds, NaN if no image has been timed yet
+         */
+        public double getMeanImageSeconds() {
+            return images_timed == 0 ? Double.NaN : image_seconds / images_timed;
+        }
+
+        /**
+         * Get the mean prediction time of a tile
+         * @return double seconds, NaN if no tile has been timed yet
+         */
+        public double getMeanTileSeconds() {
+            return tiles_timed == 0 ? Double.NaN : tile_seconds / tiles_timed;
+        }
+
+        /**
+         * Get the mean time of a training epoch
+         * @return double seconds, NaN if no epoch has been timed yet
+         */
+        public double getMeanEpochSeconds() {
+            return epochs_timed == 0 ? Double.NaN : epoch_seconds / epochs_timed;
+        }
+
+        /**
+         * Get the throughput of the prediction
+         * @return double images per hour, NaN if no image has been timed yet
+         */
+        public double getImagesPerHour() {
+            return images_timed == 0 ? Double.NaN : 3600.0 / getMeanImageSeconds();
+        }
+
+        /**
+         * Get the highest memory usage reported by the python process
+         * @return long MB, 0 if not reported
+         */
+        public long getPeakMemoryMB() {
+            return peak_memory_mb;
+        }
+
+        /**
+         * Estimate the remaining time: from the mean time of the images or epochs if they were timed,
+         * otherwise from the elapsed time per step.
+         * @return long milliseconds, -1 if unknown
+         */
+        public long getEtaMillis() {
+            if (images_timed > 0 && expected_images > 0)
+                return (long) (Math.max(0, expected_images - images_finished) * getMeanImageSeconds() * 1000);
+            if (epochs_timed > 0 && expected_epochs > 0)
+                return (long) (Math.max(0, expected_epochs - epochs_finished) * getMeanEpochSeconds() * 1000);
+            long done = getDone();
+            if (done == 0 || elapsed_millis == 0) return -1;
+            return (total - done) * elapsed_millis / done;
+        }
+    }
+
+    /**
+     * Format a duration for the progress messages
+     * @param millis: long milliseconds
+     * @return String, e.g. "1:05:09", or "unknown" if negative
+     */
+    public static String formatDuration(long millis) {
+        if (millis < 0) return "unknown";
+        long seconds = millis / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private final AtomicReference<String> stage = new AtomicReference<>("");
+    private final AtomicReference<String> last_output = new AtomicReference<>("");
+    private final AtomicLong stages_started = new AtomicLong();
+    private final AtomicLong images_started = new AtomicLong();
+    private final AtomicLong images_finished = new AtomicLong();
+    private final AtomicLong tiles_done = new AtomicLong();
+    private final AtomicLong epochs_finished = new AtomicLong();
+    private final AtomicLong total = new AtomicLong(1);
+    private final DoubleAdder image_seconds = new DoubleAdder();
+    private final AtomicLong images_timed = new AtomicLong();
+    private final DoubleAdder tile_seconds = new DoubleAdder();
+    private final AtomicLong tiles_timed = new AtomicLong();
+    private final DoubleAdder epoch_seconds = new DoubleAdder();
+    private final AtomicLong epochs_timed = new AtomicLong();
+    private final AtomicLong peak_memory_mb = new AtomicLong();
+    private volatile long expected_images = 0;
+    private volatile long expected_epochs = 0;
+    private volatile long start_millis = 0;
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    private final List<Consumer<Event>> event_listeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Snapshot>> snapshot_listeners = new CopyOnWriteArrayList<>();
+    private final long period_millis;
+    private ScheduledFuture<?> publisher;
+
+    /**
+     * Constructor, publishes the snapshots every DEFAULT_PERIOD_MILLIS once started
+     */
+    public ProgressBus() {
+        this(DEFAULT_PERIOD_MILLIS);
+    }
+
+    /**
+     * Constructor
+     * @param period_millis: long milliseconds between two snapshot updates
+     */
+    public ProgressBus(long period_millis) {
+        this.period_millis = period_millis;
+    }
+
+    /**
+     * Start publishing the snapshots to the snapshot listeners
+     * @return this bus
+     */
+    public synchronized ProgressBus start() {
+        if (start_millis == 0) start_millis = System.currentTimeMillis();
+        if (publisher == null)
+            publisher = timer.scheduleAtFixedRate(this::publish, period_millis, period_millis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Set the total number of steps (stages + images + epochs)
+     * @param steps: long
+     */
+    public void setTotal(long steps) {
+        total.set(Math.max(1, steps));
+        changed.set(true);
+    }
+
+    /**
+     * Set the number of images the python process will predict (for the ETA)
+     * @param n_images: long
+     */
+    public void setExpectedImages(long n_images) {
+        expected_images = n_images;
+    }
+
+    /**
+     * Set the number of epochs the python process will train (for the ETA)
+     * @param n_epochs: long
+     */
+    public void setExpectedEpochs(long n_epochs) {
+        expected_epochs = n_epochs;
+    }
+
+    /**
+     * Mark the run as finished: sets the final stage and completes the progress
+     * @param message: String final stage, e.g. "Done!"
+     */
+    public void complete(String message) {
+        stage.set(message);
+        total.set(Math.max(1, getSnapshot().getSteps()));
+        last_output.set("");
+        changed.set(true);
+    }
+
+    /**
+     * Post an event (from any thread)
+     * @param type: EventType
+     * @param text: String, e.g. the stage name or the output line (can be null)
+     */
+    public void post(EventType type, String text) {
+        switch (type) {
+            case STAGE_STARTED -> {
+                stages_started.incrementAndGet();
+                stage.set(text);
+            }
+            case IMAGE_STARTED -> images_started.incrementAndGet();
+            case TILE_DONE -> tiles_done.incrementAndGet();
+            case IMAGE_FINISHED -> images_finished.incrementAndGet();
+            case EPOCH_FINISHED -> epochs_finished.incrementAndGet();
+            case OUTPUT -> {}
+        }
+        if (text != null && type != EventType.STAGE_STARTED) last_output.set(text);
+        changed.set(true);
+        if (event_listeners.isEmpty()) return;
+        Event event = new Event(type, text);
+        event_listeners.forEach(l -> l.accept(event));
+    }
+
+    /**
+     * Post a timed event, e.g. a finished image with its prediction time
+     * @param type: EventType, IMAGE_FINISHED, TILE_DONE or EPOCH_FINISHED
+     * @param text: String, can be null
+     * @param seconds: double duration of the image, tile or epoch (ignored if not positive)
+     */
+    public void post(EventType type, String text, double seconds) {
+        if (seconds > 0) {
+            switch (type) {
+                case IMAGE_FINISHED -> {
+                    image_seconds.add(seconds);
+                    images_timed.incrementAndGet();
+                }
+                case TILE_DONE -> {
+                    tile_seconds.add(seconds);
+                    tiles_timed.incrementAndGet();
+                }
+                case EPOCH_FINISHED -> {
+                    epoch_seconds.add(seconds);
+                    epochs_timed.incrementAndGet();
+                }
+                default -> {}
+            }
+        }
+        post(type, text);
+    }
+
+    /**
+     * Record the memory usage reported by the python process
+     * @param memory_mb: double MB
+     */
+    public void recordMemory(double memory_mb) {
+        peak_memory_mb.accumulateAndGet((long) memory_mb, Math::max);
+    }
+
+    /**
+     * Get notified of every event, on the posting thread
+     * @param listener: Consumer of Event
+     */
+    public void addEventListener(Consumer<Event> listener) {
+        event_listeners.add(listener);
+    }
+
+    public void removeEventListener(Consumer<Event> listener) {
+        event_listeners.remove(listener);
+    }
+
+    /**
+     * Get notified of the progress at a fixed rate, on the progress timer thread
+     * @param listener: Consumer of Snapshot
+     */
+    public void addSnapshotListener(Consumer<Snapshot> listener) {
+        snapshot_listeners.add(listener);
+    }
+
+    /**
+     * Get the current progress
+     * @return Snapshot
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    private void publish() {
+        if (!changed.getAndSet(false) || snapshot_listeners.isEmpty()) return;
+        Snapshot snapshot = getSnapshot();
+        for (Consumer<Snapshot> l : snapshot_listeners) {
+            try {
+                l.accept(snapshot);
+            } catch (RuntimeException e) {
+                logger.warn("Progress listener failed: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Publish the last snapshot and stop the updates
+     */
+    @Override
+    public synchronized void close() {
+        if (publisher != null) publisher.cancel(false);
+        publisher = null;
+        changed.set(true);
+        publish();
+    }
+}
@@ -0,0 +1,271 @@
+package qupath.ext.efficientv2unet;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Machine-readable progress of the python process.
+ * The process reports its progress as JSON lines on stdout, prefixed with PREFIX, e.g.:
+ * <pre>
+ * EV2UNET_PROGRESS {"event": "tile_done", "image": "12.tif", "image_index": 1, "n_images": 3,
+ *                   "tile": 4, "n_tiles": 16, "seconds": 0.21, "rss_mb": 2100.5, "gpu_mb": 3012.0}
+ * </pre>
+ * Events are "image_started", "tile_done", "image_finished" and "epoch_finished";
+ * the timings (seconds of the image, tile or epoch) and memory figures are optional.
+ * Versions of the python package that do not report their progress this way are followed
+ * from their log instead ("Tiling..." per predicted image, "Epoch x/y" per trained epoch),
+ * timed on the Java side.
+ */
+public class ProgressProtocol {
+    private static final Logger logger = LoggerFactory.getLogger(ProgressProtocol.class);
+    private static final Gson gson = new Gson();
+    public static final String PREFIX = "EV2UNET_PROGRESS ";
+
+    public static final String IMAGE_STARTED = "image_started";
+    public static final String TILE_DONE = "tile_done";
+    public static final String IMAGE_FINISHED = "image_finished";
+    public static final String EPOCH_FINISHED = "epoch_finished";
+
+    /**
+     * A progress message of the python process (fields are null when not reported)
+     */
+    public static class Message {
+        private String event;
+        private String image;
+        private Integer image_index;
+        private Integer n_images;
+        private Integer tile;
+        private Integer n_tiles;
+        private Integer epoch;
+        private Integer n_epochs;
+        private Double seconds;
+        private Double rss_mb;
+        private Double gpu_mb;
+
+        public Message(String event) {
+            this.event = event;
+        }
+
+        public Message setImage(String image, int image_index, int n_images) {
+            this.image = image;
+            this.image_index = image_index;
+            this.n_images = n_images;
+            return this;
+        }
+
+        public Message setTile(int tile, int n_tiles) {
+            this.tile = tile;
+            this.n_tiles = n_tiles;
+            return this;
+        }
+
+        public Message setEpoch(int epoch, int n_epochs) {
+            this.epoch = epoch;
+            this.n_epochs = n_epochs;
+            return this;
+        }
+
+        public Message setSeconds(double seconds) {
+            this.seconds = seconds;
+            return this;
+        }
+
+        public Message setMemory(double rss_mb, double gpu_mb) {
+            this.rss_mb = rss_mb;
+            this.gpu_mb = gpu_mb;
+            return this;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public String getImage() {
+            return image;
+        }
+
+        public Integer getImageIndex() {
+            return image_index;
+        }
+
+        public Integer getNImages() {
+            return n_images;
+        }
+
+        public Integer getTile() {
+            return tile;
+        }
+
+        public Integer getNTiles() {
+            return n_tiles;
+        }
+
+        public Integer getEpoch() {
+            return epoch;
+        }
+
+        public Integer getNEpochs() {
+            return n_epochs;
+        }
+
+        public double getSeconds() {
+            return seconds == null ? 0 : seconds;
+        }
+
+        public double getMemoryMB() {
+            return (rss_mb == null ? 0 : rss_mb) + (gpu_mb == null ? 0 : gpu_mb);
+        }
+
+        /**
+         * Human-readable description for the progress dialog
+         * @return String
+         */
+        public String describe() {
+            String out = event;
+            if (image != null) out = "Image " + image + (image_index != null && n_images != null ? " (" + image_index + "/" + n_images + ")" : "");
+            if (tile != null && n_tiles != null) out += ": tile " + tile + "/" + n_tiles;
+            if (epoch != null && n_epochs != null) out = "Epoch " + epoch + "/" + n_epochs;
+            if (seconds != null) out += String.format(" in %.2f s", seconds);
+            return out;
+        }
+    }
+
+    /**
+     * Encode a progress message as the python process does (e.g. to simulate it)
+     * @param message: Message
+     * @return String line, without line separator
+     */
+    public static String encode(Message message) {
+        return PREFIX + gson.toJson(message);
+    }
+
+    /**
+     * Decode a line of the process output
+     * @param line: String
+     * @return Message, or null if the line is not a (valid) progress message
+     */
+    public static Message decode(String line) {
+        if (line == null || !line.startsWith(PREFIX)) return null;
+        try {
+            Message message = gson.fromJson(line.substring(PREFIX.length()), Message.class);
+            return message == null || message.event == null ? null : message;
+        } catch (JsonParseException e) {
+            logger.debug("Invalid progress message: " + line);
+            return null;
+        }
+    }
+
+    /**
+     * Stub of the python side: writes the progress messages of a prediction,
+     * without predicting anything (e.g. to test the progress dialog and the ETA).
+     * @param out: PrintStream to write to (e.g. System.out of a stub process)
+     * @param images: List of String image file names
+     * @param n_tiles: int number of tiles per image
+     * @param tile_millis: long milliseconds to wait per tile
+     * @throws InterruptedException
+     */
+    public static void emitPrediction(PrintStream out, List<String> images, int n_tiles, long tile_millis) throws InterruptedException {
+        for (int i = 0; i < images.size(); i++) {
+            String image = images.get(i);
+            long image_start = System.nanoTime();
+            out.println(encode(new Message(IMAGE_STARTED).setImage(image, i + 1, images.size())));
+            for (int t = 1; t <= n_tiles; t++) {
+                long tile_start = System.nanoTime();
+                Thread.sleep(tile_millis);
+                out.println(encode(new Message(TILE_DONE).setImage(image, i + 1, images.size()).setTile(t, n_tiles)
+                        .setSeconds((System.nanoTime() - tile_start) / 1e9)
+                        .setMemory(Runtime.getRuntime().totalMemory() / 1e6, 0)));
+            }
+            out.println(encode(new Message(IMAGE_FINISHED).setImage(image, i + 1, images.size())
+                    .setSeconds((System.nanoTime() - image_start) / 1e9)));
+            out.flush();
+        }
+    }
+
+    /**
+     * Parses the output lines of the python process into events of a ProgressBus.
+     * Uses the progress messages if the process writes them, otherwise the legacy log lines.
+     */
+    public static class Parser implements Consumer<String> {
+        private final ProgressBus bus;
+        private volatile boolean structured = false;
+        // legacy mode: start of the current image or epoch (one output line at a time per stream)
+        private long legacy_image_start = 0;
+        private long legacy_epoch_start = 0;
+
+        /**
+         * Constructor
+         * @param bus: ProgressBus receiving the events
+         */
+        public Parser(ProgressBus bus) {
+            this.bus = bus;
+        }
+
+        /**
+         * Whether the process reports its progress with progress messages
+         * @return boolean
+         */
+        public boolean isStructured() {
+            return structured;
+        }
+
+        @Override
+        public synchronized void accept(String line) {
+            Message message = decode(line);
+            if (message != null) {
+                structured = true;
+                handle(message);
+            }
+            else if (!structured && line.startsWith("Tiling")) {
+                finishLegacyImage();
+                legacy_image_start = System.nanoTime();
+                bus.post(ProgressBus.EventType.IMAGE_STARTED, line);
+            }
+            else if (!structured && line.startsWith("Epoch")) {
+                // keras announces every epoch when it starts, so the previous one has finished
+                finishLegacyEpoch();
+                legacy_epoch_start = System.nanoTime();
+                bus.post(ProgressBus.EventType.OUTPUT, line);
+            }
+            else bus.post(ProgressBus.EventType.OUTPUT, line);
+        }
+
+        private void handle(Message message) {
+            if (message.getMemoryMB() > 0) bus.recordMemory(message.getMemoryMB());
+            switch (message.getEvent()) {
+                case IMAGE_STARTED -> bus.post(ProgressBus.EventType.IMAGE_STARTED, message.describe());
+                case TILE_DONE -> bus.post(ProgressBus.EventType.TILE_DONE, message.describe(), message.getSeconds());
+                case IMAGE_FINISHED -> bus.post(ProgressBus.EventType.IMAGE_FINISHED, message.describe(), message.getSeconds());
+                case EPOCH_FINISHED -> bus.post(ProgressBus.EventType.EPOCH_FINISHED, message.describe(), message.getSeconds());
+                default -> logger.debug("Unknown progress event: " + message.getEvent());
+            }
+        }
+
+        private void finishLegacyImage() {
+            if (legacy_image_start == 0) return;
+            bus.post(ProgressBus.EventType.IMAGE_FINISHED, null, (System.nanoTime() - legacy_image_start) / 1e9);
+            legacy_image_start = 0;
+        }
+
+        private void finishLegacyEpoch() {
+            if (legacy_epoch_start == 0) return;
+            bus.post(ProgressBus.EventType.EPOCH_FINISHED, null, (System.nanoTime() - legacy_epoch_start) / 1e9);
+            legacy_epoch_start = 0;
+        }
+
+        /**
+         * Call once the process has finished successfully: in legacy mode,
+         * the last image or epoch only ends with the process.
+         */
+        public synchronized void finish() {
+            finishLegacyImage();
+            finishLegacyEpoch();
+        }
+    }
+}
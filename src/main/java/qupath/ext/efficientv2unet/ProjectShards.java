@@ -0,0 +1,110 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Split the images of a project into deterministic shards, so that each shard
+ * can be predicted on a separate machine (e.g. as a SLURM array job) against a
+ * shared file system.
+ * Every shard writes into its own PredictionWorkspace:
+ * project_folder / Efficient_V2_UNet / shards / shard_i_of_k
+ * All shard results can be loaded back into the project in one pass with ingest().
+ */
+public class ProjectShards {
+    private static final Logger logger = LoggerFactory.getLogger(ProjectShards.class);
+
+    /**
+     * Get the images of a shard.
+     * The images are sorted by their entry ID and distributed round-robin,
+     * so every machine gets the same partitioning for the same project.
+     * @param imageList: List of ProjectImageEntry to split
+     * @param shard_index: int index of the shard (0 to shard_count - 1)
+     * @param shard_count: int number of shards
+     * @return List of ProjectImageEntry of this shard
+     */
+    public static List<ProjectImageEntry<BufferedImage>> getShard(List<ProjectImageEntry<BufferedImage>> imageList,
+                                                                  int shard_index, int shard_count) {
+        if (shard_count < 1) throw new IllegalArgumentException("Invalid number of shards: " + shard_count);
+        if (shard_index < 0 || shard_index >= shard_count)
+            throw new IllegalArgumentException("Invalid shard index " + shard_index + " for " + shard_count + " shards");
+
+        List<ProjectImageEntry<BufferedImage>> sorted = imageList.stream()
+                .sorted(Comparator.comparing((ProjectImageEntry<BufferedImage> e) -> e.getID().length())
+                        .thenComparing(ProjectImageEntry::getID))
+                .collect(Collectors.toList());
+        List<ProjectImageEntry<BufferedImage>> shard = new ArrayList<>();
+        for (int i = shard_index; i < sorted.size(); i += shard_count) {
+            shard.add(sorted.get(i));
+        }
+        return shard;
+    }
+
+    /**
+     * Get the root folder of all shards of a project
+     * @param project: Project
+     * @return File project_folder / Efficient_V2_UNet / shards
+     */
+    public static File getShardsRoot(Project<BufferedImage> project) {
+        return new File(project.getPath().getParent().toFile(), "Efficient_V2_UNet/shards");
+    }
+
+    /**
+     * Get (and create) the workspace of a shard
+     * @param project: Project
+     * @param shard_index: int index of the shard
+     * @param shard_count: int number of shards
+     * @return PredictionWorkspace of the shard
+     */
+    public static PredictionWorkspace getShardWorkspace(Project<BufferedImage> project, int shard_index, int shard_count) {
+        String name = String.format("shard_%03d_of_%03d", shard_index, shard_count);
+        return new PredictionWorkspace(new File(getShardsRoot(project), name));
+    }
+
+    /**
+     * Load the predictions of all shards into the project.
+     * Uses the post-prediction settings stored in the manifest of each shard.
+     * @param project: Project to load the predictions into
+     * A shard is only counted (and deleted) if all images of its manifest have been saved, otherwise it is kept,
+     * e.g. if its python job failed, and the images that are not saved yet are loaded when ingest() is run again.
+     * @param delete_shards: boolean, whether to delete the shard folders once their predictions are loaded
+     * @return int number of shards that were completely loaded
+     */
+    public static int ingest(Project<BufferedImage> project, boolean delete_shards) {
+        File[] shard_dirs = getShardsRoot(project).listFiles(File::isDirectory);
+        if (shard_dirs == null || shard_dirs.length == 0) {
+            logger.warn("No shards found in: " + getShardsRoot(project).getAbsolutePath());
+            return 0;
+        }
+        Arrays.sort(shard_dirs);
+
+        OpInEx ops = new OpInEx(project);
+        int count = 0;
+        for (File shard_dir : shard_dirs) {
+            PredictionWorkspace workspace = PredictionWorkspace.open(shard_dir);
+            if (!workspace.hasManifest()) {
+                logger.warn("Skipping shard without manifest: " + shard_dir.getAbsolutePath());
+                continue;
+            }
+            OpInEx.WorkspaceLoad load = ops.batch_load_workspace(workspace);
+            if (!load.isComplete()) {
+                logger.warn("Shard " + shard_dir.getName() + " is incomplete (" + load.getFailed() + " images not loaded, " +
+                        load.getSaved() + " loaded), keeping it to retry: " + shard_dir.getAbsolutePath());
+                continue;
+            }
+            if (delete_shards) workspace.delete();
+            count++;
+        }
+        return count;
+    }
+}
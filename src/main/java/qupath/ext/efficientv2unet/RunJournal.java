@@ -0,0 +1,139 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only journal of a prediction run, recording the progress of every image entry.
+ * Each line is: entry_id TAB state TAB timestamp
+ * Lines are written as soon as a step has finished, so an interrupted run
+ * (crash of QuPath or of the python process) can be resumed where it stopped.
+ * They are only forced to the disk by sync(), which a run calls at the end of every stage,
+ * so a crash of the machine loses at most the progress of the current stage.
+ */
+public class RunJournal {
+    private static final Logger logger = LoggerFactory.getLogger(RunJournal.class);
+    private final File file;
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private final List<BiConsumer<String, State>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Progress of an image entry, in order
+     */
+    public enum State {
+        EXPORTED,   // image written to the temp folder
+        PREDICTED,  // mask written by the python process
+        IMPORTED,   // objects added to the image hierarchy
+        SAVED       // image data saved, the entry is done
+    }
+
+    /**
+     * Constructor, reads the existing journal if there is one
+     * @param file: File of the journal
+     */
+    public RunJournal(File file) {
+        this.file = file;
+        if (!file.exists()) return;
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] parts = line.split("\t");
+                if (parts.length < 2) continue; // e.g. a line cut off by a crash
+                try {
+                    states.merge(parts[0], State.valueOf(parts[1]), (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Ignoring invalid journal line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read journal: " + file.getAbsolutePath() + " -> " + e);
+        }
+    }
+
+    /**
+     * Record that an entry has reached a state
+     * @param entry_id: String ID of the ProjectImageEntry
+     * @param state: State
+     */
+    public synchronized void record(String entry_id, State state) {
+        states.merge(entry_id, state, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+        String line = entry_id + "\t" + state + "\t" + System.currentTimeMillis() + System.lineSeparator();
+        try {
+            Files.writeString(file.toPath(), line, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("Could not write to journal: " + file.getAbsolutePath() + " -> " + e);
+        }
+        listeners.forEach(l -> l.accept(entry_id, state));
+    }
+
+    /**
+     * Force the recorded lines to the disk, e.g. at the end of a stage of the run
+     */
+    public synchronized void sync() {
+        if (!file.exists()) return;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (IOException e) {
+            logger.warn("Could not sync journal: " + file.getAbsolutePath() + " -> " + e);
+        }
+    }
+
+    /**
+     * Get notified whenever an entry reaches a state (called on the recording thread)
+     * @param listener: BiConsumer of entry ID and State
+     */
+    public void addListener(BiConsumer<String, State> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop notifying a listener
+     * @param listener: BiConsumer added with addListener()
+     */
+    public void removeListener(BiConsumer<String, State> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the state of an entry
+     * @param entry_id: String ID of the ProjectImageEntry
+     * @return State, or null if nothing has been recorded yet
+     */
+    public State getState(String entry_id) {
+        return states.get(entry_id);
+    }
+
+    /**
+     * Whether an entry has reached (at least) a state
+     * @param entry_id: String ID of the ProjectImageEntry
+     * @param state: State
+     * @return boolean
+     */
+    public boolean hasReached(String entry_id, State state) {
+        State current = states.get(entry_id);
+        return current != null && current.compareTo(state) >= 0;
+    }
+
+    /**
+     * Count the entries that have been saved
+     * @param entry_ids: Collection of entry IDs
+     * @return int number of saved entries
+     */
+    public int countSaved(Collection<String> entry_ids) {
+        return (int) entry_ids.stream().filter(id -> hasReached(id, State.SAVED)).count();
+    }
+}
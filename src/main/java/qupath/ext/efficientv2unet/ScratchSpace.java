@@ -0,0 +1,121 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Local scratch folder for the workspaces of the prediction runs (the exported images and predicted masks),
+ * e.g. a RAM disk (tmpfs) or a local NVMe drive, instead of the project folder, which may be on a network share.
+ * Every project has its own runs folder in the scratch folder, named by the project folder and a hash of its path.
+ * A new run only uses the scratch folder if it has enough free space (see getRequiredBytes()),
+ * else (or if no scratch folder is set in the preferences) it uses the runs folder of the project.
+ * Shards and job bundles are always written to the project folder, as they are read on other machines.
+ */
+public class ScratchSpace {
+    private static final Logger logger = LoggerFactory.getLogger(ScratchSpace.class);
+    public static final long MIN_FREE_BYTES = 2L << 30; // 2 GB, required without a temp disk budget
+    private static final long RESERVED_BYTES = 256L << 20; // kept free on the scratch folder by a run
+
+    private final File dir;
+
+    /**
+     * Constructor
+     * @param dir: File scratch folder, which may not exist yet (it is created when a run checks its free space, see OpInEx.getRuns_dir())
+     */
+    public ScratchSpace(File dir) {
+        this.dir = dir.getAbsoluteFile();
+    }
+
+    /**
+     * Get the scratch folder set in the preferences
+     * @return ScratchSpace, or null if no scratch folder is set
+     */
+    public static ScratchSpace getDefault() {
+        String dir = EV2UnetSetup.getInstance().getScratchDir();
+        if (dir == null || dir.isBlank()) return null;
+        return new ScratchSpace(new File(dir.strip()));
+    }
+
+    /**
+     * Get the free space a new run needs: the temp disk budget if one is set (see DiskBudget), else MIN_FREE_BYTES
+     * @return long bytes
+     */
+    public static long getRequiredBytes() {
+        DiskBudget budget = DiskBudget.fromPreferences();
+        return budget.isLimited() ? budget.getMaxBytes() : MIN_FREE_BYTES;
+    }
+
+    /**
+     * Limit the disk budget of a run in the scratch folder to its free space, so that a large run is
+     * predicted in parts instead of filling e.g. a RAM disk (see PredictionRun)
+     * @param run_dir: File workspace folder of the run
+     * @param budget: DiskBudget of the run
+     * @return DiskBudget, the same if it is limited or the run is not in a scratch folder
+     */
+    public static DiskBudget limitBudget(File run_dir, DiskBudget budget) {
+        ScratchSpace scratch = getDefault();
+        if (budget.isLimited() || scratch == null || !scratch.contains(run_dir)) return budget;
+        long free = run_dir.getUsableSpace() - RESERVED_BYTES;
+        logger.debug("Limiting the disk budget of the run to the free space of the scratch folder: " + (free >> 20) + " MB");
+        return new DiskBudget(Math.max(1, free));
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Get the runs folder of a project in the scratch folder
+     * @param project_dir: File project folder
+     * @return File scratch_folder / projectName-hash / runs
+     */
+    public File getRunsDir(File project_dir) {
+        String path = project_dir.getAbsolutePath();
+        String hash;
+        try {
+            hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8))).substring(0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            hash = Integer.toHexString(path.hashCode());
+        }
+        return new File(dir, project_dir.getName() + "-" + hash + File.separator + "runs");
+    }
+
+    /**
+     * Check whether the scratch folder can be written to and has enough free space
+     * @param required_bytes: long bytes needed
+     * @return boolean
+     */
+    public boolean hasFreeSpace(long required_bytes) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.warn("Could not create the scratch folder: " + dir.getAbsolutePath());
+            return false;
+        }
+        if (!dir.canWrite()) {
+            logger.warn("Cannot write to the scratch folder: " + dir.getAbsolutePath());
+            return false;
+        }
+        long free = dir.getUsableSpace();
+        if (free < required_bytes) {
+            logger.info("Scratch folder " + dir.getAbsolutePath() + " is full (" + (free >> 20) + " MB free, " +
+                    (required_bytes >> 20) + " MB needed)");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a file is in the scratch folder
+     * @param file: File
+     * @return boolean
+     */
+    public boolean contains(File file) {
+        return file.toPath().toAbsolutePath().normalize().startsWith(dir.toPath().normalize());
+    }
+}
@@ -0,0 +1,201 @@
+package qupath.ext.efficientv2unet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Wall-clock time spent in every stage of a prediction or training run (thread-safe),
+ * e.g. to see whether the export or the inference is the bottleneck.
+ * Written as timings.csv and timings.json into the reports folder of the project.
+ */
+public class StageTimings {
+    private static final Logger logger = LoggerFactory.getLogger(StageTimings.class);
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    // Stages of a prediction
+    public static final String EXPORT = "export";
+    public static final String INTERPRETER_START = "interpreter_start";
+    public static final String MODEL_LOAD = "model_load";
+    public static final String INFERENCE = "inference";
+    public static final String READ_IMAGE_DATA = "read_image_data";
+    public static final String MASK_DECODE = "mask_decode";
+    public static final String CONTOUR_TRACING = "contour_tracing";
+    public static final String SPLIT = "split";
+    public static final String HIERARCHY_INSERT = "hierarchy_insert";
+    public static final String SAVE = "save";
+    // Stages of a training
+    public static final String TRAINING = "training";
+
+    /**
+     * Accumulated time of a stage
+     */
+    public static class Stage {
+        private final String name;
+        private long count = 0;
+        private long total_nanos = 0;
+        private long max_nanos = 0;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Number of times the stage was run (e.g. the number of images)
+         * @return long
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public double getTotalSeconds() {
+            return total_nanos / 1e9;
+        }
+
+        public double getMeanSeconds() {
+            return count == 0 ? 0 : getTotalSeconds() / count;
+        }
+
+        public double getMaxSeconds() {
+            return max_nanos / 1e9;
+        }
+    }
+
+    private final String run_id;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    /**
+     * Constructor
+     * @param run_id: String ID of the run (used for the report file names)
+     */
+    public StageTimings(String run_id) {
+        this.run_id = run_id;
+    }
+
+    public String getRunId() {
+        return run_id;
+    }
+
+    /**
+     * Start timing
+     * @return long start time to pass to stop()
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record one run of a stage
+     * @param stage: String stage name, e.g. StageTimings.EXPORT
+     * @param start_nanos: long, the return value of start()
+     */
+    public void stop(String stage, long start_nanos) {
+        add(stage, System.nanoTime() - start_nanos, 1);
+    }
+
+    /**
+     * Record the time of a stage, e.g. the inference of several images in a single process
+     * @param stage: String stage name
+     * @param nanos: long nanoseconds
+     * @param count: long number of times the stage was run in that time (e.g. number of images)
+     */
+    public synchronized void add(String stage, long nanos, long count) {
+        if (nanos < 0) return;
+        Stage s = stages.computeIfAbsent(stage, Stage::new);
+        s.count += count;
+        s.total_nanos += nanos;
+        s.max_nanos = Math.max(s.max_nanos, count > 0 ? nanos / count : nanos);
+    }
+
+    /**
+     * Get the recorded stages, in the order they were first recorded
+     * @return List of Stage
+     */
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages.values());
+    }
+
+    /**
+     * Short summary of the stages, e.g. for the progress dialog
+     * @return String, one line per stage
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage s : getStages()) {
+            if (!sb.isEmpty()) sb.append("\n");
+            sb.append(String.format(Locale.US, "%s: %.1f s", s.getName(), s.getTotalSeconds()));
+            if (s.getCount() > 1) sb.append(String.format(Locale.US, " (%d x %.2f s)", s.getCount(), s.getMeanSeconds()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the timings as CSV (stage, count, total, mean and max seconds)
+     * @param file: File
+     * @throws IOException
+     */
+    public void writeCsv(File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("stage,count,total_seconds,mean_seconds,max_seconds\n");
+            for (Stage s : getStages()) {
+                writer.write(String.format(Locale.US, "%s,%d,%.3f,%.3f,%.3f\n",
+                        s.getName(), s.getCount(), s.getTotalSeconds(), s.getMeanSeconds(), s.getMaxSeconds()));
+            }
+        }
+    }
+
+    /**
+     * Write the timings as JSON
+     * @param file: File
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("run_id", run_id);
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (Stage s : getStages()) {
+            Map<String, Object> stage = new LinkedHashMap<>();
+            stage.put("stage", s.getName());
+            stage.put("count", s.getCount());
+            stage.put("total_seconds", s.getTotalSeconds());
+            stage.put("mean_seconds", s.getMeanSeconds());
+            stage.put("max_seconds", s.getMaxSeconds());
+            out.add(stage);
+        }
+        report.put("stages", out);
+        try (Writer writer = new FileWriter(file)) {
+            gson.toJson(report, writer);
+        }
+    }
+
+    /**
+     * Write the report files: run_id_timings.csv and run_id_timings.json
+     * @param reports_dir: File folder of the reports, created if it does not exist
+     */
+    public void writeReport(File reports_dir) {
+        if (getStages().isEmpty()) return;
+        reports_dir.mkdirs();
+        try {
+            writeCsv(new File(reports_dir, run_id + "_timings.csv"));
+            writeJson(new File(reports_dir, run_id + "_timings.json"));
+            logger.info("Timings of run " + run_id + ":\n" + getSummary());
+        } catch (IOException e) {
+            logger.warn("Could not write the timings report to " + reports_dir.getAbsolutePath() + ": " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package qupath.ext.efficientv2unet;
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.writers.ImageWriterTools;
+import qupath.lib.regions.RegionRequest;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Encoders for the images exported for the python process (temp images to predict, and training images and masks).
+ * The temp images only live for a few seconds, so a fast encoder matters more than a small file.
+ * All of them write TIFF files, as that is what the python package reads.
+ * Can be compared with TempImageWriterBenchmark (src/jmh/java).
+ */
+public enum TempImageWriter {
+
+    /**
+     * Uncompressed TIFF written by ImageJ: no compression work, and read by any TIFF reader (default)
+     */
+    UNCOMPRESSED_TIFF("Uncompressed TIFF (fastest)") {
+        @Override
+        protected void encode(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+            ImagePlus imp = IJTools.convertToImagePlus(server, request).getImage();
+            if (!IJ.saveAsTiff(imp, file.getAbsolutePath())) throw new IOException("ImageJ could not write " + file.getAbsolutePath());
+        }
+    },
+
+    /**
+     * PackBits compressed TIFF: fast run-length compression, e.g. for masks or images with a flat background
+     */
+    PACKBITS_TIFF("PackBits compressed TIFF") {
+        @Override
+        protected void encode(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+            writeImageIO(server.readRegion(request), file, "PackBits");
+        }
+    },
+
+    /**
+     * Deflate (zip) compressed TIFF: smaller files, slower to write, e.g. for slow or small disks
+     */
+    DEFLATE_TIFF("Deflate compressed TIFF") {
+        @Override
+        protected void encode(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+            writeImageIO(server.readRegion(request), file, "Deflate");
+        }
+    },
+
+    /**
+     * The writer QuPath picks for the file extension (as before)
+     */
+    QUPATH_DEFAULT("QuPath default writer") {
+        @Override
+        protected void encode(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+            ImageWriterTools.writeImageRegion(server, request, file.getAbsolutePath());
+        }
+    },
+
+    /**
+     * Uncompressed tiled TIFF, streamed tile by tile (see TiledTiffWriter): the heap used does not depend on the image size
+     */
+    TILED_TIFF("Tiled TIFF (streamed, for large images)") {
+        @Override
+        protected void encode(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+            new TiledTiffWriter().write(server, request, file);
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(TempImageWriter.class);
+
+    private final String description;
+
+    TempImageWriter(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Get the writer used if none is set (see EV2UnetSetup)
+     * @return TempImageWriter
+     */
+    public static TempImageWriter getDefault() {
+        return UNCOMPRESSED_TIFF;
+    }
+
+    /**
+     * Get the largest region (uncompressed bytes) written in one piece.
+     * Larger regions are streamed with TILED_TIFF, whatever the writer, as they may not fit in the heap.
+     * @return long bytes, a quarter of the max heap and at most 512 MB
+     */
+    public static long getMaxInMemoryBytes() {
+        return Math.min(512L << 20, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Write a region of an image
+     * @param server: ImageServer to read from
+     * @param request: RegionRequest, the region and downsample to write
+     * @param file: File tif file to write
+     * @throws IOException
+     */
+    public void write(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+        long bytes = TiledTiffWriter.estimateBytes(server, request);
+        if (this != TILED_TIFF && bytes > getMaxInMemoryBytes()) {
+            logger.info("Streaming " + file.getName() + " as a tiled TIFF (" + (bytes >> 20) + " MB uncompressed)");
+            TILED_TIFF.encode(server, request, file);
+        }
+        else encode(server, request, file);
+    }
+
+    /**
+     * Encode a region of an image in one piece
+     * @param server: ImageServer to read from
+     * @param request: RegionRequest, the region and downsample to write
+     * @param file: File tif file to write
+     * @throws IOException
+     */
+    protected abstract void encode(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException;
+
+    /**
+     * Write a full image at full resolution
+     * @param server: ImageServer to read from
+     * @param file: File tif file to write
+     * @throws IOException
+     */
+    public void write(ImageServer<BufferedImage> server, File file) throws IOException {
+        write(server, RegionRequest.createInstance(server), file);
+    }
+
+    private static void writeImageIO(BufferedImage img, File file, String compression) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) throw new IOException("No TIFF writer available");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionType(compression);
+        // the output stream does not truncate an existing file
+        if (file.exists() && !file.delete()) throw new IOException("Could not overwrite " + file.getAbsolutePath());
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,291 @@
+package qupath.ext.efficientv2unet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a region of an image as an uncompressed, tiled TIFF (BigTIFF if larger than 4 GB),
+ * reading and writing one tile at a time on a few threads.
+ * Unlike writing a single BufferedImage, the heap used is bounded by the tiles in flight,
+ * whatever the size of the image. As the tiles are not compressed, the position of every tile
+ * in the file is known in advance, so they can be written in any order.
+ * Only writes one plane (z and t of the request); the channels are interleaved.
+ */
+public class TiledTiffWriter {
+    private static final Logger logger = LoggerFactory.getLogger(TiledTiffWriter.class);
+    public static final int DEFAULT_TILE_SIZE = 512;
+    private static final long MAX_CLASSIC_TIFF_BYTES = 0xFFFFFFFFL - (1 << 20); // keep room for the IFD
+    private static final AtomicInteger thread_count = new AtomicInteger();
+
+    // TIFF tags and types
+    private static final int TAG_IMAGE_WIDTH = 256, TAG_IMAGE_LENGTH = 257, TAG_BITS_PER_SAMPLE = 258,
+            TAG_COMPRESSION = 259, TAG_PHOTOMETRIC = 262, TAG_SAMPLES_PER_PIXEL = 277, TAG_PLANAR_CONFIG = 284,
+            TAG_TILE_WIDTH = 322, TAG_TILE_LENGTH = 323, TAG_TILE_OFFSETS = 324, TAG_TILE_BYTE_COUNTS = 325,
+            TAG_EXTRA_SAMPLES = 338, TAG_SAMPLE_FORMAT = 339;
+    private static final int TYPE_SHORT = 3, TYPE_LONG = 4, TYPE_LONG8 = 16;
+
+    private final int tile_size;
+    private final int n_threads;
+    private final long max_classic_bytes;
+
+    /**
+     * Constructor with 512 px tiles, and up to 4 threads
+     */
+    public TiledTiffWriter() {
+        this(DEFAULT_TILE_SIZE, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Constructor
+     * @param tile_size: int width and height of the tiles (multiple of 16)
+     * @param n_threads: int number of tiles read and written at the same time
+     */
+    public TiledTiffWriter(int tile_size, int n_threads) {
+        this(tile_size, n_threads, MAX_CLASSIC_TIFF_BYTES);
+    }
+
+    /**
+     * Constructor with the size above which a BigTIFF is written (e.g. to write a small BigTIFF in the tests)
+     * @param tile_size: int width and height of the tiles (multiple of 16)
+     * @param n_threads: int number of tiles read and written at the same time
+     * @param max_classic_bytes: long max bytes of the tiles of a classic TIFF
+     */
+    TiledTiffWriter(int tile_size, int n_threads, long max_classic_bytes) {
+        if (tile_size <= 0 || tile_size % 16 != 0) throw new IllegalArgumentException("The tile size must be a multiple of 16: " + tile_size);
+        this.tile_size = tile_size;
+        this.n_threads = Math.max(1, n_threads);
+        this.max_classic_bytes = Math.min(max_classic_bytes, MAX_CLASSIC_TIFF_BYTES);
+    }
+
+    /**
+     * Estimate the uncompressed size of a region
+     * @param server: ImageServer
+     * @param request: RegionRequest
+     * @return long bytes
+     */
+    public static long estimateBytes(ImageServer<BufferedImage> server, RegionRequest request) {
+        long width = Math.round(request.getWidth() / request.getDownsample());
+        long height = Math.round(request.getHeight() / request.getDownsample());
+        int samples = server.isRGB() ? 3 : server.nChannels();
+        return width * height * samples * server.getPixelType().getBytesPerPixel();
+    }
+
+    /**
+     * Write a region of an image
+     * @param server: ImageServer to read the tiles from
+     * @param request: RegionRequest, region and downsample to write
+     * @param file: File tif file to write
+     * @throws IOException
+     */
+    public void write(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+        double downsample = request.getDownsample();
+        int width = (int) Math.max(1, Math.round(request.getWidth() / downsample));
+        int height = (int) Math.max(1, Math.round(request.getHeight() / downsample));
+        int samples = server.isRGB() ? 3 : server.nChannels();
+        PixelType pixel_type = server.isRGB() ? PixelType.UINT8 : server.getPixelType();
+        int bytes_per_sample = pixel_type.getBytesPerPixel();
+        int tiles_x = (width + tile_size - 1) / tile_size;
+        int tiles_y = (height + tile_size - 1) / tile_size;
+        int n_tiles = tiles_x * tiles_y;
+        long tile_bytes = (long) tile_size * tile_size * samples * bytes_per_sample;
+        boolean big = (long) n_tiles * tile_bytes > max_classic_bytes;
+        long data_start = big ? 16 : 8;
+        long ifd_offset = data_start + n_tiles * tile_bytes;
+
+        if (file.exists() && !file.delete()) throw new IOException("Could not overwrite " + file.getAbsolutePath());
+        logger.debug("Writing " + width + " x " + height + " px in " + n_tiles + " tiles" + (big ? " (BigTIFF)" : "") + ": " + file.getAbsolutePath());
+        ExecutorService pool = Executors.newFixedThreadPool(n_threads, r -> {
+            Thread t = new Thread(r, "ev2unet-tiff-writer-" + thread_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFully(channel, header(big, ifd_offset), 0);
+            // every tile is read and written by one task, so only n_threads tiles are in memory
+            List<Future<?>> futures = new ArrayList<>(n_tiles);
+            for (int ty = 0; ty < tiles_y; ty++) {
+                for (int tx = 0; tx < tiles_x; tx++) {
+                    int tile_x = tx, tile_y = ty;
+                    long offset = data_start + (long) (ty * tiles_x + tx) * tile_bytes;
+                    futures.add(pool.submit(() -> {
+                        writeFully(channel, readTile(server, request, tile_x, tile_y, samples, pixel_type), offset);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> f : futures) f.get();
+            writeFully(channel, ifd(big, ifd_offset, width, height, samples, server.isRGB(), pixel_type, n_tiles, data_start, tile_bytes), ifd_offset);
+        } catch (ExecutionException e) {
+            file.delete();
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException("Could not write tile: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            file.delete();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + file.getAbsolutePath(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Read a tile and encode it as interleaved samples (padded with 0 at the right and bottom edges)
+     */
+    private ByteBuffer readTile(ImageServer<BufferedImage> server, RegionRequest request,
+                                int tile_x, int tile_y, int samples, PixelType pixel_type) throws IOException {
+        double downsample = request.getDownsample();
+        // tile bounds in full resolution coordinates, clipped to the request
+        int x = request.getX() + (int) Math.round(tile_x * tile_size * downsample);
+        int y = request.getY() + (int) Math.round(tile_y * tile_size * downsample);
+        int w = Math.min((int) Math.round(tile_size * downsample), request.getMaxX() - x);
+        int h = Math.min((int) Math.round(tile_size * downsample), request.getMaxY() - y);
+        BufferedImage img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample,
+                x, y, w, h, request.getZ(), request.getT()));
+        Raster raster = img.getRaster();
+        int img_w = Math.min(tile_size, raster.getWidth());
+        int img_h = Math.min(tile_size, raster.getHeight());
+
+        int bytes_per_sample = pixel_type.getBytesPerPixel();
+        ByteBuffer buffer = ByteBuffer.allocate(tile_size * tile_size * samples * bytes_per_sample).order(ByteOrder.LITTLE_ENDIAN);
+        boolean floating = pixel_type.isFloatingPoint();
+        double[] band_d = floating ? new double[img_w * img_h] : null;
+        int[] band_i = floating ? null : new int[img_w * img_h];
+        for (int b = 0; b < samples; b++) {
+            if (floating) raster.getSamples(0, 0, img_w, img_h, b, band_d);
+            else raster.getSamples(0, 0, img_w, img_h, b, band_i);
+            for (int row = 0; row < img_h; row++) {
+                for (int col = 0; col < img_w; col++) {
+                    int pos = ((row * tile_size + col) * samples + b) * bytes_per_sample;
+                    int i = row * img_w + col;
+                    switch (pixel_type) {
+                        case UINT8, INT8 -> buffer.put(pos, (byte) band_i[i]);
+                        case UINT16, INT16 -> buffer.putShort(pos, (short) band_i[i]);
+                        case UINT32, INT32 -> buffer.putInt(pos, band_i[i]);
+                        case FLOAT32 -> buffer.putFloat(pos, (float) band_d[i]);
+                        case FLOAT64 -> buffer.putDouble(pos, band_d[i]);
+                    }
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer header(boolean big, long ifd_offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(big ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I');
+        if (big) buffer.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifd_offset);
+        else buffer.putShort((short) 42).putInt((int) ifd_offset);
+        return buffer.flip();
+    }
+
+    /**
+     * A TIFF directory entry, with its values
+     */
+    private record Entry(int tag, int type, long[] values) {
+        int valueSize() {
+            return type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : 8;
+        }
+
+        void putValue(ByteBuffer buffer, long value) {
+            if (type == TYPE_SHORT) buffer.putShort((short) value);
+            else if (type == TYPE_LONG) buffer.putInt((int) value);
+            else buffer.putLong(value);
+        }
+    }
+
+    private ByteBuffer ifd(boolean big, long ifd_offset, int width, int height, int samples, boolean rgb,
+                                  PixelType pixel_type, int n_tiles, long data_start, long tile_bytes) {
+        long[] offsets = new long[n_tiles];
+        long[] counts = new long[n_tiles];
+        for (int i = 0; i < n_tiles; i++) {
+            offsets[i] = data_start + i * tile_bytes;
+            counts[i] = tile_bytes;
+        }
+        int sample_format = pixel_type.isFloatingPoint() ? 3 : pixel_type.isSignedInteger() ? 2 : 1;
+        int offset_type = big ? TYPE_LONG8 : TYPE_LONG;
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(TAG_IMAGE_WIDTH, TYPE_LONG, new long[]{width}));
+        entries.add(new Entry(TAG_IMAGE_LENGTH, TYPE_LONG, new long[]{height}));
+        entries.add(new Entry(TAG_BITS_PER_SAMPLE, TYPE_SHORT, repeat(pixel_type.getBitsPerPixel(), samples)));
+        entries.add(new Entry(TAG_COMPRESSION, TYPE_SHORT, new long[]{1}));
+        entries.add(new Entry(TAG_PHOTOMETRIC, TYPE_SHORT, new long[]{rgb ? 2 : 1}));
+        entries.add(new Entry(TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, new long[]{samples}));
+        entries.add(new Entry(TAG_PLANAR_CONFIG, TYPE_SHORT, new long[]{1}));
+        entries.add(new Entry(TAG_TILE_WIDTH, TYPE_LONG, new long[]{tile_size}));
+        entries.add(new Entry(TAG_TILE_LENGTH, TYPE_LONG, new long[]{tile_size}));
+        entries.add(new Entry(TAG_TILE_OFFSETS, offset_type, offsets));
+        entries.add(new Entry(TAG_TILE_BYTE_COUNTS, offset_type, counts));
+        if (!rgb && samples > 1) entries.add(new Entry(TAG_EXTRA_SAMPLES, TYPE_SHORT, new long[samples - 1])); // unspecified
+        entries.add(new Entry(TAG_SAMPLE_FORMAT, TYPE_SHORT, repeat(sample_format, samples)));
+
+        int entry_size = big ? 20 : 12;
+        int inline_size = big ? 8 : 4;
+        long dir_size = (big ? 8 : 2) + (long) entries.size() * entry_size + (big ? 8 : 4);
+        long extra_size = 0;
+        for (Entry e : entries) {
+            long size = (long) e.values.length * e.valueSize();
+            if (size > inline_size) extra_size += size + (size % 2); // word aligned
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (dir_size + extra_size)).order(ByteOrder.LITTLE_ENDIAN);
+        if (big) buffer.putLong(entries.size());
+        else buffer.putShort((short) entries.size());
+        long extra_offset = ifd_offset + dir_size;
+        int extra_pos = (int) dir_size;
+        for (Entry e : entries) {
+            buffer.putShort((short) e.tag).putShort((short) e.type);
+            if (big) buffer.putLong(e.values.length);
+            else buffer.putInt(e.values.length);
+            long size = (long) e.values.length * e.valueSize();
+            if (size <= inline_size) {
+                int start = buffer.position();
+                for (long v : e.values) e.putValue(buffer, v);
+                buffer.position(start + inline_size); // left-justified, rest is 0
+            }
+            else {
+                if (big) buffer.putLong(extra_offset);
+                else buffer.putInt((int) extra_offset);
+                int pos = buffer.position();
+                buffer.position(extra_pos);
+                for (long v : e.values) e.putValue(buffer, v);
+                buffer.position(pos);
+                extra_offset += size + (size % 2);
+                extra_pos += (int) (size + (size % 2));
+            }
+        }
+        // no next IFD
+        if (big) buffer.putLong(0);
+        else buffer.putInt(0);
+        return buffer.position(0).limit(buffer.capacity());
+    }
+
+    private static long[] repeat(long value, int n) {
+        long[] values = new long[n];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+}
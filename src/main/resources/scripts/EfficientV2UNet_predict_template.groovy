@@ -7,10 +7,15 @@ import qupath.ext.efficientv2unet.EfficientV2UNet
  *
  * This script will predict the currently opened image in QuPath, using the specified model.
  * After defining the builder, it will:
- * 1. Export the image as tif to the Temp directory
+ * 1. Export the image as tif to its own run folder in the Temp directory
  * 2. Run the Efficient V2 UNet on this image and save the predicted image to the "Predict output" directory
  * 3. Reimport the mask image into QuPath and add the predicted object as annotation of the class "AnnotationClassName"
- * 4. Delete the temp file and the predicted image (but keep the folders)
+ * 4. Delete the run folder with the temp file and the predicted image (but keep the Temp directory)
+ * As every prediction uses its own run folder, several scripts can predict in the same project at the same time.
+ *
+ * The script does not need the QuPath GUI, it can also be run with 'qupath script',
+ * e.g. 'qupath script -p project.qpproj -i image_name EfficientV2UNet_predict.groovy'.
+ * Use 'efficientV2Unet.process(entry)' to predict (and save) a ProjectImageEntry instead.
  *
  */
 
@@ -18,6 +23,8 @@ def model_path = "/path/to/your/model/model_file.h5"
 def efficientV2Unet = EfficientV2UNet.builder()
         // Modality settings
         .doPredict(true)                                // either doTrain or doPredict must be true
+//        .setProject(getProject())                             // Defaults to the project of the script or the QuPath GUI
+//        .setPythonPath("/path/to/env/bin/python")             // Defaults to the python set in Edit > Preferences
 
         // Predict settings
         .setModelPath(model_path)                               // Path to the trained .h5 model file
@@ -32,4 +39,10 @@ def efficientV2Unet = EfficientV2UNet.builder()
 
 // start the prediction
 efficientV2Unet.process()
+
+// Alternatively, predict several project images in a single python session (in the background)
+//def run = efficientV2Unet.predictAsync(getProject().getImageList())
+//run.getProgressBus().addSnapshotListener(s -> println("Progress: " + s.getDone() + "/" + s.getTotal()))
+//def result = run.getFuture().join()                           // wait for the prediction (before the script ends)
+//println("Saved " + result.getSaved().size() + " images, " + result.getRemaining() + " images not predicted")
 println("Script done")
\ No newline at end of file
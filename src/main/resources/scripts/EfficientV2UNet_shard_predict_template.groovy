@@ -0,0 +1,46 @@
+import qupath.ext.efficientv2unet.EfficientV2UNet
+import qupath.ext.efficientv2unet.ProjectShards
+
+
+/**
+ * Efficient V2 UNet template script to predict a project in shards on several machines
+ * @author Loïc Sauteur
+ *
+ * The images of the project are split into 'shard_count' deterministic shards.
+ * Each machine (e.g. each task of a SLURM array job) predicts one shard, e.g.:
+ *      qupath script -p /shared/project/project.qpproj EfficientV2UNet_shard_predict.groovy
+ * Each shard writes into its own folder "../YourQuPathProjectFolder/Efficient_V2_UNet/shards/shard_i_of_k".
+ *
+ * Use a contiguous array (e.g. --array=0-9 or --array=1-10 for 10 shards), without a step or a list of IDs.
+ *
+ * Once all shards are done, run the script once more with 'ingest = true' (on a single machine),
+ * to load all the predictions into the project. Shards with images that could not be loaded
+ * (e.g. because their job failed) are kept, and can be predicted and ingested again.
+ */
+
+def ingest = false                                                  // false = predict a shard, true = load all shard results
+// the task IDs of the array job (e.g. --array=1-N) are converted to shard indices 0 to N-1
+def shard_index = ((System.getenv("SLURM_ARRAY_TASK_ID") ?: "0") as int) - ((System.getenv("SLURM_ARRAY_TASK_MIN") ?: "0") as int)
+def shard_count = (System.getenv("SLURM_ARRAY_TASK_COUNT") ?: "1") as int
+
+if (ingest) {
+    def n = ProjectShards.ingest(getProject(), true)               // true = delete the shard folders after loading
+    println("Loaded the predictions of " + n + " shards")
+    return
+}
+
+def model_path = "/path/to/your/model/model_file.h5"
+def efficientV2Unet = EfficientV2UNet.builder()
+        .doPredict(true)
+        .setProject(getProject())
+//        .setPythonPath("/path/to/env/bin/python")             // Defaults to the python set in Edit > Preferences
+        .setModelPath(model_path)                               // Path to the trained .h5 model file
+        .setResolution(1)                                       // Resolution at which the prediction should be done (1=full, 2=half, ect.). Defaults to 1
+        .setThreshold(0.5)
+        .setAnnotationClassName("Region")                       // Annotation class name for the detected objects. Defaults to "Region"
+        .doSplitObject(false)                             // Whether to split the detected objects into separate annotations. Defaults to false
+        .doRemoveExistingAnnotations(false)             // Whether to remove existing annotations in the image (!Removes all objects!). Defaults to false
+        .build()
+
+efficientV2Unet.predictShard(shard_index, shard_count)
+println("Shard " + shard_index + " of " + shard_count + " done")
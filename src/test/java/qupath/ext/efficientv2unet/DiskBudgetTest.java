@@ -0,0 +1,114 @@
+package qupath.ext.efficientv2unet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DiskBudgetTest {
+
+    @TempDir
+    Path dir;
+
+    File file(String name, int n_bytes) throws IOException {
+        File file = dir.resolve(name).toFile();
+        Files.write(file.toPath(), new byte[n_bytes]);
+        return file;
+    }
+
+    @Test
+    void reserveAndRelease() throws IOException {
+        DiskBudget budget = new DiskBudget(1000);
+        File a = file("1.tif", 100);
+        File b = file("2.tif", 200);
+        budget.reserve(a, 300);
+        budget.reserve(b, 100);
+        assertEquals(700, budget.getUsed());
+        assertFalse(budget.isExhausted());
+
+        budget.release(a);
+        assertEquals(300, budget.getUsed());
+        // releasing twice, or a file that was not reserved, changes nothing
+        budget.release(a);
+        budget.release(dir.resolve("3.tif").toFile());
+        assertEquals(300, budget.getUsed());
+        budget.release(b);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    void reservingAgainReplacesTheReservation() throws IOException {
+        DiskBudget budget = new DiskBudget(1000);
+        File a = file("1.tif", 100);
+        budget.reserve(a, 300);
+        // e.g. an image exported again
+        budget.reserve(a, 500);
+        assertEquals(600, budget.getUsed());
+        budget.release(a);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    void exhaustedOnceTheBudgetIsUsed() throws IOException {
+        DiskBudget budget = new DiskBudget(1000);
+        budget.reserve(file("1.tif", 400), 400);
+        assertFalse(budget.isExhausted());
+        // the last image may not fit entirely
+        budget.reserve(file("2.tif", 400), 400);
+        assertTrue(budget.isExhausted());
+        budget.release(dir.resolve("1.tif").toFile());
+        assertFalse(budget.isExhausted());
+    }
+
+    @Test
+    void unlimitedBudget() throws IOException {
+        DiskBudget budget = new DiskBudget(0);
+        assertFalse(budget.isLimited());
+        budget.reserve(file("1.tif", 1000), 1L << 40);
+        assertFalse(budget.isExhausted());
+        assertEquals(Integer.MAX_VALUE, budget.estimateRemainingImages());
+    }
+
+    @Test
+    void remainingImagesFromTheMeanReservation() throws IOException {
+        DiskBudget budget = new DiskBudget(1000);
+        // unknown as long as no image is reserved
+        assertEquals(Integer.MAX_VALUE, budget.estimateRemainingImages());
+        budget.reserve(file("1.tif", 100), 100);
+        budget.reserve(file("2.tif", 100), 100);
+        // 600 bytes left, 200 per image
+        assertEquals(3, budget.estimateRemainingImages());
+        budget.reserve(file("3.tif", 100), 50);
+        // 450 bytes left, 150 per image (an image is exported as long as the budget is not used up)
+        assertEquals(3, budget.estimateRemainingImages());
+        budget.reserve(file("4.tif", 600), 0);
+        assertEquals(0, budget.estimateRemainingImages());
+    }
+
+    @Test
+    void exportedImagesReserveTheirMask() throws IOException {
+        File tif = dir.resolve("1.tif").toFile();
+        assertTrue(ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_BYTE_GRAY), "tif", tif));
+        assertEquals(600, DiskBudget.readPixelCount(tif));
+
+        DiskBudget budget = new DiskBudget(10_000);
+        budget.reserveExported(tif);
+        assertEquals(tif.length() + 600, budget.getUsed());
+    }
+
+    @Test
+    void unreadableImagesReserveTheirFileSize() throws IOException {
+        File file = file("1.tif", 123);
+        assertEquals(123, DiskBudget.readPixelCount(file));
+        assertEquals(0, DiskBudget.readPixelCount(dir.resolve("missing.tif").toFile()));
+    }
+}
@@ -0,0 +1,69 @@
+package qupath.ext.efficientv2unet;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LineRingBufferTest {
+
+    static LineRingBuffer filled(int capacity, int n) {
+        LineRingBuffer buffer = new LineRingBuffer(capacity);
+        for (int i = 1; i <= n; i++) buffer.add("line " + i);
+        return buffer;
+    }
+
+    @Test
+    void emptyBuffer() {
+        LineRingBuffer buffer = new LineRingBuffer(3);
+        assertTrue(buffer.getLines().isEmpty());
+        assertEquals(0, buffer.getTotal());
+        assertEquals("", buffer.toString());
+    }
+
+    @Test
+    void linesBeforeTheBufferIsFull() {
+        LineRingBuffer buffer = filled(3, 2);
+        assertEquals(List.of("line 1", "line 2"), buffer.getLines());
+        assertEquals(2, buffer.getTotal());
+    }
+
+    @Test
+    void oldestLinesAreDroppedOnWrapAround() {
+        LineRingBuffer buffer = filled(3, 3);
+        assertEquals(List.of("line 1", "line 2", "line 3"), buffer.getLines());
+
+        buffer.add("line 4");
+        assertEquals(List.of("line 2", "line 3", "line 4"), buffer.getLines());
+
+        // several times around the buffer
+        buffer = filled(3, 10);
+        assertEquals(List.of("line 8", "line 9", "line 10"), buffer.getLines());
+        assertEquals(10, buffer.getTotal());
+        assertEquals(String.join(System.lineSeparator(), "line 8", "line 9", "line 10"), buffer.toString());
+    }
+
+    @Test
+    void lastLines() {
+        LineRingBuffer buffer = filled(4, 6);
+        assertEquals(List.of("line 5", "line 6"), buffer.getLastLines(2));
+        assertEquals(List.of("line 3", "line 4", "line 5", "line 6"), buffer.getLastLines(10));
+        assertTrue(buffer.getLastLines(0).isEmpty());
+    }
+
+    @Test
+    void capacityOfOne() {
+        LineRingBuffer buffer = filled(1, 3);
+        assertEquals(List.of("line 3"), buffer.getLines());
+        assertEquals(3, buffer.getTotal());
+    }
+
+    @Test
+    void invalidCapacityIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new LineRingBuffer(0));
+        assertThrows(IllegalArgumentException.class, () -> new LineRingBuffer(-1));
+    }
+}
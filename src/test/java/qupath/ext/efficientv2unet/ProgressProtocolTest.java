@@ -0,0 +1,156 @@
+package qupath.ext.efficientv2unet;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProgressProtocolTest {
+
+    /**
+     * Bus that keeps the posted events, without publishing snapshots
+     */
+    static ProgressBus bus(List<ProgressBus.Event> events) {
+        ProgressBus bus = new ProgressBus();
+        bus.addEventListener(events::add);
+        return bus;
+    }
+
+    static List<ProgressBus.EventType> types(List<ProgressBus.Event> events) {
+        return events.stream().map(ProgressBus.Event::getType).toList();
+    }
+
+    @Test
+    void messagesAreDecodedAsEncoded() {
+        String line = ProgressProtocol.encode(new ProgressProtocol.Message(ProgressProtocol.TILE_DONE)
+                .setImage("12.tif", 1, 3).setTile(4, 16).setSeconds(0.25).setMemory(2100, 900));
+        assertTrue(line.startsWith(ProgressProtocol.PREFIX));
+
+        ProgressProtocol.Message message = ProgressProtocol.decode(line);
+        assertNotNull(message);
+        assertEquals(ProgressProtocol.TILE_DONE, message.getEvent());
+        assertEquals("12.tif", message.getImage());
+        assertEquals(1, (int) message.getImageIndex());
+        assertEquals(3, (int) message.getNImages());
+        assertEquals(4, (int) message.getTile());
+        assertEquals(16, (int) message.getNTiles());
+        assertEquals(0.25, message.getSeconds());
+        assertEquals(3000.0, message.getMemoryMB());
+    }
+
+    @Test
+    void optionalFieldsMayBeMissing() {
+        ProgressProtocol.Message message = ProgressProtocol.decode(ProgressProtocol.PREFIX + "{\"event\": \"image_started\"}");
+        assertNotNull(message);
+        assertEquals(ProgressProtocol.IMAGE_STARTED, message.getEvent());
+        assertNull(message.getImage());
+        assertNull(message.getTile());
+        assertEquals(0.0, message.getSeconds());
+        assertEquals(0.0, message.getMemoryMB());
+    }
+
+    @Test
+    void invalidLinesAreNotMessages() {
+        assertNull(ProgressProtocol.decode(null));
+        assertNull(ProgressProtocol.decode("Tiling image 12.tif"));
+        // prefix without the separating space
+        assertNull(ProgressProtocol.decode("EV2UNET_PROGRESS{\"event\": \"tile_done\"}"));
+        assertNull(ProgressProtocol.decode(ProgressProtocol.PREFIX + "{\"event\": \"tile_do"));
+        assertNull(ProgressProtocol.decode(ProgressProtocol.PREFIX + "{\"image\": \"12.tif\"}"));
+        assertNull(ProgressProtocol.decode(ProgressProtocol.PREFIX));
+    }
+
+    @Test
+    void structuredMessagesArePostedAsEvents() {
+        List<ProgressBus.Event> events = new ArrayList<>();
+        ProgressBus bus = bus(events);
+        ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus);
+        parser.accept(ProgressProtocol.encode(new ProgressProtocol.Message(ProgressProtocol.IMAGE_STARTED).setImage("1.tif", 1, 1)));
+        parser.accept(ProgressProtocol.encode(new ProgressProtocol.Message(ProgressProtocol.TILE_DONE)
+                .setImage("1.tif", 1, 1).setTile(1, 1).setSeconds(0.5).setMemory(1500, 0)));
+        parser.accept("some other output");
+        parser.accept(ProgressProtocol.encode(new ProgressProtocol.Message(ProgressProtocol.IMAGE_FINISHED)
+                .setImage("1.tif", 1, 1).setSeconds(2)));
+        parser.accept(ProgressProtocol.encode(new ProgressProtocol.Message("unknown_event")));
+        parser.finish();
+
+        assertTrue(parser.isStructured());
+        assertEquals(List.of(ProgressBus.EventType.IMAGE_STARTED, ProgressBus.EventType.TILE_DONE,
+                ProgressBus.EventType.OUTPUT, ProgressBus.EventType.IMAGE_FINISHED), types(events));
+        assertEquals("Image 1.tif (1/1): tile 1/1 in 0.50 s", events.get(1).getText());
+        ProgressBus.Snapshot snapshot = bus.getSnapshot();
+        assertEquals(1, snapshot.getImagesFinished());
+        assertEquals(1, snapshot.getTilesDone());
+        assertEquals(2.0, snapshot.getMeanImageSeconds());
+        assertEquals(1500, snapshot.getPeakMemoryMB());
+    }
+
+    @Test
+    void legacyLogLinesArePostedAsEvents() {
+        List<ProgressBus.Event> events = new ArrayList<>();
+        ProgressBus bus = bus(events);
+        ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus);
+        parser.accept("Tiling 1.tif");
+        parser.accept("Predicting...");
+        parser.accept("Tiling 2.tif");
+        // the last image only finishes with the process
+        parser.finish();
+
+        assertFalse(parser.isStructured());
+        assertEquals(List.of(ProgressBus.EventType.IMAGE_STARTED, ProgressBus.EventType.OUTPUT,
+                ProgressBus.EventType.IMAGE_FINISHED, ProgressBus.EventType.IMAGE_STARTED,
+                ProgressBus.EventType.IMAGE_FINISHED), types(events));
+        assertEquals(2, bus.getSnapshot().getImagesFinished());
+
+        // finishing twice does not count the last image again
+        parser.finish();
+        assertEquals(2, bus.getSnapshot().getImagesFinished());
+    }
+
+    @Test
+    void legacyEpochsFinishWhenTheNextOneStarts() {
+        List<ProgressBus.Event> events = new ArrayList<>();
+        ProgressBus bus = bus(events);
+        ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus);
+        parser.accept("Epoch 1/2");
+        parser.accept("Epoch 2/2");
+        parser.finish();
+        assertEquals(List.of(ProgressBus.EventType.OUTPUT, ProgressBus.EventType.EPOCH_FINISHED,
+                ProgressBus.EventType.OUTPUT, ProgressBus.EventType.EPOCH_FINISHED), types(events));
+        assertEquals(2, bus.getSnapshot().getEpochsFinished());
+    }
+
+    @Test
+    void legacyLinesAreIgnoredOnceTheProcessIsStructured() {
+        List<ProgressBus.Event> events = new ArrayList<>();
+        ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus(events));
+        parser.accept(ProgressProtocol.encode(new ProgressProtocol.Message(ProgressProtocol.IMAGE_STARTED).setImage("1.tif", 1, 2)));
+        parser.accept("Tiling 1.tif");
+        parser.accept("Epoch 1/2");
+        parser.finish();
+        assertEquals(List.of(ProgressBus.EventType.IMAGE_STARTED, ProgressBus.EventType.OUTPUT,
+                ProgressBus.EventType.OUTPUT), types(events));
+    }
+
+    @Test
+    void emittedPredictionIsParsed() throws InterruptedException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ProgressProtocol.emitPrediction(new PrintStream(bytes, true), List.of("1.tif", "2.tif"), 3, 0);
+        ProgressBus bus = new ProgressBus();
+        ProgressProtocol.Parser parser = new ProgressProtocol.Parser(bus);
+        bytes.toString().lines().forEach(parser::accept);
+        parser.finish();
+        ProgressBus.Snapshot snapshot = bus.getSnapshot();
+        assertEquals(2, snapshot.getImagesStarted());
+        assertEquals(2, snapshot.getImagesFinished());
+        assertEquals(6, snapshot.getTilesDone());
+    }
+}
@@ -0,0 +1,88 @@
+package qupath.ext.efficientv2unet;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProjectShardsTest {
+
+    /**
+     * Image entry that only has an ID (the only property used for sharding)
+     */
+    @SuppressWarnings("unchecked")
+    static ProjectImageEntry<BufferedImage> entry(String id) {
+        return (ProjectImageEntry<BufferedImage>) Proxy.newProxyInstance(ProjectImageEntry.class.getClassLoader(),
+                new Class<?>[]{ProjectImageEntry.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getID" -> id;
+                    case "toString" -> "entry " + id;
+                    case "hashCode" -> id.hashCode();
+                    case "equals" -> proxy == args[0];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    static List<ProjectImageEntry<BufferedImage>> entries(int n) {
+        List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
+        for (int i = 1; i <= n; i++) entries.add(entry(String.valueOf(i)));
+        return entries;
+    }
+
+    @Test
+    void everyEntryIsInExactlyOneShard() {
+        List<ProjectImageEntry<BufferedImage>> entries = entries(23);
+        int shard_count = 4;
+        Set<ProjectImageEntry<BufferedImage>> seen = new HashSet<>();
+        for (int i = 0; i < shard_count; i++) {
+            List<ProjectImageEntry<BufferedImage>> shard = ProjectShards.getShard(entries, i, shard_count);
+            assertTrue(shard.size() == 5 || shard.size() == 6, "unbalanced shard " + i + ": " + shard.size());
+            for (ProjectImageEntry<BufferedImage> e : shard) assertTrue(seen.add(e), "entry in two shards: " + e);
+        }
+        assertEquals(entries.size(), seen.size());
+    }
+
+    @Test
+    void partitioningDoesNotDependOnTheOrderOfTheList() {
+        List<ProjectImageEntry<BufferedImage>> entries = entries(17);
+        List<ProjectImageEntry<BufferedImage>> shuffled = new ArrayList<>(entries);
+        Collections.shuffle(shuffled, new Random(42));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ProjectShards.getShard(entries, i, 3), ProjectShards.getShard(shuffled, i, 3));
+        }
+    }
+
+    @Test
+    void idsAreSortedNumerically() {
+        // IDs are numbers, "10" comes after "9"
+        List<ProjectImageEntry<BufferedImage>> entries = entries(12);
+        List<ProjectImageEntry<BufferedImage>> shard = ProjectShards.getShard(entries, 0, 3);
+        assertEquals(List.of("1", "4", "7", "10"), shard.stream().map(ProjectImageEntry::getID).toList());
+    }
+
+    @Test
+    void moreShardsThanEntries() {
+        List<ProjectImageEntry<BufferedImage>> entries = entries(2);
+        assertEquals(1, ProjectShards.getShard(entries, 1, 5).size());
+        assertTrue(ProjectShards.getShard(entries, 4, 5).isEmpty());
+    }
+
+    @Test
+    void invalidShardsAreRejected() {
+        List<ProjectImageEntry<BufferedImage>> entries = entries(3);
+        assertThrows(IllegalArgumentException.class, () -> ProjectShards.getShard(entries, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> ProjectShards.getShard(entries, -1, 2));
+        // e.g. a SLURM task ID of an array starting at 1
+        assertThrows(IllegalArgumentException.class, () -> ProjectShards.getShard(entries, 2, 2));
+    }
+}
@@ -0,0 +1,99 @@
+package qupath.ext.efficientv2unet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RunJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void statesAreReplayedFromTheFile() {
+        File file = dir.resolve("journal.tsv").toFile();
+        RunJournal journal = new RunJournal(file);
+        journal.record("1", RunJournal.State.EXPORTED);
+        journal.record("1", RunJournal.State.PREDICTED);
+        journal.record("2", RunJournal.State.EXPORTED);
+        journal.record("3", RunJournal.State.SAVED);
+        journal.sync();
+
+        RunJournal replayed = new RunJournal(file);
+        assertEquals(RunJournal.State.PREDICTED, replayed.getState("1"));
+        assertEquals(RunJournal.State.EXPORTED, replayed.getState("2"));
+        assertEquals(RunJournal.State.SAVED, replayed.getState("3"));
+        assertNull(replayed.getState("4"));
+    }
+
+    @Test
+    void hasReachedComparesTheOrderOfTheStates() {
+        RunJournal journal = new RunJournal(dir.resolve("journal.tsv").toFile());
+        journal.record("1", RunJournal.State.IMPORTED);
+        assertTrue(journal.hasReached("1", RunJournal.State.EXPORTED));
+        assertTrue(journal.hasReached("1", RunJournal.State.PREDICTED));
+        assertTrue(journal.hasReached("1", RunJournal.State.IMPORTED));
+        assertFalse(journal.hasReached("1", RunJournal.State.SAVED));
+        assertFalse(journal.hasReached("2", RunJournal.State.EXPORTED));
+    }
+
+    @Test
+    void aStateIsNeverLowered() {
+        File file = dir.resolve("journal.tsv").toFile();
+        RunJournal journal = new RunJournal(file);
+        journal.record("1", RunJournal.State.SAVED);
+        // e.g. an image exported again by a resumed run
+        journal.record("1", RunJournal.State.EXPORTED);
+        assertEquals(RunJournal.State.SAVED, journal.getState("1"));
+        assertEquals(RunJournal.State.SAVED, new RunJournal(file).getState("1"));
+    }
+
+    @Test
+    void truncatedAndInvalidLinesAreIgnored() throws IOException {
+        File file = dir.resolve("journal.tsv").toFile();
+        Files.writeString(file.toPath(), String.join(System.lineSeparator(),
+                "1\tEXPORTED\t1000",
+                "1\tPREDICTED\t1001",
+                "2\tUNKNOWN\t1002",
+                "3\tSAV") + System.lineSeparator(), StandardCharsets.UTF_8);
+        // a line cut off by a crash, without a state
+        Files.writeString(file.toPath(), "4", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        RunJournal journal = new RunJournal(file);
+        assertEquals(RunJournal.State.PREDICTED, journal.getState("1"));
+        assertNull(journal.getState("2"));
+        assertNull(journal.getState("3"));
+        assertNull(journal.getState("4"));
+    }
+
+    @Test
+    void countSaved() {
+        RunJournal journal = new RunJournal(dir.resolve("journal.tsv").toFile());
+        journal.record("1", RunJournal.State.SAVED);
+        journal.record("2", RunJournal.State.IMPORTED);
+        journal.record("3", RunJournal.State.SAVED);
+        assertEquals(2, journal.countSaved(List.of("1", "2", "3", "4")));
+    }
+
+    @Test
+    void listenersAreNotified() {
+        RunJournal journal = new RunJournal(dir.resolve("journal.tsv").toFile());
+        StringBuilder recorded = new StringBuilder();
+        journal.addListener((id, state) -> recorded.append(id).append(':').append(state).append(' '));
+        journal.record("1", RunJournal.State.EXPORTED);
+        journal.record("1", RunJournal.State.PREDICTED);
+        assertEquals("1:EXPORTED 1:PREDICTED ", recorded.toString());
+    }
+}
@@ -0,0 +1,195 @@
+package qupath.ext.efficientv2unet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TiledTiffWriterTest {
+    private static final int TAG_IMAGE_WIDTH = 256, TAG_IMAGE_LENGTH = 257, TAG_BITS_PER_SAMPLE = 258,
+            TAG_TILE_WIDTH = 322, TAG_TILE_LENGTH = 323, TAG_TILE_OFFSETS = 324, TAG_TILE_BYTE_COUNTS = 325;
+    private static final int TYPE_LONG = 4, TYPE_LONG8 = 16;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * 8-bit single channel image server, the value of a pixel is (x + 3 * y) % 256
+     */
+    @SuppressWarnings("unchecked")
+    static ImageServer<BufferedImage> server(int width, int height) {
+        return (ImageServer<BufferedImage>) Proxy.newProxyInstance(ImageServer.class.getClassLoader(),
+                new Class<?>[]{ImageServer.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "isRGB" -> false;
+                    case "nChannels" -> 1;
+                    case "getPixelType" -> PixelType.UINT8;
+                    case "getPath" -> "test";
+                    case "getWidth" -> width;
+                    case "getHeight" -> height;
+                    case "readRegion" -> {
+                        RegionRequest request = (RegionRequest) args[0];
+                        BufferedImage img = new BufferedImage(request.getWidth(), request.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+                        WritableRaster raster = img.getRaster();
+                        for (int y = 0; y < request.getHeight(); y++)
+                            for (int x = 0; x < request.getWidth(); x++)
+                                raster.setSample(x, y, 0, pixel(request.getX() + x, request.getY() + y));
+                        yield img;
+                    }
+                    case "toString" -> "test server";
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    static int pixel(int x, int y) {
+        return (x + 3 * y) % 256;
+    }
+
+    /**
+     * Minimal TIFF reader: the header and the entries of the first IFD
+     */
+    static class Tiff {
+        final ByteBuffer bytes;
+        final boolean big;
+        final long ifd_offset;
+        final Map<Integer, Integer> types = new HashMap<>();
+        final Map<Integer, long[]> values = new HashMap<>();
+
+        Tiff(File file) throws IOException {
+            bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals('I', (char) bytes.get(0));
+            assertEquals('I', (char) bytes.get(1));
+            int version = bytes.getShort(2);
+            assertTrue(version == 42 || version == 43, "version " + version);
+            big = version == 43;
+            if (big) {
+                assertEquals(8, bytes.getShort(4)); // bytes per offset
+                assertEquals(0, bytes.getShort(6));
+                ifd_offset = bytes.getLong(8);
+            }
+            else ifd_offset = Integer.toUnsignedLong(bytes.getInt(4));
+
+            int pos = (int) ifd_offset;
+            long n_entries = big ? bytes.getLong(pos) : bytes.getShort(pos);
+            pos += big ? 8 : 2;
+            for (int i = 0; i < n_entries; i++, pos += big ? 20 : 12) {
+                int tag = bytes.getShort(pos) & 0xFFFF;
+                int type = bytes.getShort(pos + 2);
+                int count = (int) (big ? bytes.getLong(pos + 4) : bytes.getInt(pos + 4));
+                int size = type == 3 ? 2 : type == TYPE_LONG ? 4 : 8;
+                int value_pos = pos + (big ? 12 : 8);
+                if ((long) count * size > (big ? 8 : 4)) value_pos = (int) (big ? bytes.getLong(value_pos) : bytes.getInt(value_pos));
+                long[] v = new long[count];
+                for (int j = 0; j < count; j++) {
+                    int p = value_pos + j * size;
+                    v[j] = size == 2 ? bytes.getShort(p) : size == 4 ? Integer.toUnsignedLong(bytes.getInt(p)) : bytes.getLong(p);
+                }
+                types.put(tag, type);
+                values.put(tag, v);
+            }
+            long next_ifd = big ? bytes.getLong(pos) : bytes.getInt(pos);
+            assertEquals(0, next_ifd);
+        }
+
+        long get(int tag) {
+            return values.get(tag)[0];
+        }
+    }
+
+    static void assertTiles(Tiff tiff, int width, int height, int tile_size, long data_start) {
+        assertEquals(width, tiff.get(TAG_IMAGE_WIDTH));
+        assertEquals(height, tiff.get(TAG_IMAGE_LENGTH));
+        assertEquals(8, tiff.get(TAG_BITS_PER_SAMPLE));
+        assertEquals(tile_size, tiff.get(TAG_TILE_WIDTH));
+        assertEquals(tile_size, tiff.get(TAG_TILE_LENGTH));
+
+        int tiles_x = (width + tile_size - 1) / tile_size;
+        int tiles_y = (height + tile_size - 1) / tile_size;
+        long tile_bytes = (long) tile_size * tile_size;
+        long[] offsets = tiff.values.get(TAG_TILE_OFFSETS);
+        long[] counts = tiff.values.get(TAG_TILE_BYTE_COUNTS);
+        assertEquals(tiles_x * tiles_y, offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            // tiles are stored in order, right after the header, and before the IFD
+            assertEquals(data_start + i * tile_bytes, offsets[i]);
+            assertEquals(tile_bytes, counts[i]);
+        }
+        assertEquals(data_start + offsets.length * tile_bytes, tiff.ifd_offset);
+
+        // pixels of every tile, padded with 0 outside of the image
+        for (int ty = 0; ty < tiles_y; ty++) {
+            for (int tx = 0; tx < tiles_x; tx++) {
+                int offset = (int) offsets[ty * tiles_x + tx];
+                for (int row = 0; row < tile_size; row++) {
+                    for (int col = 0; col < tile_size; col++) {
+                        int x = tx * tile_size + col, y = ty * tile_size + row;
+                        int expected = x < width && y < height ? pixel(x, y) : 0;
+                        assertEquals(expected, tiff.bytes.get(offset + row * tile_size + col) & 0xFF, "pixel " + x + ", " + y);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void classicTiff() throws IOException {
+        File file = dir.resolve("classic.tif").toFile();
+        new TiledTiffWriter(16, 2).write(server(40, 24), RegionRequest.createInstance("test", 1, 0, 0, 40, 24), file);
+
+        Tiff tiff = new Tiff(file);
+        assertFalse(tiff.big);
+        assertEquals(TYPE_LONG, (int) tiff.types.get(TAG_TILE_OFFSETS));
+        assertEquals(TYPE_LONG, (int) tiff.types.get(TAG_TILE_BYTE_COUNTS));
+        assertTiles(tiff, 40, 24, 16, 8);
+    }
+
+    @Test
+    void bigTiff() throws IOException {
+        File file = dir.resolve("big.tif").toFile();
+        // any image is written as a BigTIFF above 0 bytes
+        new TiledTiffWriter(16, 2, 0).write(server(40, 24), RegionRequest.createInstance("test", 1, 0, 0, 40, 24), file);
+
+        Tiff tiff = new Tiff(file);
+        assertTrue(tiff.big);
+        assertEquals(TYPE_LONG8, (int) tiff.types.get(TAG_TILE_OFFSETS));
+        assertEquals(TYPE_LONG8, (int) tiff.types.get(TAG_TILE_BYTE_COUNTS));
+        assertTiles(tiff, 40, 24, 16, 16);
+    }
+
+    @Test
+    void singleTileWithOffsetInline() throws IOException {
+        // one tile: the offset and byte count fit in the IFD entry
+        File file = dir.resolve("single.tif").toFile();
+        new TiledTiffWriter(16, 1).write(server(10, 7), RegionRequest.createInstance("test", 1, 0, 0, 10, 7), file);
+
+        Tiff tiff = new Tiff(file);
+        assertArrayEquals(new long[]{8}, tiff.values.get(TAG_TILE_OFFSETS));
+        assertTiles(tiff, 10, 7, 16, 8);
+    }
+
+    @Test
+    void invalidTileSizeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new TiledTiffWriter(100, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TiledTiffWriter(0, 1));
+    }
+}